@@ -0,0 +1,180 @@
+package bio.overture.keycloak.benchmarks;
+
+import bio.overture.keycloak.utils.ApiKeyFormat;
+import bio.overture.keycloak.utils.Hasher;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.EntityManagerFactory;
+import jakarta.persistence.Persistence;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import liquibase.Liquibase;
+import liquibase.database.Database;
+import liquibase.database.DatabaseFactory;
+import liquibase.database.jvm.JdbcConnection;
+import liquibase.resource.ClassLoaderResourceAccessor;
+import org.keycloak.connections.jpa.JpaConnectionProvider;
+import org.keycloak.models.KeycloakContext;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+
+/**
+ * Embedded H2 database with the plugin schema, created from its Liquibase changelog and seeded with
+ * apiKeys, plus the minimal Keycloak session the services need to run against it.
+ */
+public class BenchmarkDatabase implements AutoCloseable {
+
+  public static final String REALM_ID = "benchmark-realm";
+
+  private static final String CHANGELOG = "META-INF/apikeys-changelog.xml";
+  private static final long DAY_MILLIS = 24L * 60 * 60 * 1000;
+
+  private final Connection connection;
+  private final EntityManagerFactory entityManagerFactory;
+
+  // raw apiKeys and owners, in insertion order
+  private final List<String> apiKeys = new ArrayList<>();
+  private final List<String> userIds = new ArrayList<>();
+
+  public BenchmarkDatabase(String name, int users, int keysPerUser) throws Exception {
+    String url = "jdbc:h2:mem:" + name + ";DB_CLOSE_DELAY=-1;NON_KEYWORDS=VALUE";
+    connection = DriverManager.getConnection(url);
+
+    createKeycloakTables();
+    Database database =
+        DatabaseFactory.getInstance()
+            .findCorrectDatabaseImplementation(new JdbcConnection(connection));
+    new Liquibase(CHANGELOG, new ClassLoaderResourceAccessor(), database).update("");
+
+    seed(users, keysPerUser);
+
+    entityManagerFactory =
+        Persistence.createEntityManagerFactory(
+            "apikeys-benchmark", Map.of("jakarta.persistence.jdbc.url", url));
+  }
+
+  public List<String> getApiKeys() {
+    return apiKeys;
+  }
+
+  public List<String> getUserIds() {
+    return userIds;
+  }
+
+  public EntityManager createEntityManager() {
+    return entityManagerFactory.createEntityManager();
+  }
+
+  /** A session answering only what ApiKeyService uses: the JPA connection and the realm. */
+  public static KeycloakSession session(EntityManager entityManager) {
+    RealmModel realm = proxy(RealmModel.class, (method, args) -> REALM_ID, "getId");
+    KeycloakContext context = proxy(KeycloakContext.class, (method, args) -> realm, "getRealm");
+    JpaConnectionProvider jpa =
+        proxy(JpaConnectionProvider.class, (method, args) -> entityManager, "getEntityManager");
+
+    return proxy(
+        KeycloakSession.class,
+        (method, args) -> {
+          if (method.equals("getContext")) {
+            return context;
+          }
+          return JpaConnectionProvider.class.equals(args[0]) ? jpa : null;
+        },
+        "getContext",
+        "getProvider");
+  }
+
+  @Override
+  public void close() throws SQLException {
+    entityManagerFactory.close();
+    connection.close();
+  }
+
+  private void createKeycloakTables() throws SQLException {
+    // read by the user attribute migration of the changelog
+    try (Statement statement = connection.createStatement()) {
+      statement.execute(
+          "CREATE TABLE USER_ENTITY (ID VARCHAR(36) PRIMARY KEY, REALM_ID VARCHAR(36))");
+      statement.execute(
+          "CREATE TABLE USER_ATTRIBUTE (ID VARCHAR(36) PRIMARY KEY, NAME VARCHAR(255),"
+              + " VALUE VARCHAR(255), USER_ID VARCHAR(36))");
+    }
+  }
+
+  private void seed(int users, int keysPerUser) throws SQLException {
+    Hasher hasher = new Hasher();
+    long now = System.currentTimeMillis();
+
+    connection.setAutoCommit(false);
+    try (PreparedStatement insertKey =
+            connection.prepareStatement(
+                "INSERT INTO API_KEY (ID, HASH, USER_ID, REALM_ID, ISSUE_DATE, EXPIRY_DATE,"
+                    + " REVOKED, DESCRIPTION) VALUES (?, ?, ?, ?, ?, ?, ?, ?)");
+        PreparedStatement insertScope =
+            connection.prepareStatement(
+                "INSERT INTO API_KEY_SCOPE (API_KEY_ID, SCOPE) VALUES (?, ?)")) {
+
+      for (int user = 0; user < users; user++) {
+        String userId = UUID.randomUUID().toString();
+        userIds.add(userId);
+
+        for (int key = 0; key < keysPerUser; key++) {
+          String id = UUID.randomUUID().toString();
+          // half of the apiKeys in each format
+          String apiKey = key % 2 == 0 ? ApiKeyFormat.generate(id) : UUID.randomUUID().toString();
+          apiKeys.add(apiKey);
+
+          insertKey.setString(1, id);
+          insertKey.setString(2, hasher.generateHash(apiKey));
+          insertKey.setString(3, userId);
+          insertKey.setString(4, REALM_ID);
+          insertKey.setLong(5, now - key * DAY_MILLIS);
+          insertKey.setLong(6, now + (365 - key) * DAY_MILLIS);
+          insertKey.setBoolean(7, key % 10 == 0);
+          insertKey.setString(8, "benchmark key " + key);
+          insertKey.addBatch();
+
+          insertScope.setString(1, id);
+          insertScope.setString(2, "song.READ");
+          insertScope.addBatch();
+          insertScope.setString(1, id);
+          insertScope.setString(2, "score.WRITE");
+          insertScope.addBatch();
+        }
+        insertKey.executeBatch();
+        insertScope.executeBatch();
+      }
+    }
+    connection.commit();
+    connection.setAutoCommit(true);
+  }
+
+  private interface Answer {
+    Object answer(String method, Object[] args);
+  }
+
+  @SuppressWarnings("unchecked")
+  private static <T> T proxy(Class<T> type, Answer answer, String... methods) {
+    List<String> answered = List.of(methods);
+    return (T)
+        Proxy.newProxyInstance(
+            type.getClassLoader(),
+            new Class<?>[] {type},
+            (proxy, method, args) -> {
+              if (answered.contains(method.getName())) {
+                return answer.answer(method.getName(), args);
+              }
+              if (method.getName().equals("toString")) {
+                return type.getSimpleName() + " stub";
+              }
+              throw new UnsupportedOperationException(method.getName());
+            });
+  }
+}
@@ -0,0 +1,52 @@
+package bio.overture.keycloak.benchmarks;
+
+import bio.overture.keycloak.model.ApiKey;
+import bio.overture.keycloak.params.ScopeName;
+import bio.overture.keycloak.utils.Converters;
+import bio.overture.keycloak.utils.Hasher;
+import java.util.Date;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ConvertersBenchmark {
+
+  private ApiKey apiKey;
+  private String json;
+
+  @Setup
+  public void setup() {
+    apiKey =
+        ApiKey.builder()
+            .name(new Hasher().generateHash(UUID.randomUUID().toString()))
+            .scope(Set.of(new ScopeName("song.READ"), new ScopeName("score.WRITE")))
+            .description("benchmark key")
+            .issueDate(new Date())
+            .expiryDate(new Date(System.currentTimeMillis() + TimeUnit.DAYS.toMillis(365)))
+            .isRevoked(false)
+            .build();
+    json = apiKey.toJsonMinimal();
+  }
+
+  @Benchmark
+  public ApiKey jsonStringToClass() {
+    return Converters.jsonStringToClass(json, ApiKey.class);
+  }
+
+  @Benchmark
+  public String toJsonMinimal() {
+    return apiKey.toJsonMinimal();
+  }
+
+  @Benchmark
+  public String apiKeyToString() {
+    return apiKey.toString();
+  }
+}
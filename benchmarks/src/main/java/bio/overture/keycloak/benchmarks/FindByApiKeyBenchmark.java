@@ -0,0 +1,73 @@
+package bio.overture.keycloak.benchmarks;
+
+import bio.overture.keycloak.config.ApiKeyConfig;
+import bio.overture.keycloak.model.entity.ApiKeyEntity;
+import bio.overture.keycloak.provider.ApiKeyComponents;
+import bio.overture.keycloak.services.ApiKeyService;
+import bio.overture.keycloak.utils.ApiKeyFormat;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import jakarta.persistence.EntityManager;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Lookup of a stored apiKey as the number of apiKeys in the database grows, by primary key for
+ * apiKeys carrying their id and by hash for legacy UUID apiKeys.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FindByApiKeyBenchmark {
+
+  private static final int KEYS_PER_USER = 10;
+
+  @Param({"1000", "10000", "100000"})
+  private int keyCount;
+
+  @Param({"keyId", "legacy"})
+  private String format;
+
+  private BenchmarkDatabase database;
+  private EntityManager entityManager;
+  private ApiKeyService apiKeyService;
+  private List<String> apiKeys;
+
+  @Setup
+  public void setup() throws Exception {
+    database = new BenchmarkDatabase("lookup-" + keyCount, keyCount / KEYS_PER_USER, KEYS_PER_USER);
+    entityManager = database.createEntityManager();
+    // default settings are all zero: no cache, every lookup goes to the database
+    apiKeyService =
+        new ApiKeyService(
+            BenchmarkDatabase.session(entityManager),
+            new ApiKeyComponents(ApiKeyConfig.builder().build(), new SimpleMeterRegistry()));
+    boolean keyIdFormat = format.equals("keyId");
+    apiKeys =
+        database.getApiKeys().stream()
+            .filter(apiKey -> apiKey.startsWith(ApiKeyFormat.PREFIX) == keyIdFormat)
+            .collect(Collectors.toList());
+  }
+
+  @TearDown
+  public void tearDown() throws Exception {
+    entityManager.close();
+    database.close();
+  }
+
+  @Benchmark
+  public Optional<ApiKeyEntity> findByApiKey() {
+    Optional<ApiKeyEntity> found =
+        apiKeyService.findByApiKey(
+            apiKeys.get(ThreadLocalRandom.current().nextInt(apiKeys.size())));
+    // keep the persistence context from growing across invocations
+    entityManager.clear();
+    return found;
+  }
+}
@@ -0,0 +1,55 @@
+package bio.overture.keycloak.benchmarks;
+
+import bio.overture.keycloak.config.ApiKeyConfig;
+import bio.overture.keycloak.model.ApiKeyPage;
+import bio.overture.keycloak.provider.ApiKeyComponents;
+import bio.overture.keycloak.services.ApiKeyService;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import jakarta.persistence.EntityManager;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/** Listing of one page of the apiKeys of a user, as the number of apiKeys of the user grows. */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class GetApiKeysBenchmark {
+
+  @Param({"10", "100", "1000"})
+  private int keysPerUser;
+
+  @Param({"name", "expirydate"})
+  private String sort;
+
+  private BenchmarkDatabase database;
+  private EntityManager entityManager;
+  private ApiKeyService apiKeyService;
+  private String userId;
+
+  @Setup
+  public void setup() throws Exception {
+    database = new BenchmarkDatabase("list-" + keysPerUser + "-" + sort, 10, keysPerUser);
+    entityManager = database.createEntityManager();
+    apiKeyService =
+        new ApiKeyService(
+            BenchmarkDatabase.session(entityManager),
+            new ApiKeyComponents(ApiKeyConfig.builder().build(), new SimpleMeterRegistry()));
+    userId = database.getUserIds().get(0);
+  }
+
+  @TearDown
+  public void tearDown() throws Exception {
+    entityManager.close();
+    database.close();
+  }
+
+  @Benchmark
+  public ApiKeyPage getApiKeys() {
+    ApiKeyPage page = apiKeyService.getApiKeys(userId, "", 20, 0, null, sort, "ASC");
+    entityManager.clear();
+    return page;
+  }
+}
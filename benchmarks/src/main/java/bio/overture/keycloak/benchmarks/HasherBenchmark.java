@@ -0,0 +1,29 @@
+package bio.overture.keycloak.benchmarks;
+
+import bio.overture.keycloak.utils.Hasher;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class HasherBenchmark {
+
+  private final Hasher hasher = new Hasher();
+  private final String apiKey = UUID.randomUUID().toString();
+
+  @Benchmark
+  public String generateHash() {
+    return hasher.generateHash(apiKey);
+  }
+
+  @Benchmark
+  @Threads(4)
+  public String generateHashConcurrent() {
+    return hasher.generateHash(apiKey);
+  }
+}
@@ -0,0 +1,154 @@
+package bio.overture.keycloak.cache;
+
+import static bio.overture.keycloak.utils.Transactions.afterCommit;
+
+import bio.overture.keycloak.model.ApiKeySnapshot;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import org.jboss.logging.Logger;
+import org.keycloak.cluster.ClusterEvent;
+import org.keycloak.cluster.ClusterProvider;
+import org.keycloak.models.KeycloakSession;
+
+/**
+ * Caches the result of apiKey lookups by realm and hash. Entries live at most {@code ttlMillis} and
+ * never past the expiry date of the apiKey; invalidations are applied once the change they follow
+ * is committed, and propagated to the other nodes of the cluster. Every invalidation of a realm
+ * bumps its generation, so apiKeys read from the database before it are never cached after it.
+ */
+public class ApiKeyCache {
+
+  public static final String INVALIDATION_TASK_KEY = "apikey-cache-invalidation";
+
+  private static final Logger logger = Logger.getLogger(ApiKeyCache.class);
+
+  private final TtlCache<String, ApiKeySnapshot> cache;
+  private final long ttlMillis;
+
+  // bumped on every invalidation of a realm, before its entries are dropped
+  private final Map<String, AtomicLong> generations = new ConcurrentHashMap<>();
+
+  public ApiKeyCache(int maxSize, long ttlMillis) {
+    this.cache = new TtlCache<>(maxSize);
+    this.ttlMillis = ttlMillis;
+  }
+
+  public Optional<ApiKeySnapshot> get(String realmId, String hash) {
+    return cache.get(key(realmId, hash));
+  }
+
+  /** Current generation of the realm, to be read before the apiKeys passed to {@link #put}. */
+  public long generation(String realmId) {
+    return generations.computeIfAbsent(realmId, id -> new AtomicLong()).get();
+  }
+
+  /** Caches an apiKey read at {@code generation}, unless the realm was invalidated since. */
+  public void put(ApiKeySnapshot apiKey, long generation) {
+    String realmId = apiKey.getRealmId();
+    if (generation(realmId) != generation) {
+      return;
+    }
+    String key = key(realmId, apiKey.getHash());
+    long expiresAt = Math.min(System.currentTimeMillis() + ttlMillis, apiKey.getExpiryDate());
+    cache.put(key, apiKey, expiresAt);
+    // an invalidation that ran while it was put may have missed it
+    if (generation(realmId) != generation) {
+      cache.invalidate(key);
+    }
+  }
+
+  /**
+   * Drops the given apiKeys on this node and on every other node of the cluster, once the
+   * transaction of the session is committed. Dropped earlier, a concurrent lookup could cache the
+   * rows again before they change; a rollback drops nothing.
+   */
+  public void invalidate(KeycloakSession session, String realmId, Collection<String> hashes) {
+    if (hashes.isEmpty()) {
+      return;
+    }
+    Set<String> invalidated = Set.copyOf(hashes);
+    afterCommit(
+        session,
+        () -> {
+          invalidateLocal(realmId, invalidated);
+          notifyCluster(session, new ApiKeyCacheInvalidationEvent(realmId, invalidated));
+        });
+  }
+
+  /**
+   * Drops every apiKey of the realm on this node and on every other node of the cluster, once the
+   * transaction of the session is committed.
+   */
+  public void invalidateRealm(KeycloakSession session, String realmId) {
+    afterCommit(
+        session,
+        () -> {
+          invalidateRealm(realmId);
+          notifyCluster(session, new ApiKeyCacheInvalidationEvent(realmId, null));
+        });
+  }
+
+  public void registerClusterListener(KeycloakSession session) {
+    ClusterProvider cluster = session.getProvider(ClusterProvider.class);
+    if (cluster == null) {
+      logger.warn("ApiKeyCache - No cluster provider, invalidations stay local to this node");
+      return;
+    }
+    cluster.registerListener(INVALIDATION_TASK_KEY, this::onClusterEvent);
+  }
+
+  public int size() {
+    return cache.size();
+  }
+
+  public long getHits() {
+    return cache.getHits();
+  }
+
+  public long getMisses() {
+    return cache.getMisses();
+  }
+
+  private void onClusterEvent(ClusterEvent event) {
+    if (!(event instanceof ApiKeyCacheInvalidationEvent)) {
+      return;
+    }
+    ApiKeyCacheInvalidationEvent invalidation = (ApiKeyCacheInvalidationEvent) event;
+    if (invalidation.getHashes() == null) {
+      invalidateRealm(invalidation.getRealmId());
+    } else {
+      invalidateLocal(invalidation.getRealmId(), invalidation.getHashes());
+    }
+  }
+
+  private void invalidateLocal(String realmId, Collection<String> hashes) {
+    bumpGeneration(realmId);
+    hashes.forEach(hash -> cache.invalidate(key(realmId, hash)));
+  }
+
+  private void invalidateRealm(String realmId) {
+    bumpGeneration(realmId);
+    String prefix = key(realmId, "");
+    cache.invalidateIf(key -> key.startsWith(prefix));
+  }
+
+  private void bumpGeneration(String realmId) {
+    generations.computeIfAbsent(realmId, id -> new AtomicLong()).incrementAndGet();
+  }
+
+  private void notifyCluster(KeycloakSession session, ApiKeyCacheInvalidationEvent event) {
+    ClusterProvider cluster = session.getProvider(ClusterProvider.class);
+    if (cluster != null) {
+      // the local node was already invalidated
+      cluster.notify(INVALIDATION_TASK_KEY, event, true, ClusterProvider.DCNotify.ALL_DCS);
+    }
+  }
+
+  private static String key(String realmId, String hash) {
+    return realmId + ":" + hash;
+  }
+}
@@ -0,0 +1,14 @@
+package bio.overture.keycloak.cache;
+
+import java.util.Set;
+import lombok.Value;
+import org.keycloak.cluster.ClusterEvent;
+
+/** Sent to every Keycloak node when cached apiKeys of a realm must be dropped. */
+@Value
+public class ApiKeyCacheInvalidationEvent implements ClusterEvent {
+  String realmId;
+
+  // null invalidates every apiKey of the realm
+  Set<String> hashes;
+}
@@ -0,0 +1,215 @@
+package bio.overture.keycloak.cache;
+
+import bio.overture.keycloak.model.ApiKeySnapshot;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import org.jboss.logging.Logger;
+
+/**
+ * Merges the concurrent database lookups of apiKeys missing from the {@link ApiKeyCache}. Lookups
+ * of the same apiKey share a single fetch. Lookups of other apiKeys of the realm, made while a
+ * fetch is running, wait up to {@code windowMillis} and are then fetched together, with one query,
+ * by the first of them. A lookup made while nothing is fetched goes to the database right away, so
+ * a quiet node adds no latency. Lookups carry the {@link ApiKeyCache#generation} of the realm read
+ * before them, and never take the result of a lookup started before an invalidation they saw.
+ */
+public class ApiKeyLookupCoalescer {
+
+  private static final Logger logger = Logger.getLogger(ApiKeyLookupCoalescer.class);
+
+  // a lookup waiting for the fetch of another request does its own after that long
+  private static final long SHARED_FETCH_TIMEOUT_MILLIS = 10_000;
+
+  private final long windowMillis;
+  private final int maxBatchSize;
+
+  private final ConcurrentHashMap<String, Lookup> inFlight = new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<String, Batch> openBatches = new ConcurrentHashMap<>();
+  private final AtomicInteger fetching = new AtomicInteger();
+
+  private final LongAdder shared = new LongAdder();
+  private final LongAdder batched = new LongAdder();
+  private final LongAdder fetches = new LongAdder();
+
+  public ApiKeyLookupCoalescer(long windowMillis, int maxBatchSize) {
+    this.windowMillis = windowMillis;
+    this.maxBatchSize = Math.max(maxBatchSize, 1);
+  }
+
+  /**
+   * The apiKey of the realm with this hash. It is fetched by {@code fetch}, which returns the
+   * apiKeys found by hash, together with the hashes of the lookups that joined this one, or it is
+   * taken from the fetch of another lookup started at {@code generation} or later.
+   */
+  public Optional<ApiKeySnapshot> find(
+      String realmId,
+      String hash,
+      long generation,
+      Function<Set<String>, Map<String, ApiKeySnapshot>> fetch) {
+    Lookup lookup = new Lookup(hash, generation);
+    // a lookup started before an invalidation is replaced, the lookups already waiting for it
+    // still get its result
+    Lookup running =
+        inFlight.compute(
+            key(realmId, hash),
+            (key, current) ->
+                current == null || current.generation < generation ? lookup : current);
+    if (running != lookup) {
+      shared.increment();
+      return await(running.result, hash, fetch);
+    }
+
+    Batch batch = join(realmId, lookup);
+    if (batch == null) {
+      batched.increment();
+      return await(lookup.result, hash, fetch);
+    }
+    lead(realmId, batch, fetch);
+    return lookup.result.join();
+  }
+
+  /** Lookups that took the result of a fetch of the same apiKey. */
+  public long getShared() {
+    return shared.sum();
+  }
+
+  /** Lookups fetched in the batch of another lookup. */
+  public long getBatched() {
+    return batched.sum();
+  }
+
+  /** Queries run, each for one or more lookups. */
+  public long getFetches() {
+    return fetches.sum();
+  }
+
+  /** Adds the lookup to the open batch of the realm and returns null, or opens a batch to lead. */
+  private Batch join(String realmId, Lookup lookup) {
+    while (true) {
+      Batch open = openBatches.get(realmId);
+      if (open == null) {
+        Batch created = new Batch(maxBatchSize);
+        created.add(lookup);
+        if (openBatches.putIfAbsent(realmId, created) == null) {
+          return created;
+        }
+      } else if (open.add(lookup)) {
+        return null;
+      } else {
+        // closed or full, whoever sees it first takes it out
+        openBatches.remove(realmId, open);
+      }
+    }
+  }
+
+  private void lead(
+      String realmId, Batch batch, Function<Set<String>, Map<String, ApiKeySnapshot>> fetch) {
+    // other lookups only have a chance to join while the database is busy
+    if (fetching.get() > 0) {
+      batch.awaitFull(windowMillis);
+    }
+    openBatches.remove(realmId, batch);
+    List<Lookup> lookups = batch.close();
+    Set<String> hashes = new HashSet<>();
+    lookups.forEach(lookup -> hashes.add(lookup.hash));
+
+    fetching.incrementAndGet();
+    fetches.increment();
+    try {
+      Map<String, ApiKeySnapshot> found = fetch.apply(hashes);
+      lookups.forEach(
+          lookup -> lookup.result.complete(Optional.ofNullable(found.get(lookup.hash))));
+    } catch (RuntimeException e) {
+      lookups.forEach(lookup -> lookup.result.completeExceptionally(e));
+      throw e;
+    } finally {
+      fetching.decrementAndGet();
+      lookups.forEach(lookup -> inFlight.remove(key(realmId, lookup.hash), lookup));
+    }
+  }
+
+  /** The result of the fetch of another lookup or, when it failed or is late, of its own fetch. */
+  private static Optional<ApiKeySnapshot> await(
+      CompletableFuture<Optional<ApiKeySnapshot>> result,
+      String hash,
+      Function<Set<String>, Map<String, ApiKeySnapshot>> fetch) {
+    try {
+      return result.get(SHARED_FETCH_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (ExecutionException | TimeoutException e) {
+      logger.debugf(e, "ApiKeyLookupCoalescer - Shared fetch failed, fetching alone");
+    }
+    return Optional.ofNullable(fetch.apply(Set.of(hash)).get(hash));
+  }
+
+  private static String key(String realmId, String hash) {
+    return realmId + ":" + hash;
+  }
+
+  /** A lookup of an apiKey, and the generation of the realm it was started at. */
+  private static class Lookup {
+
+    private final String hash;
+    private final long generation;
+    private final CompletableFuture<Optional<ApiKeySnapshot>> result = new CompletableFuture<>();
+
+    Lookup(String hash, long generation) {
+      this.hash = hash;
+      this.generation = generation;
+    }
+  }
+
+  /** Lookups waiting for the same query; the same hash may be looked up at two generations. */
+  private static class Batch {
+
+    private final int maxSize;
+    private final List<Lookup> lookups = new ArrayList<>();
+    private boolean closed;
+
+    Batch(int maxSize) {
+      this.maxSize = maxSize;
+    }
+
+    synchronized boolean add(Lookup lookup) {
+      if (closed || lookups.size() >= maxSize) {
+        return false;
+      }
+      lookups.add(lookup);
+      if (lookups.size() >= maxSize) {
+        notifyAll();
+      }
+      return true;
+    }
+
+    synchronized void awaitFull(long millis) {
+      long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+      long remaining;
+      while (lookups.size() < maxSize && (remaining = deadline - System.nanoTime()) > 0) {
+        try {
+          TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return;
+        }
+      }
+    }
+
+    synchronized List<Lookup> close() {
+      closed = true;
+      return lookups;
+    }
+  }
+}
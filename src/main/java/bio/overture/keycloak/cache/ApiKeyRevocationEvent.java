@@ -0,0 +1,12 @@
+package bio.overture.keycloak.cache;
+
+import bio.overture.keycloak.model.RevokedApiKey;
+import java.util.Set;
+import lombok.Value;
+import org.keycloak.cluster.ClusterEvent;
+
+/** Sent to every Keycloak node when signed apiKeys are revoked. */
+@Value
+public class ApiKeyRevocationEvent implements ClusterEvent {
+  Set<RevokedApiKey> revoked;
+}
@@ -0,0 +1,133 @@
+package bio.overture.keycloak.cache;
+
+import bio.overture.keycloak.model.ApiKeyUsage;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts the uses of apiKeys in memory, by id, until they are flushed to the database. However
+ * often a key is used, it costs one row update per flush. At most {@code maxSize} apiKeys are
+ * tracked between two flushes; uses of other apiKeys are dropped and counted.
+ */
+public class ApiKeyUsageTracker {
+
+  private final ConcurrentHashMap<String, Usage> usageById = new ConcurrentHashMap<>();
+  private final int maxSize;
+  private final LongAdder dropped = new LongAdder();
+
+  public ApiKeyUsageTracker(int maxSize) {
+    this.maxSize = maxSize;
+  }
+
+  public void record(String id) {
+    record(id, System.currentTimeMillis());
+  }
+
+  public void record(String id, long now) {
+    if (maxSize <= 0) {
+      return;
+    }
+    Usage usage = usageById.get(id);
+    if (usage == null) {
+      if (usageById.size() >= maxSize) {
+        dropped.increment();
+        return;
+      }
+      usage = usageById.computeIfAbsent(id, key -> new Usage());
+    }
+    usage.count.increment();
+
+    // a lost race means another thread stored a time just as recent
+    long lastUsed = usage.lastUsed.get();
+    if (now > lastUsed) {
+      usage.lastUsed.compareAndSet(lastUsed, now);
+    }
+
+    if (usage.retired) {
+      // the entry was found idle and removed while this use was counted
+      carryOver(id, usage);
+    }
+  }
+
+  /**
+   * Takes the uses counted since the previous drain. apiKeys left unused for a whole interval stop
+   * being tracked.
+   */
+  public List<ApiKeyUsage> drain() {
+    List<ApiKeyUsage> drained = new ArrayList<>();
+    usageById.forEach(
+        (id, usage) -> {
+          long count = usage.count.sumThenReset();
+          if (count == 0) {
+            usageById.computeIfPresent(
+                id, (key, current) -> current == usage && retire(usage) ? null : current);
+          } else {
+            drained.add(new ApiKeyUsage(id, count, usage.lastUsed.get()));
+          }
+        });
+    return drained;
+  }
+
+  /** Puts back uses that could not be flushed, so they are retried with the next flush. */
+  public void restore(Collection<ApiKeyUsage> usages) {
+    for (ApiKeyUsage apiKeyUsage : usages) {
+      usageById.compute(
+          apiKeyUsage.getId(),
+          (key, current) -> {
+            Usage usage = current == null ? new Usage() : current;
+            usage.count.add(apiKeyUsage.getCount());
+            usage.lastUsed.accumulateAndGet(apiKeyUsage.getLastUsed(), Math::max);
+            return usage;
+          });
+    }
+  }
+
+  /**
+   * Marks an idle entry as removed, unless a use is counted meanwhile. Flagged before the count is
+   * read, so a use counted after the read sees the flag and is carried over by its own thread.
+   */
+  private static boolean retire(Usage usage) {
+    usage.retired = true;
+    if (usage.count.sum() == 0) {
+      return true;
+    }
+    usage.retired = false;
+    return false;
+  }
+
+  /** Moves the uses counted on a removed entry to the entry of the apiKey now tracked. */
+  private void carryOver(String id, Usage retired) {
+    usageById.compute(
+        id,
+        (key, current) -> {
+          // kept by the drain after all, or already carried over by another thread
+          long count = current == retired ? 0 : retired.count.sumThenReset();
+          if (count == 0) {
+            return current;
+          }
+          Usage usage = current == null ? new Usage() : current;
+          usage.count.add(count);
+          usage.lastUsed.accumulateAndGet(retired.lastUsed.get(), Math::max);
+          return usage;
+        });
+  }
+
+  public int size() {
+    return usageById.size();
+  }
+
+  public long getDropped() {
+    return dropped.sum();
+  }
+
+  private static class Usage {
+    private final LongAdder count = new LongAdder();
+    private final AtomicLong lastUsed = new AtomicLong();
+    // no longer in the map, its uses belong to the entry that replaced it
+    private volatile boolean retired;
+  }
+}
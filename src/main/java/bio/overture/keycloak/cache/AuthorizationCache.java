@@ -0,0 +1,133 @@
+package bio.overture.keycloak.cache;
+
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import org.jboss.logging.Logger;
+import org.keycloak.cluster.ClusterEvent;
+import org.keycloak.cluster.ClusterProvider;
+import org.keycloak.models.KeycloakSession;
+
+/**
+ * Caches, per realm, the {@link AuthorizationIndex} used to find the resources behind scope names,
+ * and the recent policy decisions and admin status per user. Both are dropped on every node when
+ * the authorization settings of the realm change, and expire on their own as a safety net for
+ * changes that are not notified (e.g. a policy based on time).
+ */
+public class AuthorizationCache {
+
+  public static final String INVALIDATION_TASK_KEY = "apikey-authorization-cache-invalidation";
+
+  private static final Logger logger = Logger.getLogger(AuthorizationCache.class);
+
+  // one index per realm
+  private static final int INDEX_MAX_SIZE = 1000;
+
+  // kept with the decisions of the user, so both are dropped when the user's memberships change;
+  // scope names always contain a dot, so it cannot clash with one
+  private static final String ADMIN_DECISION = "admin";
+
+  private final TtlCache<String, AuthorizationIndex> indexes;
+  private final TtlCache<String, Boolean> decisions;
+  private final long indexTtlMillis;
+  private final long decisionTtlMillis;
+
+  // bumped on every invalidation of a realm, so an index built before it is never stored after it
+  private final Map<String, AtomicLong> generations = new ConcurrentHashMap<>();
+
+  public AuthorizationCache(long indexTtlMillis, int decisionMaxSize, long decisionTtlMillis) {
+    this.indexes = new TtlCache<>(INDEX_MAX_SIZE);
+    this.decisions = new TtlCache<>(decisionMaxSize);
+    this.indexTtlMillis = indexTtlMillis;
+    this.decisionTtlMillis = decisionTtlMillis;
+  }
+
+  public Optional<AuthorizationIndex> getIndex(String realmId) {
+    return indexes.get(realmId);
+  }
+
+  /** Current generation of the realm, to be passed to {@link #putIndex} once the index is built. */
+  public long generation(String realmId) {
+    return generations.computeIfAbsent(realmId, id -> new AtomicLong()).get();
+  }
+
+  public void putIndex(String realmId, AuthorizationIndex index, long generation) {
+    if (generation(realmId) == generation) {
+      indexes.put(realmId, index, System.currentTimeMillis() + indexTtlMillis);
+    }
+  }
+
+  public Optional<Boolean> getDecision(String realmId, String userId, String scope) {
+    return decisions.get(decisionKey(realmId, userId, scope));
+  }
+
+  public void putDecision(String realmId, String userId, String scope, boolean granted) {
+    decisions.put(
+        decisionKey(realmId, userId, scope),
+        granted,
+        System.currentTimeMillis() + decisionTtlMillis);
+  }
+
+  public Optional<Boolean> getAdmin(String realmId, String userId) {
+    return getDecision(realmId, userId, ADMIN_DECISION);
+  }
+
+  public void putAdmin(String realmId, String userId, boolean admin) {
+    putDecision(realmId, userId, ADMIN_DECISION, admin);
+  }
+
+  /** Drops the index and decisions of the realm on this node and every other node. */
+  public void invalidateRealm(KeycloakSession session, String realmId) {
+    invalidateLocal(realmId, null);
+    notifyCluster(session, new AuthorizationCacheInvalidationEvent(realmId, null));
+  }
+
+  /** Drops the decisions of one user on this node and every other node. */
+  public void invalidateUser(KeycloakSession session, String realmId, String userId) {
+    invalidateLocal(realmId, userId);
+    notifyCluster(session, new AuthorizationCacheInvalidationEvent(realmId, userId));
+  }
+
+  public void registerClusterListener(KeycloakSession session) {
+    ClusterProvider cluster = session.getProvider(ClusterProvider.class);
+    if (cluster == null) {
+      logger.warn(
+          "AuthorizationCache - No cluster provider, invalidations stay local to this node");
+      return;
+    }
+    cluster.registerListener(INVALIDATION_TASK_KEY, this::onClusterEvent);
+  }
+
+  private void onClusterEvent(ClusterEvent event) {
+    if (event instanceof AuthorizationCacheInvalidationEvent) {
+      AuthorizationCacheInvalidationEvent invalidation =
+          (AuthorizationCacheInvalidationEvent) event;
+      invalidateLocal(invalidation.getRealmId(), invalidation.getUserId());
+    }
+  }
+
+  private void invalidateLocal(String realmId, String userId) {
+    if (userId == null) {
+      generations.computeIfAbsent(realmId, id -> new AtomicLong()).incrementAndGet();
+      indexes.invalidate(realmId);
+      String prefix = realmId + ":";
+      decisions.invalidateIf(key -> key.startsWith(prefix));
+    } else {
+      String prefix = realmId + ":" + userId + ":";
+      decisions.invalidateIf(key -> key.startsWith(prefix));
+    }
+  }
+
+  private void notifyCluster(KeycloakSession session, AuthorizationCacheInvalidationEvent event) {
+    ClusterProvider cluster = session.getProvider(ClusterProvider.class);
+    if (cluster != null) {
+      // the local node was already invalidated
+      cluster.notify(INVALIDATION_TASK_KEY, event, true, ClusterProvider.DCNotify.ALL_DCS);
+    }
+  }
+
+  private static String decisionKey(String realmId, String userId, String scope) {
+    return realmId + ":" + userId + ":" + scope;
+  }
+}
@@ -0,0 +1,15 @@
+package bio.overture.keycloak.cache;
+
+import lombok.Value;
+import org.keycloak.cluster.ClusterEvent;
+
+/**
+ * Sent to the other nodes of the cluster when the authorization settings of a realm change. A
+ * {@code null} userId drops the index and every decision of the realm, otherwise only the decisions
+ * of that user.
+ */
+@Value
+public class AuthorizationCacheInvalidationEvent implements ClusterEvent {
+  String realmId;
+  String userId;
+}
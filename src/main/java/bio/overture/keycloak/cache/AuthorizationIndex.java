@@ -0,0 +1,27 @@
+package bio.overture.keycloak.cache;
+
+import java.util.List;
+import java.util.Map;
+import lombok.Value;
+
+/**
+ * Where the policies of a realm live: for each resource name (the {@code <policyName>} of a scope
+ * name), the resource servers of the direct grant clients holding a resource with that name and the
+ * ids of its scopes. Only ids are kept, the models are loaded again in each session.
+ */
+@Value
+public class AuthorizationIndex {
+
+  Map<String, List<IndexedResource>> resourcesByName;
+
+  public List<IndexedResource> find(String resourceName) {
+    return resourcesByName.getOrDefault(resourceName, List.of());
+  }
+
+  @Value
+  public static class IndexedResource {
+    String resourceServerId;
+    String resourceId;
+    Map<String, String> scopeIdsByName;
+  }
+}
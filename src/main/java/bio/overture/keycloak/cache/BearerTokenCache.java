@@ -0,0 +1,177 @@
+package bio.overture.keycloak.cache;
+
+import bio.overture.keycloak.utils.Hasher;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import lombok.Value;
+import org.jboss.logging.Logger;
+import org.keycloak.cluster.ClusterEvent;
+import org.keycloak.cluster.ClusterProvider;
+import org.keycloak.models.ClientModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.UserSessionModel;
+import org.keycloak.representations.AccessToken;
+import org.keycloak.services.managers.AuthenticationManager;
+
+/**
+ * Remembers the bearer tokens recently verified on this node, keyed by their digest, so repeated
+ * calls with the same token skip its parsing and signature verification. An entry lasts until the
+ * token expires, and is only honoured while its user session is still logged in and its user and
+ * client enabled. Logouts and admin changes to sessions, users and realms drop the entries on every
+ * node.
+ */
+public class BearerTokenCache {
+
+  public static final String INVALIDATION_TASK_KEY = "apikey-bearer-cache-invalidation";
+
+  private static final Logger logger = Logger.getLogger(BearerTokenCache.class);
+
+  private final TtlCache<String, VerifiedToken> cache;
+  private final long ttlMillis;
+  private final Hasher hasher = new Hasher();
+
+  public BearerTokenCache(int maxSize, long ttlMillis) {
+    this.cache = new TtlCache<>(maxSize);
+    this.ttlMillis = ttlMillis;
+  }
+
+  /** The authentication of a token verified before, rebuilt for this session. */
+  public Optional<AuthenticationManager.AuthResult> get(
+      KeycloakSession session, RealmModel realm, String token) {
+    String key = key(realm, token);
+    Optional<AuthenticationManager.AuthResult> auth =
+        cache.get(key).flatMap(verified -> verified.toAuthResult(session, realm));
+    if (auth.isEmpty()) {
+      cache.invalidate(key);
+    }
+    return auth;
+  }
+
+  public void put(RealmModel realm, String token, AuthenticationManager.AuthResult auth) {
+    if (auth.getSession() == null || auth.getToken().getExp() == null) {
+      return;
+    }
+    long expiresAt =
+        Math.min(
+            TimeUnit.SECONDS.toMillis(auth.getToken().getExp()),
+            System.currentTimeMillis() + ttlMillis);
+    cache.put(
+        key(realm, token),
+        new VerifiedToken(
+            realm.getId(),
+            auth.getUser().getId(),
+            auth.getSession().getId(),
+            auth.getClient().getClientId(),
+            auth.getToken()),
+        expiresAt);
+  }
+
+  /** Drops the tokens of a user session on this node and every other node. */
+  public void invalidateSession(KeycloakSession session, String realmId, String sessionId) {
+    invalidate(session, new BearerTokenCacheInvalidationEvent(realmId, null, sessionId));
+  }
+
+  /** Drops the tokens of a user on this node and every other node. */
+  public void invalidateUser(KeycloakSession session, String realmId, String userId) {
+    invalidate(session, new BearerTokenCacheInvalidationEvent(realmId, userId, null));
+  }
+
+  /** Drops the tokens of a realm on this node and every other node. */
+  public void invalidateRealm(KeycloakSession session, String realmId) {
+    invalidate(session, new BearerTokenCacheInvalidationEvent(realmId, null, null));
+  }
+
+  public void registerClusterListener(KeycloakSession session) {
+    ClusterProvider cluster = session.getProvider(ClusterProvider.class);
+    if (cluster == null) {
+      logger.warn("BearerTokenCache - No cluster provider, invalidations stay local to this node");
+      return;
+    }
+    cluster.registerListener(INVALIDATION_TASK_KEY, this::onClusterEvent);
+  }
+
+  public int size() {
+    return cache.size();
+  }
+
+  public long getHits() {
+    return cache.getHits();
+  }
+
+  public long getMisses() {
+    return cache.getMisses();
+  }
+
+  private void invalidate(KeycloakSession session, BearerTokenCacheInvalidationEvent event) {
+    invalidateLocal(event);
+    ClusterProvider cluster = session.getProvider(ClusterProvider.class);
+    if (cluster != null) {
+      // the local node was already invalidated
+      cluster.notify(INVALIDATION_TASK_KEY, event, true, ClusterProvider.DCNotify.ALL_DCS);
+    }
+  }
+
+  private void onClusterEvent(ClusterEvent event) {
+    if (event instanceof BearerTokenCacheInvalidationEvent) {
+      invalidateLocal((BearerTokenCacheInvalidationEvent) event);
+    }
+  }
+
+  private void invalidateLocal(BearerTokenCacheInvalidationEvent event) {
+    String realmId = event.getRealmId();
+    if (event.getSessionId() != null) {
+      cache.invalidateValuesIf(
+          verified ->
+              verified.getRealmId().equals(realmId)
+                  && verified.getSessionId().equals(event.getSessionId()));
+    } else if (event.getUserId() != null) {
+      cache.invalidateValuesIf(
+          verified ->
+              verified.getRealmId().equals(realmId)
+                  && verified.getUserId().equals(event.getUserId()));
+    } else {
+      String prefix = realmId + ":";
+      cache.invalidateIf(key -> key.startsWith(prefix));
+    }
+  }
+
+  private String key(RealmModel realm, String token) {
+    return realm.getId() + ":" + hasher.generateHash(token);
+  }
+
+  @Value
+  private static class VerifiedToken {
+    String realmId;
+    String userId;
+    String sessionId;
+    String clientId;
+    // only read once verified
+    AccessToken token;
+
+    Optional<AuthenticationManager.AuthResult> toAuthResult(
+        KeycloakSession session, RealmModel realm) {
+      UserSessionModel userSession = session.sessions().getUserSession(realm, sessionId);
+      if (userSession == null) {
+        userSession = session.sessions().getOfflineUserSession(realm, sessionId);
+      }
+      if (userSession == null
+          || (userSession.getState() != null
+              && userSession.getState() != UserSessionModel.State.LOGGED_IN)) {
+        return Optional.empty();
+      }
+
+      UserModel user = userSession.getUser();
+      if (user == null || !user.isEnabled() || !user.getId().equals(userId)) {
+        return Optional.empty();
+      }
+
+      ClientModel client = realm.getClientByClientId(clientId);
+      if (client == null || !client.isEnabled()) {
+        return Optional.empty();
+      }
+      return Optional.of(new AuthenticationManager.AuthResult(user, userSession, token, client));
+    }
+  }
+}
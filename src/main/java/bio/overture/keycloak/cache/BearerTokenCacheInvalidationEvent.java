@@ -0,0 +1,16 @@
+package bio.overture.keycloak.cache;
+
+import lombok.Value;
+import org.keycloak.cluster.ClusterEvent;
+
+/**
+ * Sent to the other nodes of the cluster when bearer tokens must be verified again: those of a user
+ * session when {@code sessionId} is set, else those of a user when {@code userId} is set, else
+ * every token of the realm.
+ */
+@Value
+public class BearerTokenCacheInvalidationEvent implements ClusterEvent {
+  String realmId;
+  String userId;
+  String sessionId;
+}
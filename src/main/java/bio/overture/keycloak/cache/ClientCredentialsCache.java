@@ -0,0 +1,68 @@
+package bio.overture.keycloak.cache;
+
+import bio.overture.keycloak.utils.Hasher;
+import java.security.SecureRandom;
+import java.util.Optional;
+import lombok.Value;
+import org.keycloak.models.ClientModel;
+import org.keycloak.models.RealmModel;
+
+/**
+ * Remembers the client credentials recently verified on this node, so repeated Basic auth calls
+ * skip the secret validation. Secrets are only kept as digests salted with a random value of this
+ * node, and an entry is only honoured while the client is enabled and its stored secret is the one
+ * that was verified, which covers secret rotation and disabling on any node of the cluster.
+ */
+public class ClientCredentialsCache {
+
+  private final TtlCache<String, VerifiedClient> cache;
+  private final long ttlMillis;
+  private final Hasher hasher = new Hasher();
+  private final String salt = newSalt();
+
+  public ClientCredentialsCache(int maxSize, long ttlMillis) {
+    this.cache = new TtlCache<>(maxSize);
+    this.ttlMillis = ttlMillis;
+  }
+
+  public Optional<ClientModel> get(RealmModel realm, ClientModel client, String secret) {
+    return cache
+        .get(key(realm, client.getClientId(), secret))
+        .filter(verified -> verified.getId().equals(client.getId()))
+        .filter(verified -> client.isEnabled())
+        .filter(verified -> verified.getSecretDigest().equals(digest(client.getSecret())))
+        .map(verified -> client);
+  }
+
+  public void put(RealmModel realm, ClientModel client, String secret) {
+    cache.put(
+        key(realm, client.getClientId(), secret),
+        new VerifiedClient(client.getId(), digest(client.getSecret())),
+        System.currentTimeMillis() + ttlMillis);
+  }
+
+  public void invalidate(RealmModel realm, String clientId) {
+    String prefix = realm.getId() + ":" + clientId + ":";
+    cache.invalidateIf(key -> key.startsWith(prefix));
+  }
+
+  private String key(RealmModel realm, String clientId, String secret) {
+    return realm.getId() + ":" + clientId + ":" + digest(secret);
+  }
+
+  private String digest(String secret) {
+    return hasher.generateHash(salt + secret);
+  }
+
+  private static String newSalt() {
+    byte[] salt = new byte[16];
+    new SecureRandom().nextBytes(salt);
+    return Hasher.toHex(salt);
+  }
+
+  @Value
+  private static class VerifiedClient {
+    String id;
+    String secretDigest;
+  }
+}
@@ -0,0 +1,120 @@
+package bio.overture.keycloak.cache;
+
+import static bio.overture.keycloak.utils.Transactions.afterCommit;
+
+import bio.overture.keycloak.model.RevokedApiKey;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import org.jboss.logging.Logger;
+import org.keycloak.cluster.ClusterEvent;
+import org.keycloak.cluster.ClusterProvider;
+import org.keycloak.models.KeycloakSession;
+
+/**
+ * The signed apiKeys revoked and not expired yet, so signed apiKeys are checked without a database
+ * hit. The set is reloaded from the database periodically, and revocations made in between, on any
+ * node, are added to it right away. Until it is loaded, or when its last load is older than {@code
+ * maxAgeMillis}, it answers nothing and the database must be asked instead.
+ */
+public class RevokedApiKeys {
+
+  public static final String REVOCATION_TASK_KEY = "apikey-revocation";
+
+  private static final Logger logger = Logger.getLogger(RevokedApiKeys.class);
+
+  // how long a revocation made on a node is kept after a load that did not include it, in case it
+  // was committed after the load read the database
+  private static final long PENDING_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+  private final long maxAgeMillis;
+
+  private volatile Set<String> loaded = Set.of();
+  private volatile long loadedAt;
+
+  // revocations received since the last load, and when they were received
+  private final Map<String, Long> pending = new ConcurrentHashMap<>();
+
+  public RevokedApiKeys(long maxAgeMillis) {
+    this.maxAgeMillis = maxAgeMillis;
+  }
+
+  /** Whether the signed apiKey is revoked, empty when the set cannot be trusted. */
+  public Optional<Boolean> isRevoked(String realmId, String id) {
+    long loadedAt = this.loadedAt;
+    if (loadedAt == 0 || System.currentTimeMillis() - loadedAt > maxAgeMillis) {
+      return Optional.empty();
+    }
+    String key = key(realmId, id);
+    return Optional.of(loaded.contains(key) || pending.containsKey(key));
+  }
+
+  /** Replaces the set with the revocations read from the database from {@code loadStartedAt}. */
+  public void replace(Collection<RevokedApiKey> revoked, long loadStartedAt) {
+    Set<String> keys = new HashSet<>();
+    revoked.forEach(apiKey -> keys.add(key(apiKey.getRealmId(), apiKey.getId())));
+    loaded = keys;
+    loadedAt = loadStartedAt;
+    pending
+        .entrySet()
+        .removeIf(
+            entry ->
+                keys.contains(entry.getKey()) || entry.getValue() < loadStartedAt - PENDING_MILLIS);
+  }
+
+  /**
+   * Adds revocations on this node and on every other node of the cluster, once the transaction of
+   * the session is committed, so a rollback revokes nothing.
+   */
+  public void revoke(KeycloakSession session, Set<RevokedApiKey> revoked) {
+    if (revoked.isEmpty()) {
+      return;
+    }
+    afterCommit(
+        session,
+        () -> {
+          addPending(revoked);
+          ClusterProvider cluster = session.getProvider(ClusterProvider.class);
+          if (cluster != null) {
+            // the local node already has them
+            cluster.notify(
+                REVOCATION_TASK_KEY,
+                new ApiKeyRevocationEvent(revoked),
+                true,
+                ClusterProvider.DCNotify.ALL_DCS);
+          }
+        });
+  }
+
+  public void registerClusterListener(KeycloakSession session) {
+    ClusterProvider cluster = session.getProvider(ClusterProvider.class);
+    if (cluster == null) {
+      logger.warn("RevokedApiKeys - No cluster provider, revocations stay local to this node");
+      return;
+    }
+    cluster.registerListener(REVOCATION_TASK_KEY, this::onClusterEvent);
+  }
+
+  public int size() {
+    return loaded.size() + pending.size();
+  }
+
+  private void onClusterEvent(ClusterEvent event) {
+    if (event instanceof ApiKeyRevocationEvent) {
+      addPending(((ApiKeyRevocationEvent) event).getRevoked());
+    }
+  }
+
+  private void addPending(Collection<RevokedApiKey> revoked) {
+    long now = System.currentTimeMillis();
+    revoked.forEach(apiKey -> pending.put(key(apiKey.getRealmId(), apiKey.getId()), now));
+  }
+
+  private static String key(String realmId, String id) {
+    return realmId + ":" + id;
+  }
+}
@@ -0,0 +1,101 @@
+package bio.overture.keycloak.cache;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+import lombok.RequiredArgsConstructor;
+
+/**
+ * Node local cache bounded in size, where every entry carries its own expiration time. When full,
+ * expired entries are dropped first and then arbitrary ones, so the cache never grows past {@code
+ * maxSize}.
+ */
+@RequiredArgsConstructor
+public class TtlCache<K, V> {
+
+  private final int maxSize;
+
+  private final Map<K, Entry<V>> entries = new ConcurrentHashMap<>();
+
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+
+  public Optional<V> get(K key) {
+    Entry<V> entry = entries.get(key);
+    if (entry == null) {
+      misses.increment();
+      return Optional.empty();
+    }
+    if (entry.isExpired(System.currentTimeMillis())) {
+      entries.remove(key, entry);
+      misses.increment();
+      return Optional.empty();
+    }
+    hits.increment();
+    return Optional.of(entry.value);
+  }
+
+  public void put(K key, V value, long expiresAt) {
+    if (maxSize <= 0 || expiresAt <= System.currentTimeMillis()) {
+      return;
+    }
+    if (entries.size() >= maxSize && !entries.containsKey(key)) {
+      evict();
+    }
+    entries.put(key, new Entry<>(value, expiresAt));
+  }
+
+  public void invalidate(K key) {
+    entries.remove(key);
+  }
+
+  public void invalidateIf(Predicate<K> predicate) {
+    entries.keySet().removeIf(predicate);
+  }
+
+  public void invalidateValuesIf(Predicate<V> predicate) {
+    entries.values().removeIf(entry -> predicate.test(entry.value));
+  }
+
+  public void invalidateAll() {
+    entries.clear();
+  }
+
+  public int size() {
+    return entries.size();
+  }
+
+  public long getHits() {
+    return hits.sum();
+  }
+
+  public long getMisses() {
+    return misses.sum();
+  }
+
+  private void evict() {
+    long now = System.currentTimeMillis();
+    entries.values().removeIf(entry -> entry.isExpired(now));
+
+    // still full, make room for a tenth of the cache
+    Iterator<K> keys = entries.keySet().iterator();
+    int toRemove = entries.size() - maxSize + Math.max(1, maxSize / 10);
+    while (toRemove-- > 0 && keys.hasNext()) {
+      keys.next();
+      keys.remove();
+    }
+  }
+
+  @RequiredArgsConstructor
+  private static class Entry<V> {
+    private final V value;
+    private final long expiresAt;
+
+    boolean isExpired(long now) {
+      return expiresAt <= now;
+    }
+  }
+}
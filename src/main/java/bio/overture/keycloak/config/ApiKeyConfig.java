@@ -0,0 +1,84 @@
+package bio.overture.keycloak.config;
+
+import java.util.List;
+import lombok.Builder;
+import lombok.Value;
+import org.keycloak.Config;
+
+/**
+ * Plugin settings, read from the {@code spi-realm-restapi-extension-apikey-*} Keycloak options,
+ * e.g. {@code --spi-realm-restapi-extension-apikey-cache-max-size=10000}.
+ */
+@Value
+@Builder
+public class ApiKeyConfig {
+
+  int cacheMaxSize;
+  long cacheTtlSeconds;
+  int checkBatchMaxSize;
+  long lookupBatchWindowMillis;
+  int lookupBatchMaxSize;
+  String adminRole;
+  String adminGroup;
+  int bulkMaxSize;
+  int exportBatchSize;
+  int clientCacheMaxSize;
+  long clientCacheTtlSeconds;
+  int bearerCacheMaxSize;
+  long bearerCacheTtlSeconds;
+  long authorizationIndexTtlSeconds;
+  int decisionCacheMaxSize;
+  long decisionCacheTtlSeconds;
+  int purgeIntervalSeconds;
+  long purgeRetentionDays;
+  int purgeBatchSize;
+  int usageFlushIntervalSeconds;
+  int usageMaxKeys;
+  int rateLimitSlots;
+  int revocationRefreshSeconds;
+  long callerRateLimitPerSecond;
+  long callerRateLimitBurst;
+  long keyRateLimitPerSecond;
+  long keyRateLimitBurst;
+  List<String> warmupRealms;
+  int warmupMaxKeys;
+  int warmupIterations;
+
+  public static ApiKeyConfig fromScope(Config.Scope scope) {
+    return ApiKeyConfig.builder()
+        .cacheMaxSize(scope.getInt("cacheMaxSize", 10000))
+        .cacheTtlSeconds(scope.getLong("cacheTtlSeconds", 60L))
+        .checkBatchMaxSize(scope.getInt("checkBatchMaxSize", 100))
+        .lookupBatchWindowMillis(scope.getLong("lookupBatchWindowMillis", 2L))
+        .lookupBatchMaxSize(scope.getInt("lookupBatchMaxSize", 100))
+        .adminRole(scope.get("adminRole"))
+        .adminGroup(scope.get("adminGroup", "ADMIN"))
+        .bulkMaxSize(scope.getInt("bulkMaxSize", 1000))
+        .exportBatchSize(scope.getInt("exportBatchSize", 1000))
+        .clientCacheMaxSize(scope.getInt("clientCacheMaxSize", 1000))
+        .clientCacheTtlSeconds(scope.getLong("clientCacheTtlSeconds", 30L))
+        .bearerCacheMaxSize(scope.getInt("bearerCacheMaxSize", 10000))
+        .bearerCacheTtlSeconds(scope.getLong("bearerCacheTtlSeconds", 300L))
+        .authorizationIndexTtlSeconds(scope.getLong("authorizationIndexTtlSeconds", 300L))
+        .decisionCacheMaxSize(scope.getInt("decisionCacheMaxSize", 10000))
+        .decisionCacheTtlSeconds(scope.getLong("decisionCacheTtlSeconds", 30L))
+        .purgeIntervalSeconds(scope.getInt("purgeIntervalSeconds", 3600))
+        .purgeRetentionDays(scope.getLong("purgeRetentionDays", 30L))
+        .purgeBatchSize(scope.getInt("purgeBatchSize", 500))
+        .usageFlushIntervalSeconds(scope.getInt("usageFlushIntervalSeconds", 60))
+        .usageMaxKeys(scope.getInt("usageMaxKeys", 100000))
+        .rateLimitSlots(scope.getInt("rateLimitSlots", 65536))
+        .revocationRefreshSeconds(scope.getInt("revocationRefreshSeconds", 30))
+        .callerRateLimitPerSecond(scope.getLong("callerRateLimitPerSecond", 500L))
+        .callerRateLimitBurst(scope.getLong("callerRateLimitBurst", 1000L))
+        .keyRateLimitPerSecond(scope.getLong("keyRateLimitPerSecond", 100L))
+        .keyRateLimitBurst(scope.getLong("keyRateLimitBurst", 200L))
+        .warmupRealms(
+            scope.getArray("warmupRealms") == null
+                ? List.of()
+                : List.of(scope.getArray("warmupRealms")))
+        .warmupMaxKeys(scope.getInt("warmupMaxKeys", 10000))
+        .warmupIterations(scope.getInt("warmupIterations", 1000))
+        .build();
+  }
+}
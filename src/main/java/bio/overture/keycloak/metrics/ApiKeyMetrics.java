@@ -0,0 +1,272 @@
+package bio.overture.keycloak.metrics;
+
+import bio.overture.keycloak.cache.ApiKeyCache;
+import bio.overture.keycloak.cache.ApiKeyLookupCoalescer;
+import bio.overture.keycloak.cache.ApiKeyUsageTracker;
+import bio.overture.keycloak.cache.BearerTokenCache;
+import bio.overture.keycloak.model.dto.CheckApiKeyResponse;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.ws.rs.WebApplicationException;
+import jakarta.ws.rs.core.Response;
+import jakarta.ws.rs.core.StreamingOutput;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * Micrometer instrumentation of the plugin. With the global registry, meters are exposed on the
+ * Keycloak metrics endpoint when metrics are enabled ({@code --metrics-enabled=true}); timers
+ * publish histograms so percentiles can be computed across nodes.
+ */
+public class ApiKeyMetrics {
+
+  public static final String ENDPOINT_LIST = "list_api_keys";
+  public static final String ENDPOINT_ISSUE = "issue_api_key";
+  public static final String ENDPOINT_REVOKE = "revoke_api_key";
+  public static final String ENDPOINT_BULK_ISSUE = "bulk_issue_api_keys";
+  public static final String ENDPOINT_BULK_REVOKE = "bulk_revoke_api_keys";
+  public static final String ENDPOINT_EXPORT = "export_api_keys";
+  public static final String ENDPOINT_SEARCH = "search_api_keys";
+  public static final String ENDPOINT_CHECK = "check_api_key";
+  public static final String ENDPOINT_CHECK_BATCH = "check_api_keys";
+  public static final String ENDPOINT_CACHE_STATS = "check_api_key_cache";
+
+  public static final String PHASE_AUTH = "auth";
+  public static final String PHASE_LOOKUP = "lookup";
+  public static final String PHASE_POLICY_EVALUATION = "policy_evaluation";
+  public static final String PHASE_SERIALIZATION = "serialization";
+
+  public static final String LOOKUP_BY_ID = "by_id";
+  public static final String LOOKUP_BY_HASH = "by_hash";
+  public static final String LOOKUP_BY_HASHES = "by_hashes";
+  public static final String LOOKUP_LIST = "list";
+  public static final String LOOKUP_SEARCH = "search";
+  public static final String LOOKUP_SIGNED = "signed";
+
+  public static final String AUTH_BASIC = "basic";
+  public static final String AUTH_BEARER = "bearer";
+
+  public static final String OUTCOME_NOT_FOUND = "not_found";
+  public static final String OUTCOME_MALFORMED = "malformed";
+  public static final String OUTCOME_FORBIDDEN = "forbidden";
+  public static final String OUTCOME_RATE_LIMITED = "rate_limited";
+
+  private final MeterRegistry registry;
+
+  // gauges and function counters holding a cache, removed on close
+  private final List<Meter> bound = new ArrayList<>();
+
+  // meters of the request path by their tags, so recording never goes through the registry
+  private final Map<String, Timer> requestTimers = new ConcurrentHashMap<>();
+  private final Map<String, Timer> phaseTimers = new ConcurrentHashMap<>();
+  private final Map<String, DistributionSummary> rowSummaries = new ConcurrentHashMap<>();
+  private final Map<String, Counter> checkOutcomes = new ConcurrentHashMap<>();
+  private final Map<String, Counter> authentications = new ConcurrentHashMap<>();
+
+  public ApiKeyMetrics(MeterRegistry registry) {
+    this.registry = registry;
+  }
+
+  /** Times a request, tagged with the status of its response or of the exception it threw. */
+  public Response timeRequest(String endpoint, Supplier<Response> handler) {
+    Timer.Sample sample = Timer.start(registry);
+    String status = "500";
+    try {
+      Response response = handler.get();
+      status = String.valueOf(response.getStatus());
+      return response;
+    } catch (WebApplicationException e) {
+      status = String.valueOf(e.getResponse().getStatus());
+      throw e;
+    } finally {
+      sample.stop(requestTimer(endpoint, status));
+    }
+  }
+
+  public <T> T timePhase(String endpoint, String phase, Supplier<T> step) {
+    return phaseTimer(endpoint, phase).record(step);
+  }
+
+  public void timePhase(String endpoint, String phase, Runnable step) {
+    phaseTimer(endpoint, phase).record(step);
+  }
+
+  public Timer phaseTimer(String endpoint, String phase) {
+    return phaseTimers.computeIfAbsent(
+        endpoint + ":" + phase,
+        key ->
+            Timer.builder("apikey.phases")
+                .description("Latency of each phase of the apiKey endpoints")
+                .tag("endpoint", endpoint)
+                .tag("phase", phase)
+                .publishPercentileHistogram()
+                .register(registry));
+  }
+
+  private Timer requestTimer(String endpoint, String status) {
+    return requestTimers.computeIfAbsent(
+        endpoint + ":" + status,
+        key ->
+            Timer.builder("apikey.requests")
+                .description("Latency of the apiKey endpoints")
+                .tag("endpoint", endpoint)
+                .tag("status", status)
+                .publishPercentileHistogram()
+                .register(registry));
+  }
+
+  /** Times the writing of a streamed response body, which happens after the endpoint returned. */
+  public StreamingOutput timeSerialization(String endpoint, StreamingOutput body) {
+    Timer timer = phaseTimer(endpoint, PHASE_SERIALIZATION);
+    return output -> {
+      Timer.Sample sample = Timer.start(registry);
+      try {
+        body.write(output);
+      } finally {
+        sample.stop(timer);
+      }
+    };
+  }
+
+  /** Rows read from the database by one lookup. */
+  public void recordRowsScanned(String lookup, int rows) {
+    rowSummaries
+        .computeIfAbsent(
+            lookup,
+            key ->
+                DistributionSummary.builder("apikey.lookup.rows")
+                    .description("Rows read from the database per apiKey lookup")
+                    .tag("lookup", lookup)
+                    .register(registry))
+        .record(rows);
+  }
+
+  public void countCheckOutcome(CheckApiKeyResponse response) {
+    String outcome;
+    if (response.isValid()) {
+      outcome = "valid";
+    } else if (response.getExp() < System.currentTimeMillis()) {
+      outcome = "expired";
+    } else {
+      outcome = "revoked";
+    }
+    countCheckOutcome(outcome);
+  }
+
+  public void countCheckOutcome(String outcome) {
+    checkOutcomes
+        .computeIfAbsent(
+            outcome,
+            key ->
+                Counter.builder("apikey.check.outcomes")
+                    .description("Results of the apiKey checks")
+                    .tag("outcome", outcome)
+                    .register(registry))
+        .increment();
+  }
+
+  public void countAuthentication(String method, boolean success) {
+    String result = success ? "success" : "failure";
+    authentications
+        .computeIfAbsent(
+            method + ":" + result,
+            key ->
+                Counter.builder("apikey.authentications")
+                    .description("Authentications to the apiKey endpoints, by method")
+                    .tag("method", method)
+                    .tag("result", result)
+                    .register(registry))
+        .increment();
+  }
+
+  public void bindApiKeyCache(ApiKeyCache apiKeyCache) {
+    bind(
+        Gauge.builder("apikey.cache.size", apiKeyCache, ApiKeyCache::size)
+            .description("apiKeys in the cache of this node")
+            .register(registry));
+    bind(
+        FunctionCounter.builder("apikey.cache.requests", apiKeyCache, ApiKeyCache::getHits)
+            .description("apiKey cache lookups")
+            .tag("result", "hit")
+            .register(registry));
+    bind(
+        FunctionCounter.builder("apikey.cache.requests", apiKeyCache, ApiKeyCache::getMisses)
+            .description("apiKey cache lookups")
+            .tag("result", "miss")
+            .register(registry));
+  }
+
+  public void bindLookupCoalescer(ApiKeyLookupCoalescer lookupCoalescer) {
+    bind(
+        FunctionCounter.builder(
+                "apikey.lookup.coalesced", lookupCoalescer, ApiKeyLookupCoalescer::getShared)
+            .description("apiKey lookups answered by the fetch of another lookup")
+            .tag("result", "shared")
+            .register(registry));
+    bind(
+        FunctionCounter.builder(
+                "apikey.lookup.coalesced", lookupCoalescer, ApiKeyLookupCoalescer::getBatched)
+            .description("apiKey lookups answered by the fetch of another lookup")
+            .tag("result", "batched")
+            .register(registry));
+    bind(
+        FunctionCounter.builder(
+                "apikey.lookup.fetches", lookupCoalescer, ApiKeyLookupCoalescer::getFetches)
+            .description("Queries run for apiKeys missing from the cache")
+            .register(registry));
+  }
+
+  public void bindBearerTokenCache(BearerTokenCache bearerTokenCache) {
+    bind(
+        Gauge.builder("apikey.bearer.cache.size", bearerTokenCache, BearerTokenCache::size)
+            .description("Verified bearer tokens in the cache of this node")
+            .register(registry));
+    bind(
+        FunctionCounter.builder(
+                "apikey.bearer.cache.requests", bearerTokenCache, BearerTokenCache::getHits)
+            .description("Bearer token cache lookups")
+            .tag("result", "hit")
+            .register(registry));
+    bind(
+        FunctionCounter.builder(
+                "apikey.bearer.cache.requests", bearerTokenCache, BearerTokenCache::getMisses)
+            .description("Bearer token cache lookups")
+            .tag("result", "miss")
+            .register(registry));
+  }
+
+  public void bindUsageTracker(ApiKeyUsageTracker usageTracker) {
+    bind(
+        Gauge.builder("apikey.usage.pending", usageTracker, ApiKeyUsageTracker::size)
+            .description("apiKeys with uses not yet written by this node")
+            .register(registry));
+    bind(
+        FunctionCounter.builder(
+                "apikey.usage.dropped", usageTracker, ApiKeyUsageTracker::getDropped)
+            .description("apiKey uses not counted because too many apiKeys were tracked")
+            .register(registry));
+  }
+
+  private synchronized void bind(Meter meter) {
+    bound.add(meter);
+  }
+
+  /** Removes the meters of the plugin, which are dropped with the provider factory. */
+  public synchronized void close() {
+    bound.forEach(registry::remove);
+    bound.clear();
+    for (Map<String, ? extends Meter> meters :
+        List.of(requestTimers, phaseTimers, rowSummaries, checkOutcomes, authentications)) {
+      meters.values().forEach(registry::remove);
+      meters.clear();
+    }
+  }
+}
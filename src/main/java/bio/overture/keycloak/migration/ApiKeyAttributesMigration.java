@@ -0,0 +1,208 @@
+package bio.overture.keycloak.migration;
+
+import static bio.overture.keycloak.utils.Converters.jsonStringToClass;
+
+import bio.overture.keycloak.model.ApiKey;
+import bio.overture.keycloak.params.ScopeName;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import liquibase.change.custom.CustomTaskChange;
+import liquibase.database.Database;
+import liquibase.database.jvm.JdbcConnection;
+import liquibase.exception.CustomChangeException;
+import liquibase.exception.ValidationErrors;
+import liquibase.resource.ResourceAccessor;
+import org.jboss.logging.Logger;
+
+/**
+ * Moves the apiKeys stored as json encoded {@code api-keys} user attributes into the {@code
+ * API_KEY} table, then deletes the attributes moved and their {@code api-key-hash} companions.
+ * Attributes that cannot be read, or hold an apiKey already moved, are left in place and logged so
+ * they can be recovered by hand.
+ */
+public class ApiKeyAttributesMigration implements CustomTaskChange {
+
+  private static final Logger logger = Logger.getLogger(ApiKeyAttributesMigration.class);
+
+  private static final String API_KEYS_ATTRIBUTE = "api-keys";
+  private static final String API_KEY_HASH_ATTRIBUTE = "api-key-hash";
+
+  // rows per JDBC batch, inserted or deleted
+  private static final int BATCH_SIZE = 500;
+
+  private int migrated = 0;
+  private int skipped = 0;
+
+  @Override
+  public void execute(Database database) throws CustomChangeException {
+    Connection connection = ((JdbcConnection) database.getConnection()).getUnderlyingConnection();
+
+    String userAttributeTable = tableName(database, "USER_ATTRIBUTE");
+    String userTable = tableName(database, "USER_ENTITY");
+    String apiKeyTable = tableName(database, "API_KEY");
+    String apiKeyScopeTable = tableName(database, "API_KEY_SCOPE");
+
+    try (PreparedStatement select =
+            connection.prepareStatement(
+                "SELECT ua.ID, ua.VALUE, ua.USER_ID, u.REALM_ID FROM "
+                    + userAttributeTable
+                    + " ua JOIN "
+                    + userTable
+                    + " u ON ua.USER_ID = u.ID WHERE ua.NAME = ?");
+        PreparedStatement selectMoved =
+            connection.prepareStatement("SELECT HASH FROM " + apiKeyTable);
+        PreparedStatement insertKey =
+            connection.prepareStatement(
+                "INSERT INTO "
+                    + apiKeyTable
+                    + " (ID, HASH, USER_ID, REALM_ID, ISSUE_DATE, EXPIRY_DATE, REVOKED, DESCRIPTION)"
+                    + " VALUES (?, ?, ?, ?, ?, ?, ?, ?)");
+        PreparedStatement insertScope =
+            connection.prepareStatement(
+                "INSERT INTO " + apiKeyScopeTable + " (API_KEY_ID, SCOPE) VALUES (?, ?)");
+        PreparedStatement selectHashes =
+            connection.prepareStatement(
+                "SELECT ID, USER_ID, VALUE FROM " + userAttributeTable + " WHERE NAME = ?");
+        PreparedStatement delete =
+            connection.prepareStatement("DELETE FROM " + userAttributeTable + " WHERE ID = ?")) {
+
+      // apiKeys moved by an earlier run, the attributes kept then are kept again
+      Set<String> hashes = new HashSet<>();
+      try (ResultSet rs = selectMoved.executeQuery()) {
+        while (rs.next()) {
+          hashes.add(rs.getString(1));
+        }
+      }
+
+      select.setString(1, API_KEYS_ATTRIBUTE);
+      // attributes moved, and the user and hash of their apiKeys, to delete their companions
+      List<String> movedAttributeIds = new ArrayList<>();
+      Set<String> movedUserHashes = new HashSet<>();
+      try (ResultSet rs = select.executeQuery()) {
+        while (rs.next()) {
+          String attributeId = rs.getString(1);
+          String userId = rs.getString(3);
+          ApiKey apiKey;
+          try {
+            apiKey = jsonStringToClass(rs.getString(2), ApiKey.class);
+          } catch (RuntimeException e) {
+            logger.warnf(
+                e, "Keeping unreadable apiKey attribute %s of user %s", attributeId, userId);
+            skipped++;
+            continue;
+          }
+          if (apiKey.getName() == null
+              || apiKey.getIssueDate() == null
+              || apiKey.getExpiryDate() == null) {
+            logger.warnf("Keeping incomplete apiKey attribute %s of user %s", attributeId, userId);
+            skipped++;
+            continue;
+          }
+          if (!hashes.add(apiKey.getName())) {
+            logger.warnf(
+                "Keeping apiKey attribute %s of user %s, its apiKey was already moved",
+                attributeId, userId);
+            skipped++;
+            continue;
+          }
+
+          String id = UUID.randomUUID().toString();
+          insertKey.setString(1, id);
+          insertKey.setString(2, apiKey.getName());
+          insertKey.setString(3, userId);
+          insertKey.setString(4, rs.getString(4));
+          insertKey.setLong(5, apiKey.getIssueDate().getTime());
+          insertKey.setLong(6, apiKey.getExpiryDate().getTime());
+          insertKey.setBoolean(7, Boolean.TRUE.equals(apiKey.getIsRevoked()));
+          insertKey.setString(8, apiKey.getDescription());
+          insertKey.addBatch();
+
+          if (apiKey.getScope() != null) {
+            for (ScopeName scope : apiKey.getScope()) {
+              insertScope.setString(1, id);
+              insertScope.setString(2, scope.toString());
+              insertScope.addBatch();
+            }
+          }
+          movedAttributeIds.add(attributeId);
+          movedUserHashes.add(userId + ":" + apiKey.getName());
+          if (++migrated % BATCH_SIZE == 0) {
+            insert(insertKey, insertScope);
+          }
+        }
+      }
+      if (migrated % BATCH_SIZE != 0) {
+        insert(insertKey, insertScope);
+      }
+
+      // the companions of the attributes kept are kept with them
+      selectHashes.setString(1, API_KEY_HASH_ATTRIBUTE);
+      try (ResultSet rs = selectHashes.executeQuery()) {
+        while (rs.next()) {
+          if (movedUserHashes.contains(rs.getString(2) + ":" + rs.getString(3))) {
+            movedAttributeIds.add(rs.getString(1));
+          }
+        }
+      }
+
+      deleteAttributes(delete, movedAttributeIds);
+    } catch (SQLException e) {
+      throw new CustomChangeException("Failed to migrate apiKey user attributes", e);
+    }
+  }
+
+  /** Sends the apiKeys batched, then their scopes, which reference them. */
+  private static void insert(PreparedStatement insertKey, PreparedStatement insertScope)
+      throws SQLException {
+    insertKey.executeBatch();
+    insertScope.executeBatch();
+  }
+
+  private static void deleteAttributes(PreparedStatement delete, List<String> attributeIds)
+      throws SQLException {
+    int batched = 0;
+    for (String attributeId : attributeIds) {
+      delete.setString(1, attributeId);
+      delete.addBatch();
+      if (++batched % BATCH_SIZE == 0) {
+        delete.executeBatch();
+      }
+    }
+    if (batched % BATCH_SIZE != 0) {
+      delete.executeBatch();
+    }
+  }
+
+  private String tableName(Database database, String table) {
+    // same naming as Keycloak's own custom changes
+    String schema = database.getDefaultSchemaName();
+    return schema != null ? schema + "." + table : table;
+  }
+
+  @Override
+  public String getConfirmationMessage() {
+    return "Migrated "
+        + migrated
+        + " apiKeys from user attributes, kept "
+        + skipped
+        + " attributes that could not be migrated";
+  }
+
+  @Override
+  public void setUp() {}
+
+  @Override
+  public void setFileOpener(ResourceAccessor resourceAccessor) {}
+
+  @Override
+  public ValidationErrors validate(Database database) {
+    return new ValidationErrors();
+  }
+}
@@ -1,13 +1,10 @@
 package bio.overture.keycloak.model;
 
+import static bio.overture.keycloak.utils.Converters.MINIMAL_JSON_WRITER;
+import static bio.overture.keycloak.utils.Converters.PRETTY_JSON_WRITER;
+
 import bio.overture.keycloak.params.ScopeName;
 import com.fasterxml.jackson.annotation.JsonInclude;
-import com.fasterxml.jackson.core.util.MinimalPrettyPrinter;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.ObjectWriter;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
-import java.util.Comparator;
 import java.util.Date;
 import java.util.Set;
 import lombok.*;
@@ -26,24 +23,21 @@ public class ApiKey {
   private Boolean isRevoked;
   private String description;
 
+  @JsonInclude(JsonInclude.Include.NON_NULL)
+  private Date lastUsed;
+
+  @JsonInclude(JsonInclude.Include.NON_NULL)
+  private Long usageCount;
+
   @SneakyThrows
   @Override
   public String toString() {
-    DateFormat df = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ");
-
-    ObjectWriter ow = new ObjectMapper().writer(df).withDefaultPrettyPrinter();
-    return ow.writeValueAsString(this);
+    return PRETTY_JSON_WRITER.writeValueAsString(this);
   }
 
   @SneakyThrows
   public String toJsonMinimal() {
     // parses this instance into a simplified json with no indentation and date format as timestamp
-    return new ObjectMapper().writer(new MinimalPrettyPrinter()).writeValueAsString(this);
+    return MINIMAL_JSON_WRITER.writeValueAsString(this);
   }
-
-  public static Comparator<ApiKey> byName = Comparator.comparing(ApiKey::getName);
-  public static Comparator<ApiKey> byExpiryDate = Comparator.comparing(ApiKey::getExpiryDate);
-  public static Comparator<ApiKey> byIssueDate = Comparator.comparing(ApiKey::getIssueDate);
-  public static Comparator<ApiKey> byRevoked = Comparator.comparing(ApiKey::getIsRevoked);
-  public static Comparator<ApiKey> byDescription = Comparator.comparing(ApiKey::getDescription);
 }
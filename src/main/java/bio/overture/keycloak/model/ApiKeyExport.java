@@ -0,0 +1,32 @@
+package bio.overture.keycloak.model;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import java.util.Set;
+import lombok.Builder;
+import lombok.Data;
+
+/**
+ * One apiKey as listed to Admin users, by the export and the search. Its hash is left out, dates
+ * are epoch milliseconds as stored.
+ */
+@Data
+@Builder
+public class ApiKeyExport {
+  private String id;
+  private String userId;
+  private Set<String> scope;
+  private long issueDate;
+  private long expiryDate;
+  private Boolean isRevoked;
+
+  @JsonInclude(JsonInclude.Include.NON_NULL)
+  private Long revokedDate;
+
+  private String description;
+  private String type;
+
+  @JsonInclude(JsonInclude.Include.NON_NULL)
+  private Long lastUsed;
+
+  private long usageCount;
+}
@@ -0,0 +1,16 @@
+package bio.overture.keycloak.model;
+
+import java.util.List;
+import lombok.Builder;
+import lombok.Value;
+
+/** One page of the apiKeys of a user, with the total matching the search. */
+@Value
+@Builder
+public class ApiKeyPage {
+  List<ApiKey> apiKeys;
+  long total;
+
+  // null on the last page
+  String nextCursor;
+}
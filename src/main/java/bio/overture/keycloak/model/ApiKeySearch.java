@@ -0,0 +1,20 @@
+package bio.overture.keycloak.model;
+
+import lombok.Builder;
+import lombok.Value;
+
+/**
+ * Filters of the Admin search of the apiKeys of a realm, each ignored when null. Dates are epoch
+ * milliseconds, the lower bounds included and the upper ones excluded.
+ */
+@Value
+@Builder
+public class ApiKeySearch {
+  String userId;
+  String scope;
+  Long expiresAfter;
+  Long expiresBefore;
+  Long issuedAfter;
+  Long issuedBefore;
+  Boolean revoked;
+}
@@ -0,0 +1,19 @@
+package bio.overture.keycloak.model;
+
+import bio.overture.keycloak.params.ScopeName;
+import java.util.Set;
+import lombok.Builder;
+import lombok.Value;
+
+/** Immutable, session independent view of a stored apiKey, safe to share between requests. */
+@Value
+@Builder
+public class ApiKeySnapshot {
+  String id;
+  String hash;
+  String userId;
+  String realmId;
+  long expiryDate;
+  boolean revoked;
+  Set<ScopeName> scope;
+}
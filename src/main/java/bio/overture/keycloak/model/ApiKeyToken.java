@@ -0,0 +1,23 @@
+package bio.overture.keycloak.model;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import java.util.HashSet;
+import java.util.Set;
+import lombok.Getter;
+import lombok.Setter;
+import org.keycloak.representations.JsonWebToken;
+
+/**
+ * Claims of a signed apiKey: the id of its stored apiKey ({@code jti}), its owner ({@code sub}),
+ * its expiry ({@code exp}) and its scopes.
+ */
+@Getter
+@Setter
+public class ApiKeyToken extends JsonWebToken {
+
+  // tells apiKeys apart from the other tokens signed with the realm keys
+  public static final String TYPE = "ApiKey";
+
+  @JsonProperty("scope")
+  private Set<String> scope = new HashSet<>();
+}
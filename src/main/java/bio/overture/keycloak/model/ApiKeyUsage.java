@@ -0,0 +1,11 @@
+package bio.overture.keycloak.model;
+
+import lombok.Value;
+
+/** Uses of an apiKey counted by one node since its last flush. */
+@Value
+public class ApiKeyUsage {
+  String id;
+  long count;
+  long lastUsed;
+}
@@ -0,0 +1,11 @@
+package bio.overture.keycloak.model;
+
+import java.io.Serializable;
+import lombok.Value;
+
+/** A revoked signed apiKey, whose signature stays valid until it expires. */
+@Value
+public class RevokedApiKey implements Serializable {
+  String realmId;
+  String id;
+}
@@ -1,9 +1,9 @@
 package bio.overture.keycloak.model.dto;
 
+import static bio.overture.keycloak.utils.Converters.JSON_WRITER;
+
 import bio.overture.keycloak.model.ApiKey;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
+import com.fasterxml.jackson.annotation.JsonInclude;
 import java.util.List;
 import lombok.*;
 
@@ -17,12 +17,17 @@ public class ApiKeyResponse {
 
   private int count;
 
+  // number of apiKeys matching the search, on every page
+  private long total;
+
+  @JsonInclude(JsonInclude.Include.NON_NULL)
+  private String nextCursor;
+
   private List<ApiKey> resultSet;
 
   @SneakyThrows
   @Override
   public String toString() {
-    DateFormat df = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ");
-    return new ObjectMapper().writer(df).writeValueAsString(this);
+    return JSON_WRITER.writeValueAsString(this);
   }
 }
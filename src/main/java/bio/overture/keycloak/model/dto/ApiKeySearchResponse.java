@@ -0,0 +1,22 @@
+package bio.overture.keycloak.model.dto;
+
+import bio.overture.keycloak.model.ApiKeyExport;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import java.util.List;
+import lombok.Builder;
+import lombok.Data;
+
+@Data
+@Builder
+public class ApiKeySearchResponse {
+
+  private int limit;
+
+  private int count;
+
+  // null on the last page
+  @JsonInclude(JsonInclude.Include.NON_NULL)
+  private String nextCursor;
+
+  private List<ApiKeyExport> resultSet;
+}
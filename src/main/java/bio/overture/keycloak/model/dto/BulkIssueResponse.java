@@ -0,0 +1,23 @@
+package bio.overture.keycloak.model.dto;
+
+import static bio.overture.keycloak.utils.Converters.JSON_WRITER;
+
+import bio.overture.keycloak.model.ApiKey;
+import java.util.List;
+import lombok.*;
+
+@Data
+@Builder
+public class BulkIssueResponse {
+
+  private int issued;
+
+  // in the order of the requests
+  private List<ApiKey> apiKeys;
+
+  @SneakyThrows
+  @Override
+  public String toString() {
+    return JSON_WRITER.writeValueAsString(this);
+  }
+}
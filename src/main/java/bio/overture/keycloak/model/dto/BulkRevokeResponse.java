@@ -0,0 +1,11 @@
+package bio.overture.keycloak.model.dto;
+
+import lombok.Builder;
+import lombok.Data;
+
+@Data
+@Builder
+public class BulkRevokeResponse {
+
+  private int revoked;
+}
@@ -0,0 +1,13 @@
+package bio.overture.keycloak.model.dto;
+
+import lombok.Builder;
+import lombok.Data;
+
+@Data
+@Builder
+public class CacheStatsResponse {
+
+  private int size;
+  private long hits;
+  private long misses;
+}
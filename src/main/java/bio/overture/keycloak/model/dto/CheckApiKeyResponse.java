@@ -1,6 +1,7 @@
 package bio.overture.keycloak.model.dto;
 
 import bio.overture.keycloak.params.ScopeName;
+import com.fasterxml.jackson.annotation.JsonInclude;
 import java.util.Set;
 import lombok.Builder;
 import lombok.Data;
@@ -9,6 +10,10 @@ import lombok.Data;
 @Builder
 public class CheckApiKeyResponse {
 
+  // only set in batch checks, to match each result with its apiKey
+  @JsonInclude(JsonInclude.Include.NON_NULL)
+  private String apiKey;
+
   private String user_id;
   private long exp;
   private boolean isRevoked;
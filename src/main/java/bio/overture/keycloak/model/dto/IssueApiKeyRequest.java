@@ -0,0 +1,23 @@
+package bio.overture.keycloak.model.dto;
+
+import static bio.overture.keycloak.utils.Constants.API_KEY_TYPE_OPAQUE;
+
+import java.util.List;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/** One apiKey to issue with {@code POST /api_key/bulk}, with the parameters of POST /api_key. */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class IssueApiKeyRequest {
+
+  private String user_id;
+  private List<String> scopes;
+  private String description;
+
+  @Builder.Default private String type = API_KEY_TYPE_OPAQUE;
+}
@@ -0,0 +1,12 @@
+package bio.overture.keycloak.model.dto;
+
+import lombok.Builder;
+import lombok.Data;
+
+@Data
+@Builder
+public class ReadinessResponse {
+
+  // ready or warming_up
+  private String status;
+}
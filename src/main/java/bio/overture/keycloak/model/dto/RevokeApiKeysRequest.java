@@ -0,0 +1,26 @@
+package bio.overture.keycloak.model.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * The apiKeys to revoke with {@code POST /api_key/revoke}: those matching every criterion given.
+ * Dates are epoch milliseconds.
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class RevokeApiKeysRequest {
+
+  private String user_id;
+  private String scope;
+  private Long issuedAfter;
+  private Long issuedBefore;
+
+  public boolean hasCriteria() {
+    return user_id != null || scope != null || issuedAfter != null || issuedBefore != null;
+  }
+}
@@ -0,0 +1,72 @@
+package bio.overture.keycloak.model.entity;
+
+import jakarta.persistence.*;
+import java.util.HashSet;
+import java.util.Set;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+import org.hibernate.annotations.BatchSize;
+
+/**
+ * Plugin owned storage of an apiKey, registered through {@link
+ * bio.overture.keycloak.provider.ApiKeyEntityProvider}. Dates are stored as epoch milliseconds, as
+ * Keycloak does for its own entities.
+ */
+@Entity
+@Table(name = "API_KEY")
+@NamedQuery(
+    name = "ApiKeyEntity.findByIdWithScopes",
+    query = "select k from ApiKeyEntity k left join fetch k.scopes where k.id = :id")
+@Getter
+@Setter
+@NoArgsConstructor
+public class ApiKeyEntity {
+
+  @Id
+  @Column(name = "ID", length = 36)
+  private String id;
+
+  @Column(name = "HASH", nullable = false, unique = true, length = 64)
+  private String hash;
+
+  @Column(name = "USER_ID", nullable = false, length = 36)
+  private String userId;
+
+  @Column(name = "REALM_ID", nullable = false, length = 36)
+  private String realmId;
+
+  @Column(name = "ISSUE_DATE", nullable = false)
+  private Long issueDate;
+
+  @Column(name = "EXPIRY_DATE", nullable = false)
+  private Long expiryDate;
+
+  @Column(name = "REVOKED", nullable = false)
+  private boolean revoked;
+
+  // null unless revoked
+  @Column(name = "REVOKED_DATE")
+  private Long revokedDate;
+
+  @Column(name = "DESCRIPTION")
+  private String description;
+
+  // signed apiKeys are checked against their signature and the revoked ones
+  @Column(name = "SIGNED", nullable = false)
+  private boolean signed;
+
+  // written in batches by ApiKeyService.addUsage only, never by entity updates that would overwrite
+  // the uses counted meanwhile
+  @Column(name = "LAST_USED", updatable = false)
+  private Long lastUsed;
+
+  @Column(name = "USAGE_COUNT", nullable = false, updatable = false)
+  private long usageCount;
+
+  @ElementCollection
+  @CollectionTable(name = "API_KEY_SCOPE", joinColumns = @JoinColumn(name = "API_KEY_ID"))
+  @Column(name = "SCOPE", nullable = false)
+  @BatchSize(size = 100)
+  private Set<String> scopes = new HashSet<>();
+}
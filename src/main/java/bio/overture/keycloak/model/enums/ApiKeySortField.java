@@ -0,0 +1,41 @@
+package bio.overture.keycloak.model.enums;
+
+import bio.overture.keycloak.model.entity.ApiKeyEntity;
+import java.util.function.Function;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+
+/** Values of the {@code sort} parameter of {@code GET /api_key} and the columns they sort on. */
+@RequiredArgsConstructor
+public enum ApiKeySortField {
+  // apiKeys have no name of their own, and their hash never leaves the server, not even in cursors
+  NAME("id", ApiKeyEntity::getId),
+  EXPIRYDATE("expiryDate", apiKey -> apiKey.getExpiryDate().toString()),
+  ISSUEDATE("issueDate", apiKey -> apiKey.getIssueDate().toString()),
+  ISREVOKED("revoked", apiKey -> String.valueOf(apiKey.isRevoked())),
+  // null descriptions sort as empty ones
+  DESCRIPTION(
+      "description", apiKey -> apiKey.getDescription() == null ? "" : apiKey.getDescription()),
+  // never used apiKeys sort as used at epoch
+  LASTUSED(
+      "lastUsed", apiKey -> apiKey.getLastUsed() == null ? "0" : apiKey.getLastUsed().toString()),
+  USAGECOUNT("usageCount", apiKey -> String.valueOf(apiKey.getUsageCount()));
+
+  @Getter private final String attribute;
+  private final Function<ApiKeyEntity, String> cursorValue;
+
+  /** Value of this field for {@code apiKey}, as carried by a page cursor. */
+  public String cursorValue(ApiKeyEntity apiKey) {
+    return cursorValue.apply(apiKey);
+  }
+
+  /** Unknown values sort by name, as they always did. */
+  public static ApiKeySortField fromValue(String value) {
+    for (ApiKeySortField field : values()) {
+      if (field.name().equalsIgnoreCase(value)) {
+        return field;
+      }
+    }
+    return NAME;
+  }
+}
@@ -0,0 +1,87 @@
+package bio.overture.keycloak.provider;
+
+import bio.overture.keycloak.cache.ApiKeyCache;
+import bio.overture.keycloak.cache.ApiKeyLookupCoalescer;
+import bio.overture.keycloak.cache.ApiKeyUsageTracker;
+import bio.overture.keycloak.cache.AuthorizationCache;
+import bio.overture.keycloak.cache.BearerTokenCache;
+import bio.overture.keycloak.cache.ClientCredentialsCache;
+import bio.overture.keycloak.cache.RevokedApiKeys;
+import bio.overture.keycloak.config.ApiKeyConfig;
+import bio.overture.keycloak.metrics.ApiKeyMetrics;
+import bio.overture.keycloak.ratelimit.ApiKeyRateLimiter;
+import bio.overture.keycloak.ratelimit.RateLimit;
+import bio.overture.keycloak.utils.Hasher;
+import bio.overture.keycloak.warmup.ApiKeyWarmUp;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.util.concurrent.TimeUnit;
+import lombok.Getter;
+
+/**
+ * The thread safe parts of the plugin, built once by the {@link ResourceProviderFactory} from its
+ * settings and shared by every request: caches, rate limiter, hasher and metrics. The services of a
+ * request only pair them with its {@link org.keycloak.models.KeycloakSession}.
+ */
+@Getter
+public class ApiKeyComponents {
+
+  private final ApiKeyConfig config;
+  private final Hasher hasher;
+  private final ApiKeyCache apiKeyCache;
+  private final ApiKeyLookupCoalescer lookupCoalescer;
+  private final ClientCredentialsCache clientCredentialsCache;
+  private final AuthorizationCache authorizationCache;
+  private final BearerTokenCache bearerTokenCache;
+  private final RevokedApiKeys revokedApiKeys;
+  private final ApiKeyUsageTracker usageTracker;
+  private final ApiKeyRateLimiter rateLimiter;
+  private final ApiKeyMetrics metrics;
+  private final ApiKeyWarmUp warmUp;
+
+  public ApiKeyComponents(ApiKeyConfig config, MeterRegistry registry) {
+    this.config = config;
+    this.hasher = new Hasher();
+    this.apiKeyCache =
+        new ApiKeyCache(
+            config.getCacheMaxSize(), TimeUnit.SECONDS.toMillis(config.getCacheTtlSeconds()));
+    this.lookupCoalescer =
+        new ApiKeyLookupCoalescer(
+            config.getLookupBatchWindowMillis(), config.getLookupBatchMaxSize());
+    this.clientCredentialsCache =
+        new ClientCredentialsCache(
+            config.getClientCacheMaxSize(),
+            TimeUnit.SECONDS.toMillis(config.getClientCacheTtlSeconds()));
+    this.authorizationCache =
+        new AuthorizationCache(
+            TimeUnit.SECONDS.toMillis(config.getAuthorizationIndexTtlSeconds()),
+            config.getDecisionCacheMaxSize(),
+            TimeUnit.SECONDS.toMillis(config.getDecisionCacheTtlSeconds()));
+    this.bearerTokenCache =
+        new BearerTokenCache(
+            config.getBearerCacheMaxSize(),
+            TimeUnit.SECONDS.toMillis(config.getBearerCacheTtlSeconds()));
+    // never trusted when it is not refreshed, signed apiKeys are then checked in the database
+    this.revokedApiKeys =
+        new RevokedApiKeys(TimeUnit.SECONDS.toMillis(3L * config.getRevocationRefreshSeconds()));
+    // uses are not tracked when they are never flushed
+    this.usageTracker =
+        new ApiKeyUsageTracker(
+            config.getUsageFlushIntervalSeconds() > 0 ? config.getUsageMaxKeys() : 0);
+    this.rateLimiter =
+        new ApiKeyRateLimiter(
+            hasher,
+            config.getRateLimitSlots(),
+            new RateLimit(config.getCallerRateLimitPerSecond(), config.getCallerRateLimitBurst()),
+            new RateLimit(config.getKeyRateLimitPerSecond(), config.getKeyRateLimitBurst()));
+    this.metrics = new ApiKeyMetrics(registry);
+    metrics.bindApiKeyCache(apiKeyCache);
+    metrics.bindLookupCoalescer(lookupCoalescer);
+    metrics.bindBearerTokenCache(bearerTokenCache);
+    metrics.bindUsageTracker(usageTracker);
+    this.warmUp = new ApiKeyWarmUp(this);
+  }
+
+  public void close() {
+    metrics.close();
+  }
+}
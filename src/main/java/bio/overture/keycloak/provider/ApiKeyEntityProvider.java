@@ -0,0 +1,28 @@
+package bio.overture.keycloak.provider;
+
+import bio.overture.keycloak.model.entity.ApiKeyEntity;
+import java.util.List;
+import org.keycloak.connections.jpa.entityprovider.JpaEntityProvider;
+
+public class ApiKeyEntityProvider implements JpaEntityProvider {
+
+  private static final String CHANGELOG_LOCATION = "META-INF/apikeys-changelog.xml";
+
+  @Override
+  public List<Class<?>> getEntities() {
+    return List.of(ApiKeyEntity.class);
+  }
+
+  @Override
+  public String getChangelogLocation() {
+    return CHANGELOG_LOCATION;
+  }
+
+  @Override
+  public String getFactoryId() {
+    return ApiKeyEntityProviderFactory.PROVIDER_ID;
+  }
+
+  @Override
+  public void close() {}
+}
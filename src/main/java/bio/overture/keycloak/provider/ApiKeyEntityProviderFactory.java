@@ -0,0 +1,31 @@
+package bio.overture.keycloak.provider;
+
+import org.keycloak.Config;
+import org.keycloak.connections.jpa.entityprovider.JpaEntityProvider;
+import org.keycloak.connections.jpa.entityprovider.JpaEntityProviderFactory;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+
+public class ApiKeyEntityProviderFactory implements JpaEntityProviderFactory {
+
+  public static final String PROVIDER_ID = "apikey-entity-provider";
+
+  @Override
+  public JpaEntityProvider create(KeycloakSession keycloakSession) {
+    return new ApiKeyEntityProvider();
+  }
+
+  @Override
+  public void init(Config.Scope scope) {}
+
+  @Override
+  public void postInit(KeycloakSessionFactory keycloakSessionFactory) {}
+
+  @Override
+  public void close() {}
+
+  @Override
+  public String getId() {
+    return PROVIDER_ID;
+  }
+}
@@ -0,0 +1,97 @@
+package bio.overture.keycloak.provider;
+
+import bio.overture.keycloak.cache.AuthorizationCache;
+import bio.overture.keycloak.cache.BearerTokenCache;
+import java.util.EnumSet;
+import java.util.Set;
+import lombok.RequiredArgsConstructor;
+import org.keycloak.events.Event;
+import org.keycloak.events.EventListenerProvider;
+import org.keycloak.events.EventType;
+import org.keycloak.events.admin.AdminEvent;
+import org.keycloak.events.admin.ResourceType;
+import org.keycloak.models.KeycloakSession;
+
+/**
+ * Drops the cached authorization decisions when an admin changes the authorization settings, the
+ * clients, or the roles and groups of a realm, and the verified bearer tokens when sessions end or
+ * an admin changes users, clients or realm settings.
+ */
+@RequiredArgsConstructor
+public class ApiKeyEventListenerProvider implements EventListenerProvider {
+
+  // changes to what is evaluated, or to the clients holding the resources
+  private static final Set<ResourceType> REALM_TYPES =
+      EnumSet.of(
+          ResourceType.AUTHORIZATION_RESOURCE_SERVER,
+          ResourceType.AUTHORIZATION_RESOURCE,
+          ResourceType.AUTHORIZATION_SCOPE,
+          ResourceType.AUTHORIZATION_POLICY,
+          ResourceType.CLIENT,
+          ResourceType.GROUP,
+          ResourceType.REALM_ROLE,
+          ResourceType.CLIENT_ROLE);
+
+  // changes to who the user is, as seen by the policies
+  private static final Set<ResourceType> MEMBERSHIP_TYPES =
+      EnumSet.of(
+          ResourceType.GROUP_MEMBERSHIP,
+          ResourceType.REALM_ROLE_MAPPING,
+          ResourceType.CLIENT_ROLE_MAPPING);
+
+  // changes that can end sessions or invalidate tokens of a whole realm
+  private static final Set<ResourceType> REALM_TOKEN_TYPES =
+      EnumSet.of(ResourceType.REALM, ResourceType.CLIENT);
+
+  private static final String USERS_PATH = "users/";
+  private static final String SESSIONS_PATH = "sessions/";
+
+  private final KeycloakSession session;
+  private final AuthorizationCache authorizationCache;
+  private final BearerTokenCache bearerTokenCache;
+
+  @Override
+  public void onEvent(Event event) {
+    if (event.getType() == EventType.LOGOUT && event.getSessionId() != null) {
+      bearerTokenCache.invalidateSession(session, event.getRealmId(), event.getSessionId());
+    } else if (event.getType() == EventType.REVOKE_GRANT && event.getUserId() != null) {
+      bearerTokenCache.invalidateUser(session, event.getRealmId(), event.getUserId());
+    }
+  }
+
+  @Override
+  public void onEvent(AdminEvent event, boolean includeRepresentation) {
+    ResourceType type = event.getResourceType();
+    String path = event.getResourcePath();
+
+    if (REALM_TYPES.contains(type)) {
+      authorizationCache.invalidateRealm(session, event.getRealmId());
+    } else if (MEMBERSHIP_TYPES.contains(type)) {
+      if (path != null && path.startsWith(USERS_PATH)) {
+        // users/{userId}/groups/{groupId} or users/{userId}/role-mappings/...
+        String userId = path.substring(USERS_PATH.length()).split("/", 2)[0];
+        authorizationCache.invalidateUser(session, event.getRealmId(), userId);
+      } else {
+        // role mappings of a group apply to all of its members
+        authorizationCache.invalidateRealm(session, event.getRealmId());
+      }
+    }
+
+    if (REALM_TOKEN_TYPES.contains(type)) {
+      // e.g. logout of all sessions, not-before policy, disabled client
+      bearerTokenCache.invalidateRealm(session, event.getRealmId());
+    } else if (type == ResourceType.USER_SESSION
+        && path != null
+        && path.startsWith(SESSIONS_PATH)) {
+      bearerTokenCache.invalidateSession(
+          session, event.getRealmId(), path.substring(SESSIONS_PATH.length()));
+    } else if (path != null && path.startsWith(USERS_PATH)) {
+      // e.g. logout, disabled, deleted, credentials reset
+      String userId = path.substring(USERS_PATH.length()).split("/", 2)[0];
+      bearerTokenCache.invalidateUser(session, event.getRealmId(), userId);
+    }
+  }
+
+  @Override
+  public void close() {}
+}
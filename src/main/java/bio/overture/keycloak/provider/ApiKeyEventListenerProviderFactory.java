@@ -0,0 +1,47 @@
+package bio.overture.keycloak.provider;
+
+import org.keycloak.Config;
+import org.keycloak.events.EventListenerProvider;
+import org.keycloak.events.EventListenerProviderFactory;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.services.resource.RealmResourceProvider;
+
+/**
+ * Admin event listener keeping the apiKey caches up to date, to be added to the "Event listeners"
+ * of each realm.
+ */
+public class ApiKeyEventListenerProviderFactory implements EventListenerProviderFactory {
+
+  public static final String PROVIDER_ID = "apikey-cache";
+
+  private ResourceProviderFactory resourceProviderFactory;
+
+  @Override
+  public EventListenerProvider create(KeycloakSession keycloakSession) {
+    return new ApiKeyEventListenerProvider(
+        keycloakSession,
+        resourceProviderFactory.getAuthorizationCache(),
+        resourceProviderFactory.getBearerTokenCache());
+  }
+
+  @Override
+  public void init(Config.Scope scope) {}
+
+  @Override
+  public void postInit(KeycloakSessionFactory keycloakSessionFactory) {
+    // the caches are owned by the apikey resource provider
+    resourceProviderFactory =
+        (ResourceProviderFactory)
+            keycloakSessionFactory.getProviderFactory(
+                RealmResourceProvider.class, ResourceProviderFactory.PROVIDER_ID);
+  }
+
+  @Override
+  public void close() {}
+
+  @Override
+  public String getId() {
+    return PROVIDER_ID;
+  }
+}
@@ -9,10 +9,11 @@ import org.keycloak.services.resource.RealmResourceProvider;
 public class ResourceProvider implements RealmResourceProvider {
 
   private final KeycloakSession session;
+  private final ApiKeyComponents components;
 
   @Override
   public Object getResource() {
-    return new ApiKeyResource(session);
+    return new ApiKeyResource(session, components);
   }
 
   @Override
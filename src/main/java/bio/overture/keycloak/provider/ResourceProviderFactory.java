@@ -1,13 +1,27 @@
 package bio.overture.keycloak.provider;
 
+import bio.overture.keycloak.cache.AuthorizationCache;
+import bio.overture.keycloak.cache.BearerTokenCache;
+import bio.overture.keycloak.config.ApiKeyConfig;
+import bio.overture.keycloak.scheduled.FlushApiKeyUsageTask;
+import bio.overture.keycloak.scheduled.PurgeApiKeysTask;
+import bio.overture.keycloak.scheduled.RefreshRevokedApiKeysTask;
+import bio.overture.keycloak.services.ApiKeyService;
+import io.micrometer.core.instrument.Metrics;
 import java.io.InputStream;
 import java.util.Properties;
+import java.util.concurrent.TimeUnit;
 import org.jboss.logging.Logger;
 import org.keycloak.Config;
+import org.keycloak.models.ClientModel;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.models.utils.PostMigrationEvent;
 import org.keycloak.services.resource.RealmResourceProvider;
 import org.keycloak.services.resource.RealmResourceProviderFactory;
+import org.keycloak.timer.TimerProvider;
 
 public class ResourceProviderFactory implements RealmResourceProviderFactory {
 
@@ -15,9 +29,14 @@ public class ResourceProviderFactory implements RealmResourceProviderFactory {
 
   private static final Logger logger = Logger.getLogger(ResourceProviderFactory.class);
 
+  private ApiKeyComponents components;
+
+  private KeycloakSessionFactory sessionFactory;
+  private FlushApiKeyUsageTask flushUsageTask;
+
   @Override
   public RealmResourceProvider create(KeycloakSession keycloakSession) {
-    return new ResourceProvider(keycloakSession);
+    return new ResourceProvider(keycloakSession, components);
   }
 
   @Override
@@ -35,13 +54,148 @@ public class ResourceProviderFactory implements RealmResourceProviderFactory {
       logger.debug("Could not read plugin build info from build.properties", e);
     }
     logger.infof("keycloak-apikeys plugin loaded: version %s, commit %s", version, commit);
+
+    components = new ApiKeyComponents(ApiKeyConfig.fromScope(scope), Metrics.globalRegistry);
+    flushUsageTask = new FlushApiKeyUsageTask(components);
   }
 
   @Override
-  public void postInit(KeycloakSessionFactory keycloakSessionFactory) {}
+  public void postInit(KeycloakSessionFactory keycloakSessionFactory) {
+    sessionFactory = keycloakSessionFactory;
+    KeycloakModelUtils.runJobInTransaction(
+        keycloakSessionFactory,
+        session -> {
+          components.getApiKeyCache().registerClusterListener(session);
+          components.getAuthorizationCache().registerClusterListener(session);
+          components.getBearerTokenCache().registerClusterListener(session);
+          components.getRevokedApiKeys().registerClusterListener(session);
+        });
+
+    keycloakSessionFactory.register(
+        event -> {
+          if (event instanceof PostMigrationEvent) {
+            schedulePurge(((PostMigrationEvent) event).getFactory());
+            scheduleUsageFlush(((PostMigrationEvent) event).getFactory());
+            scheduleRevocationRefresh(((PostMigrationEvent) event).getFactory());
+            components.getWarmUp().start(((PostMigrationEvent) event).getFactory());
+          } else if (event instanceof UserModel.UserRemovedEvent) {
+            UserModel.UserRemovedEvent userRemoved = (UserModel.UserRemovedEvent) event;
+            // API_KEY has no foreign key to USER_ENTITY, so the keys are removed with the user
+            new ApiKeyService(userRemoved.getKeycloakSession(), components)
+                .deleteApiKeys(userRemoved.getRealm().getId(), userRemoved.getUser().getId());
+            components
+                .getAuthorizationCache()
+                .invalidateUser(
+                    userRemoved.getKeycloakSession(),
+                    userRemoved.getRealm().getId(),
+                    userRemoved.getUser().getId());
+            components
+                .getBearerTokenCache()
+                .invalidateUser(
+                    userRemoved.getKeycloakSession(),
+                    userRemoved.getRealm().getId(),
+                    userRemoved.getUser().getId());
+          } else if (event instanceof ClientModel.ClientUpdatedEvent) {
+            ClientModel.ClientUpdatedEvent clientUpdated = (ClientModel.ClientUpdatedEvent) event;
+            ClientModel client = clientUpdated.getUpdatedClient();
+            components
+                .getClientCredentialsCache()
+                .invalidate(client.getRealm(), client.getClientId());
+            // the clients holding the resources of the authorization index may have changed
+            components
+                .getAuthorizationCache()
+                .invalidateRealm(clientUpdated.getKeycloakSession(), client.getRealm().getId());
+          } else if (event instanceof ClientModel.ClientRemovedEvent) {
+            ClientModel.ClientRemovedEvent clientRemoved = (ClientModel.ClientRemovedEvent) event;
+            ClientModel client = clientRemoved.getClient();
+            components
+                .getClientCredentialsCache()
+                .invalidate(client.getRealm(), client.getClientId());
+            components
+                .getAuthorizationCache()
+                .invalidateRealm(clientRemoved.getKeycloakSession(), client.getRealm().getId());
+          }
+        });
+  }
+
+  private void schedulePurge(KeycloakSessionFactory keycloakSessionFactory) {
+    ApiKeyConfig config = components.getConfig();
+    if (config.getPurgeIntervalSeconds() <= 0) {
+      logger.info("Purge of expired and revoked apiKeys is disabled");
+      return;
+    }
+    PurgeApiKeysTask task =
+        new PurgeApiKeysTask(
+            components,
+            config.getPurgeRetentionDays(),
+            config.getPurgeBatchSize(),
+            config.getPurgeIntervalSeconds());
+    KeycloakModelUtils.runJobInTransaction(
+        keycloakSessionFactory,
+        session ->
+            session
+                .getProvider(TimerProvider.class)
+                .scheduleTask(
+                    task,
+                    TimeUnit.SECONDS.toMillis(config.getPurgeIntervalSeconds()),
+                    PurgeApiKeysTask.TASK_NAME));
+  }
+
+  private void scheduleUsageFlush(KeycloakSessionFactory keycloakSessionFactory) {
+    ApiKeyConfig config = components.getConfig();
+    if (config.getUsageFlushIntervalSeconds() <= 0) {
+      logger.info("Tracking of apiKey usage is disabled");
+      return;
+    }
+    KeycloakModelUtils.runJobInTransaction(
+        keycloakSessionFactory,
+        session ->
+            session
+                .getProvider(TimerProvider.class)
+                .scheduleTask(
+                    flushUsageTask,
+                    TimeUnit.SECONDS.toMillis(config.getUsageFlushIntervalSeconds()),
+                    FlushApiKeyUsageTask.TASK_NAME));
+  }
+
+  private void scheduleRevocationRefresh(KeycloakSessionFactory keycloakSessionFactory) {
+    ApiKeyConfig config = components.getConfig();
+    if (config.getRevocationRefreshSeconds() <= 0) {
+      logger.info("Revoked signed apiKeys are not loaded, signed apiKeys are checked in database");
+      return;
+    }
+    RefreshRevokedApiKeysTask task = new RefreshRevokedApiKeysTask(components);
+    // loaded once before serving, so signed apiKeys are checked in memory from the start
+    KeycloakModelUtils.runJobInTransaction(keycloakSessionFactory, task::run);
+    KeycloakModelUtils.runJobInTransaction(
+        keycloakSessionFactory,
+        session ->
+            session
+                .getProvider(TimerProvider.class)
+                .scheduleTask(
+                    task,
+                    TimeUnit.SECONDS.toMillis(config.getRevocationRefreshSeconds()),
+                    RefreshRevokedApiKeysTask.TASK_NAME));
+  }
+
+  public AuthorizationCache getAuthorizationCache() {
+    return components.getAuthorizationCache();
+  }
+
+  public BearerTokenCache getBearerTokenCache() {
+    return components.getBearerTokenCache();
+  }
 
   @Override
-  public void close() {}
+  public void close() {
+    // writes the uses counted since the last flush, when the database is still reachable
+    if (sessionFactory != null && flushUsageTask != null) {
+      flushUsageTask.flush(sessionFactory);
+    }
+    if (components != null) {
+      components.close();
+    }
+  }
 
   @Override
   public String getId() {
@@ -0,0 +1,77 @@
+package bio.overture.keycloak.ratelimit;
+
+import bio.overture.keycloak.utils.Hasher;
+import jakarta.ws.rs.ClientErrorException;
+import jakarta.ws.rs.core.Response;
+import java.util.concurrent.TimeUnit;
+import org.keycloak.models.RealmModel;
+
+/**
+ * Limits the apiKey checks of each caller, and of each apiKey whoever checks it. Limits are read
+ * from the realm attributes {@value #CALLER_LIMIT}{@code PerSecond}, {@value #CALLER_LIMIT}{@code
+ * Burst}, {@value #KEY_LIMIT}{@code PerSecond} and {@value #KEY_LIMIT}{@code Burst}, falling back
+ * to the plugin settings. The buckets of apiKeys are held by realm and hash, so the limiter never
+ * keeps an apiKey itself and the same value checked in two realms is counted in each.
+ */
+public class ApiKeyRateLimiter {
+
+  public static final String CALLER_LIMIT = "apikeyCallerRateLimit";
+  public static final String KEY_LIMIT = "apikeyKeyRateLimit";
+
+  private final Hasher hasher;
+  private final TokenBuckets callerBuckets;
+  private final TokenBuckets keyBuckets;
+  private final RateLimit defaultCallerLimit;
+  private final RateLimit defaultKeyLimit;
+
+  public ApiKeyRateLimiter(
+      Hasher hasher, int slots, RateLimit defaultCallerLimit, RateLimit defaultKeyLimit) {
+    this.hasher = hasher;
+    this.callerBuckets = new TokenBuckets(slots);
+    this.keyBuckets = new TokenBuckets(slots);
+    this.defaultCallerLimit = defaultCallerLimit;
+    this.defaultKeyLimit = defaultKeyLimit;
+  }
+
+  /** Takes {@code permits} checks from the bucket of the caller, or throws a 429. */
+  public void checkCaller(RealmModel realm, String caller, int permits) {
+    RateLimit limit = RateLimit.forRealm(realm, CALLER_LIMIT, defaultCallerLimit);
+    long wait = callerBuckets.tryAcquire(realm.getId() + ":" + caller, limit, permits);
+    if (wait > 0) {
+      throw tooManyRequests("Too many apiKey checks", wait);
+    }
+  }
+
+  /**
+   * Takes one check from the bucket of {@code apiKey}, or throws a 429. The apiKey must have a
+   * valid format; it is not even hashed when the limit is off.
+   */
+  public void checkKey(RealmModel realm, String apiKey) {
+    long wait = keyWait(realm, apiKey);
+    if (wait > 0) {
+      throw tooManyRequests("Too many checks of this apiKey", wait);
+    }
+  }
+
+  /** Same as {@link #checkKey}, telling whether the check was taken instead of throwing. */
+  public boolean tryKey(RealmModel realm, String apiKey) {
+    return keyWait(realm, apiKey) == 0;
+  }
+
+  private long keyWait(RealmModel realm, String apiKey) {
+    RateLimit limit = RateLimit.forRealm(realm, KEY_LIMIT, defaultKeyLimit);
+    if (!limit.isEnabled()) {
+      return 0;
+    }
+    return keyBuckets.tryAcquire(realm.getId() + ":" + hasher.generateHash(apiKey), limit, 1);
+  }
+
+  private static ClientErrorException tooManyRequests(String message, long waitNanos) {
+    long retryAfterSeconds = Math.max(1, TimeUnit.NANOSECONDS.toSeconds(waitNanos - 1) + 1);
+    return new ClientErrorException(
+        message,
+        Response.status(Response.Status.TOO_MANY_REQUESTS)
+            .header("Retry-After", retryAfterSeconds)
+            .build());
+  }
+}
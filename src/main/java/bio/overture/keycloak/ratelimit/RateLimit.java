@@ -0,0 +1,31 @@
+package bio.overture.keycloak.ratelimit;
+
+import java.util.concurrent.TimeUnit;
+import lombok.Value;
+import org.keycloak.models.RealmModel;
+
+/** Sustained rate and burst of a token bucket. A rate of {@code 0} disables the limit. */
+@Value
+public class RateLimit {
+  long perSecond;
+  long burst;
+
+  public boolean isEnabled() {
+    return perSecond > 0;
+  }
+
+  /** Time to refill one token. */
+  public long intervalNanos() {
+    return TimeUnit.SECONDS.toNanos(1) / perSecond;
+  }
+
+  /**
+   * The limit set on the realm by the {@code <name>PerSecond} and {@code <name>Burst} attributes,
+   * each falling back to {@code defaults}.
+   */
+  public static RateLimit forRealm(RealmModel realm, String name, RateLimit defaults) {
+    return new RateLimit(
+        realm.getAttribute(name + "PerSecond", defaults.getPerSecond()),
+        realm.getAttribute(name + "Burst", defaults.getBurst()));
+  }
+}
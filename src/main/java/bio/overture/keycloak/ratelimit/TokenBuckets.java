@@ -0,0 +1,58 @@
+package bio.overture.keycloak.ratelimit;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Token buckets held in a fixed number of slots, picked by the hash of their key, so memory stays
+ * the same whatever the number of keys. Each bucket is a single long, the time at which it will be
+ * full again, updated with a compare-and-set. Keys sharing a slot share a bucket, which can only
+ * make their limit stricter.
+ */
+public class TokenBuckets {
+
+  private final AtomicLongArray refilledAt;
+  private final int mask;
+
+  // keeps the times positive, as System.nanoTime() may not be
+  private final long origin = System.nanoTime();
+
+  public TokenBuckets(int slots) {
+    int size = slots <= 1 ? 1 : Integer.highestOneBit(slots - 1) << 1;
+    this.refilledAt = new AtomicLongArray(size);
+    this.mask = size - 1;
+  }
+
+  /**
+   * Takes {@code permits} tokens from the bucket of {@code key}. Returns {@code 0} when they were
+   * taken, otherwise the nanoseconds to wait until they are available; nothing is taken then.
+   */
+  public long tryAcquire(String key, RateLimit limit, int permits) {
+    return tryAcquire(key, limit, permits, System.nanoTime() - origin);
+  }
+
+  public long tryAcquire(String key, RateLimit limit, int permits, long now) {
+    if (!limit.isEnabled()) {
+      return 0;
+    }
+    long interval = limit.intervalNanos();
+    long capacity = interval * limit.getBurst();
+
+    int slot = slot(key);
+    while (true) {
+      long current = refilledAt.get(slot);
+      long next = Math.max(current, now) + interval * permits;
+      long wait = next - now - capacity;
+      if (wait > 0) {
+        return wait;
+      }
+      if (refilledAt.compareAndSet(slot, current, next)) {
+        return 0;
+      }
+    }
+  }
+
+  private int slot(String key) {
+    int hash = key.hashCode();
+    return (hash ^ (hash >>> 16)) & mask;
+  }
+}
@@ -1,40 +1,87 @@
 package bio.overture.keycloak.resource;
 
+import static bio.overture.keycloak.metrics.ApiKeyMetrics.*;
 import static bio.overture.keycloak.utils.CollectionUtils.mapToList;
-
+import static bio.overture.keycloak.utils.Constants.API_KEY_TYPE_OPAQUE;
+import static bio.overture.keycloak.utils.Constants.API_KEY_TYPE_SIGNED;
+import static bio.overture.keycloak.utils.Converters.JSON_WRITER;
+import static bio.overture.keycloak.utils.Converters.createNdjsonGenerator;
+import static bio.overture.keycloak.utils.Converters.toStreamingOutput;
+import static bio.overture.keycloak.utils.Converters.writeNdjsonLine;
+
+import bio.overture.keycloak.cache.ApiKeyCache;
+import bio.overture.keycloak.cache.ApiKeyUsageTracker;
+import bio.overture.keycloak.config.ApiKeyConfig;
+import bio.overture.keycloak.metrics.ApiKeyMetrics;
 import bio.overture.keycloak.model.ApiKey;
+import bio.overture.keycloak.model.ApiKeyPage;
+import bio.overture.keycloak.model.ApiKeySearch;
+import bio.overture.keycloak.model.ApiKeySnapshot;
 import bio.overture.keycloak.model.dto.ApiKeyResponse;
+import bio.overture.keycloak.model.dto.ApiKeySearchResponse;
+import bio.overture.keycloak.model.dto.BulkIssueResponse;
+import bio.overture.keycloak.model.dto.BulkRevokeResponse;
+import bio.overture.keycloak.model.dto.CacheStatsResponse;
 import bio.overture.keycloak.model.dto.CheckApiKeyResponse;
+import bio.overture.keycloak.model.dto.IssueApiKeyRequest;
+import bio.overture.keycloak.model.dto.ReadinessResponse;
+import bio.overture.keycloak.model.dto.RevokeApiKeysRequest;
+import bio.overture.keycloak.model.entity.ApiKeyEntity;
 import bio.overture.keycloak.params.ScopeName;
+import bio.overture.keycloak.provider.ApiKeyComponents;
+import bio.overture.keycloak.ratelimit.ApiKeyRateLimiter;
 import bio.overture.keycloak.services.ApiKeyService;
 import bio.overture.keycloak.services.AuthService;
 import bio.overture.keycloak.services.UserService;
+import bio.overture.keycloak.warmup.ApiKeyWarmUp;
+import com.fasterxml.jackson.core.JsonGenerator;
 import jakarta.ws.rs.*;
 import jakarta.ws.rs.core.MediaType;
 import jakarta.ws.rs.core.Response;
+import jakarta.ws.rs.core.StreamingOutput;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
 import java.util.*;
+import java.util.zip.GZIPOutputStream;
 import org.jboss.logging.Logger;
 import org.keycloak.models.*;
-import org.keycloak.models.jpa.entities.UserAttributeEntity;
 import org.keycloak.models.jpa.entities.UserEntity;
+import org.keycloak.models.utils.KeycloakModelUtils;
 import org.keycloak.services.managers.AuthenticationManager;
 
 public class ApiKeyResource {
 
   private final KeycloakSession session;
-  private final UserService userService;
-  private final ApiKeyService apiKeyService;
-  private final AuthService authService;
+  private final ApiKeyComponents components;
+
+  // created on first use, requests rejected early never build the services they do not reach
+  private UserService userService;
+  private ApiKeyService apiKeyService;
+  private AuthService authService;
 
-  public ApiKeyResource(KeycloakSession session) {
+  private final ApiKeyConfig config;
+  private final ApiKeyCache apiKeyCache;
+  private final ApiKeyUsageTracker usageTracker;
+  private final ApiKeyRateLimiter rateLimiter;
+  private final ApiKeyWarmUp warmUp;
+  private final ApiKeyMetrics metrics;
+
+  public ApiKeyResource(KeycloakSession session, ApiKeyComponents components) {
     this.session = session;
-    this.userService = new UserService(session);
-    this.apiKeyService = new ApiKeyService(session);
-    this.authService = new AuthService(session);
+    this.components = components;
+    this.config = components.getConfig();
+    this.apiKeyCache = components.getApiKeyCache();
+    this.usageTracker = components.getUsageTracker();
+    this.rateLimiter = components.getRateLimiter();
+    this.warmUp = components.getWarmUp();
+    this.metrics = components.getMetrics();
   }
 
   private static final Logger logger = Logger.getLogger(ApiKeyResource.class);
 
+  private static final String NDJSON = "application/x-ndjson";
+  private static final String GZIP = "application/gzip";
+
   @GET
   @Path("api_key")
   @Produces(MediaType.APPLICATION_JSON)
@@ -43,27 +90,44 @@ public class ApiKeyResource {
       @DefaultValue("") @QueryParam("query") String query,
       @DefaultValue("20") @QueryParam("limit") int limit,
       @DefaultValue("0") @QueryParam("offset") int offset,
+      @QueryParam("cursor") String cursor,
       @DefaultValue("name") @QueryParam("sort") String sort,
       @DefaultValue("ASC") @QueryParam("sortOrder") String sortOrder) {
     logger.info("GET /api_key  user_id:" + userId + ", query:" + query);
 
-    AuthenticationManager.AuthResult auth = authService.checkBearerAuth();
-
-    UserEntity user = userService.getUserById(userId);
-
-    authService.validateIsSameUser(auth, user);
-
-    List<ApiKey> keys = apiKeyService.getApiKeys(user, query, limit, offset, sort, sortOrder);
-
-    return Response.ok(
-            ApiKeyResponse.builder()
-                .limit(limit)
-                .offset(offset)
-                .count(keys.size())
-                .resultSet(keys)
-                .build()
-                .toString())
-        .build();
+    return metrics.timeRequest(
+        ENDPOINT_LIST,
+        () -> {
+          AuthenticationManager.AuthResult auth =
+              metrics.timePhase(ENDPOINT_LIST, PHASE_AUTH, authService()::checkBearerAuth);
+
+          UserEntity user = userService().getUserById(userId);
+
+          authService().validateIsSameUser(auth, user.getId());
+
+          ApiKeyPage page =
+              metrics.timePhase(
+                  ENDPOINT_LIST,
+                  PHASE_LOOKUP,
+                  () ->
+                      apiKeyService()
+                          .getApiKeys(user.getId(), query, limit, offset, cursor, sort, sortOrder));
+
+          ApiKeyResponse apiKeyResponse =
+              ApiKeyResponse.builder()
+                  .limit(limit)
+                  .offset(offset)
+                  .count(page.getApiKeys().size())
+                  .total(page.getTotal())
+                  .nextCursor(page.getNextCursor())
+                  .resultSet(page.getApiKeys())
+                  .build();
+
+          return Response.ok(
+                  metrics.timeSerialization(
+                      ENDPOINT_LIST, toStreamingOutput(JSON_WRITER, apiKeyResponse)))
+              .build();
+        });
   }
 
   @POST
@@ -72,22 +136,242 @@ public class ApiKeyResource {
   public Response issueApiKey(
       @QueryParam(value = "user_id") String userId,
       @QueryParam(value = "scopes") List<String> scopes,
-      @QueryParam(value = "description") String description) {
-    logger.info("POST /api_key  user_id:" + userId + ", scopes:" + scopes);
+      @QueryParam(value = "description") String description,
+      @DefaultValue(API_KEY_TYPE_OPAQUE) @QueryParam(value = "type") String type) {
+    logger.info("POST /api_key  user_id:" + userId + ", scopes:" + scopes + ", type:" + type);
+
+    return metrics.timeRequest(
+        ENDPOINT_ISSUE,
+        () -> {
+          AuthenticationManager.AuthResult auth =
+              metrics.timePhase(ENDPOINT_ISSUE, PHASE_AUTH, authService()::checkBearerAuth);
+
+          UserEntity user = userService().getUserById(userId);
+
+          authService().validateIsSameUserOrAdmin(auth, user.getId());
+
+          validateType(type);
 
-    AuthenticationManager.AuthResult auth = authService.checkBearerAuth();
+          List<ScopeName> scopeNames = mapToList(scopes, ScopeName::new);
 
-    UserEntity user = userService.getUserById(userId);
+          metrics.timePhase(
+              ENDPOINT_ISSUE,
+              PHASE_POLICY_EVALUATION,
+              () -> authService().validatePermissions(auth, scopeNames));
 
-    authService.validateIsSameUserOrAdmin(auth, user);
+          ApiKey apiKey =
+              apiKeyService()
+                  .issueApiKey(userId, scopeNames, description, type.equals(API_KEY_TYPE_SIGNED));
 
-    List<ScopeName> scopeNames = mapToList(scopes, ScopeName::new);
+          return Response.ok(apiKey.toString()).build();
+        });
+  }
 
-    authService.validatePermissions(auth, scopeNames);
+  @POST
+  @Path("api_key/bulk")
+  @Consumes(MediaType.APPLICATION_JSON)
+  @Produces(MediaType.APPLICATION_JSON)
+  public Response issueApiKeys(List<IssueApiKeyRequest> requests) {
+    logger.info("POST /api_key/bulk  apiKeys:" + (requests == null ? 0 : requests.size()));
+
+    return metrics.timeRequest(
+        ENDPOINT_BULK_ISSUE,
+        () -> {
+          AuthenticationManager.AuthResult auth =
+              metrics.timePhase(ENDPOINT_BULK_ISSUE, PHASE_AUTH, authService()::checkBearerAuth);
+
+          if (requests == null || requests.isEmpty()) {
+            throw new BadRequestException("apiKeys cannot be empty.");
+          }
+          if (requests.size() > config.getBulkMaxSize()) {
+            throw new BadRequestException(
+                "At most " + config.getBulkMaxSize() + " apiKeys can be issued at once");
+          }
+
+          // everything is checked before anything is written, so either all or none are issued
+          Set<String> userIds = new HashSet<>();
+          Set<ScopeName> scopeNames = new LinkedHashSet<>();
+          for (IssueApiKeyRequest request : requests) {
+            if (request == null) {
+              throw new BadRequestException("apiKeys cannot contain null");
+            }
+            if (request.getUser_id() == null) {
+              throw new BadRequestException("user_id is required");
+            }
+            if (request.getScopes() == null
+                || request.getScopes().stream().anyMatch(Objects::isNull)) {
+              throw new BadRequestException("scopes are required and cannot contain null");
+            }
+            validateType(request.getType());
+            userIds.add(request.getUser_id());
+            request.getScopes().forEach(scope -> scopeNames.add(new ScopeName(scope)));
+          }
+
+          // checked before the users, so only admins learn which users exist
+          if (userIds.size() == 1) {
+            authService().validateIsSameUserOrAdmin(auth, userIds.iterator().next());
+          } else {
+            authService().validateIsAdmin(auth);
+          }
+
+          userService().validateUsersExist(userIds);
+
+          // permissions are those of the caller, whoever the apiKeys are for, so the union of the
+          // scopes is checked once: the caller must be granted every scope of the batch, and a
+          // batch is refused whole when any of its scopes is not
+          metrics.timePhase(
+              ENDPOINT_BULK_ISSUE,
+              PHASE_POLICY_EVALUATION,
+              () -> authService().validatePermissions(auth, new ArrayList<>(scopeNames)));
+
+          List<ApiKey> apiKeys = apiKeyService().issueApiKeys(requests);
+
+          BulkIssueResponse response =
+              BulkIssueResponse.builder().issued(apiKeys.size()).apiKeys(apiKeys).build();
+          return Response.ok(toStreamingOutput(JSON_WRITER, response)).build();
+        });
+  }
 
-    ApiKey apiKey = apiKeyService.issueApiKey(userId, scopeNames, description);
+  @POST
+  @Path("api_key/revoke")
+  @Consumes(MediaType.APPLICATION_JSON)
+  @Produces(MediaType.APPLICATION_JSON)
+  public Response revokeApiKeys(RevokeApiKeysRequest request) {
+    logger.info("POST /api_key/revoke  " + request);
+
+    return metrics.timeRequest(
+        ENDPOINT_BULK_REVOKE,
+        () -> {
+          AuthenticationManager.AuthResult auth =
+              metrics.timePhase(ENDPOINT_BULK_REVOKE, PHASE_AUTH, authService()::checkBearerAuth);
+
+          if (request == null || !request.hasCriteria()) {
+            throw new BadRequestException(
+                "At least one of user_id, scope, issuedAfter or issuedBefore is required");
+          }
+
+          if (request.getUser_id() == null) {
+            authService().validateIsAdmin(auth);
+          } else {
+            authService().validateIsSameUserOrAdmin(auth, request.getUser_id());
+          }
+
+          int revoked =
+              apiKeyService()
+                  .revokeApiKeys(
+                      request.getUser_id(),
+                      request.getScope(),
+                      request.getIssuedAfter(),
+                      request.getIssuedBefore());
+
+          return Response.ok(
+                  toStreamingOutput(
+                      JSON_WRITER, BulkRevokeResponse.builder().revoked(revoked).build()))
+              .build();
+        });
+  }
+
+  @GET
+  @Path("api_key/search")
+  @Produces(MediaType.APPLICATION_JSON)
+  public Response searchApiKeys(
+      @QueryParam("user_id") String userId,
+      @QueryParam("scope") String scope,
+      @QueryParam("expiresAfter") Long expiresAfter,
+      @QueryParam("expiresBefore") Long expiresBefore,
+      @QueryParam("issuedAfter") Long issuedAfter,
+      @QueryParam("issuedBefore") Long issuedBefore,
+      @QueryParam("revoked") Boolean revoked,
+      @DefaultValue("20") @QueryParam("limit") int limit,
+      @QueryParam("cursor") String cursor,
+      @DefaultValue("expirydate") @QueryParam("sort") String sort,
+      @DefaultValue("ASC") @QueryParam("sortOrder") String sortOrder) {
+    logger.info("GET /api_key/search  user_id:" + userId + ", scope:" + scope);
+
+    return metrics.timeRequest(
+        ENDPOINT_SEARCH,
+        () -> {
+          AuthenticationManager.AuthResult auth =
+              metrics.timePhase(ENDPOINT_SEARCH, PHASE_AUTH, authService()::checkBearerAuth);
+
+          authService().validateIsAdmin(auth);
+
+          ApiKeySearch search =
+              ApiKeySearch.builder()
+                  .userId(userId)
+                  .scope(scope)
+                  .expiresAfter(expiresAfter)
+                  .expiresBefore(expiresBefore)
+                  .issuedAfter(issuedAfter)
+                  .issuedBefore(issuedBefore)
+                  .revoked(revoked)
+                  .build();
+
+          ApiKeySearchResponse response =
+              metrics.timePhase(
+                  ENDPOINT_SEARCH,
+                  PHASE_LOOKUP,
+                  () -> apiKeyService().searchApiKeys(search, limit, cursor, sort, sortOrder));
+
+          return Response.ok(
+                  metrics.timeSerialization(
+                      ENDPOINT_SEARCH, toStreamingOutput(JSON_WRITER, response)))
+              .build();
+        });
+  }
 
-    return Response.ok(apiKey.toString()).build();
+  /**
+   * Every apiKey of the realm, one JSON document per line. The apiKeys are written as they are
+   * read, in a transaction of its own as the body is written once this method returned, so memory
+   * stays flat whatever the size of the realm.
+   */
+  @GET
+  @Path("api_key/export")
+  @Produces({NDJSON, GZIP})
+  public Response exportApiKeys(@DefaultValue("false") @QueryParam("gzip") boolean gzip) {
+    logger.info("GET /api_key/export  gzip:" + gzip);
+
+    return metrics.timeRequest(
+        ENDPOINT_EXPORT,
+        () -> {
+          AuthenticationManager.AuthResult auth =
+              metrics.timePhase(ENDPOINT_EXPORT, PHASE_AUTH, authService()::checkBearerAuth);
+
+          authService().validateIsAdmin(auth);
+
+          RealmModel realm = session.getContext().getRealm();
+          String realmId = realm.getId();
+          String realmName = realm.getName();
+          KeycloakSessionFactory sessionFactory = session.getKeycloakSessionFactory();
+
+          StreamingOutput body =
+              output -> {
+                OutputStream out = gzip ? new GZIPOutputStream(output) : output;
+                try (JsonGenerator generator = createNdjsonGenerator(out)) {
+                  KeycloakModelUtils.runJobInTransaction(
+                      sessionFactory,
+                      exportSession -> {
+                        long exported =
+                            new ApiKeyService(exportSession, components)
+                                .exportApiKeys(
+                                    realmId,
+                                    config.getExportBatchSize(),
+                                    apiKey -> writeNdjsonLine(generator, apiKey));
+                        logger.infof("Exported %d apiKeys of realm %s", exported, realmName);
+                      });
+                } catch (UncheckedIOException e) {
+                  throw e.getCause();
+                }
+                if (gzip) {
+                  ((GZIPOutputStream) out).finish();
+                }
+              };
+
+          String filename = realmName + "-api-keys.ndjson" + (gzip ? ".gz" : "");
+          return Response.ok(metrics.timeSerialization(ENDPOINT_EXPORT, body), gzip ? GZIP : NDJSON)
+              .header("Content-Disposition", "attachment; filename=\"" + filename + "\"")
+              .build();
+        });
   }
 
   @DELETE
@@ -96,21 +380,26 @@ public class ApiKeyResource {
   public Response revokeApiKey(@QueryParam(value = "apiKey") String apiKey) {
     logger.info("DELETE /api_key  apiKey:" + apiKey);
 
-    AuthenticationManager.AuthResult auth = authService.checkBearerAuth();
+    return metrics.timeRequest(
+        ENDPOINT_REVOKE,
+        () -> {
+          AuthenticationManager.AuthResult auth =
+              metrics.timePhase(ENDPOINT_REVOKE, PHASE_AUTH, authService()::checkBearerAuth);
 
-    Optional<UserAttributeEntity> foundApiKey = apiKeyService.findByApiKeyAttribute(apiKey);
-
-    if (foundApiKey.isEmpty()) {
-      throw new BadRequestException("ApiKey not found");
-    }
+          Optional<ApiKeyEntity> foundApiKey =
+              metrics.timePhase(
+                  ENDPOINT_REVOKE, PHASE_LOOKUP, () -> apiKeyService().findByApiKey(apiKey));
 
-    UserEntity ownerApiKey = foundApiKey.get().getUser();
+          if (foundApiKey.isEmpty()) {
+            throw new BadRequestException("ApiKey not found");
+          }
 
-    authService.validateIsSameUserOrAdmin(auth, ownerApiKey);
+          authService().validateIsSameUserOrAdmin(auth, foundApiKey.get().getUserId());
 
-    ApiKey revokedApiKey = apiKeyService.revokeApiKey(ownerApiKey, apiKey);
+          ApiKey revokedApiKey = apiKeyService().revokeApiKey(foundApiKey.get());
 
-    return Response.ok(revokedApiKey.toString()).build();
+          return Response.ok(revokedApiKey.toString()).build();
+        });
   }
 
   @POST
@@ -120,34 +409,237 @@ public class ApiKeyResource {
   public Response checkApiKey(@FormParam("apiKey") String apiKey) {
     logger.info("POST /check_api_key  apiKey:" + apiKey);
 
-    Object authObject = authService.checkBearerOrBasicAuth();
-    if (authObject == null) {
-      throw new NotAuthorizedException("Authentication not valid");
+    return metrics.timeRequest(
+        ENDPOINT_CHECK,
+        () -> {
+          Object authObject =
+              metrics.timePhase(ENDPOINT_CHECK, PHASE_AUTH, authService()::checkBearerOrBasicAuth);
+          if (authObject == null) {
+            throw new NotAuthorizedException("Authentication not valid");
+          }
+
+          RealmModel realm = session.getContext().getRealm();
+          try {
+            rateLimiter.checkCaller(realm, caller(authObject), 1);
+          } catch (ClientErrorException e) {
+            metrics.countCheckOutcome(OUTCOME_RATE_LIMITED);
+            throw e;
+          }
+
+          // only well formed apiKeys get a bucket of their own
+          try {
+            apiKeyService().validFormatApiKey(apiKey);
+          } catch (BadRequestException e) {
+            metrics.countCheckOutcome(OUTCOME_MALFORMED);
+            throw e;
+          }
+          try {
+            rateLimiter.checkKey(realm, apiKey);
+          } catch (ClientErrorException e) {
+            metrics.countCheckOutcome(OUTCOME_RATE_LIMITED);
+            throw e;
+          }
+
+          Optional<ApiKeySnapshot> foundApiKey =
+              metrics.timePhase(
+                  ENDPOINT_CHECK, PHASE_LOOKUP, () -> apiKeyService().findSnapshotByApiKey(apiKey));
+          if (foundApiKey.isEmpty()) {
+            metrics.countCheckOutcome(OUTCOME_NOT_FOUND);
+            throw new BadRequestException("ApiKey not found");
+          }
+
+          if (authObject instanceof AuthenticationManager.AuthResult) {
+            authService()
+                .validateIsSameUser(
+                    (AuthenticationManager.AuthResult) authObject, foundApiKey.get().getUserId());
+          }
+
+          usageTracker.record(foundApiKey.get().getId());
+
+          CheckApiKeyResponse result = apiKeyService().checkApiKeyResponse(foundApiKey.get());
+          metrics.countCheckOutcome(result);
+
+          return Response.status(207, "Multi-Status").entity(result).build();
+        });
+  }
+
+  @POST
+  @Path("check_api_keys")
+  @Consumes(MediaType.APPLICATION_JSON)
+  @Produces(MediaType.APPLICATION_JSON)
+  public Response checkApiKeys(List<String> apiKeys) {
+    logger.info("POST /check_api_keys  count:" + (apiKeys == null ? 0 : apiKeys.size()));
+
+    return metrics.timeRequest(
+        ENDPOINT_CHECK_BATCH,
+        () -> {
+          Object authObject =
+              metrics.timePhase(
+                  ENDPOINT_CHECK_BATCH, PHASE_AUTH, authService()::checkBearerOrBasicAuth);
+          if (authObject == null) {
+            throw new NotAuthorizedException("Authentication not valid");
+          }
+
+          if (apiKeys == null || apiKeys.isEmpty()) {
+            throw new BadRequestException("apiKeys cannot be empty.");
+          }
+          if (apiKeys.size() > config.getCheckBatchMaxSize()) {
+            throw new BadRequestException(
+                "At most " + config.getCheckBatchMaxSize() + " apiKeys can be checked at once");
+          }
+
+          // every apiKey of the batch counts as one check of the caller
+          RealmModel realm = session.getContext().getRealm();
+          try {
+            rateLimiter.checkCaller(realm, caller(authObject), apiKeys.size());
+          } catch (ClientErrorException e) {
+            metrics.countCheckOutcome(OUTCOME_RATE_LIMITED);
+            throw e;
+          }
+
+          // malformed and rate limited apiKeys are reported in their own result instead of
+          // failing the whole batch
+          Map<String, String> errors = new HashMap<>();
+          Set<String> rateLimited = new HashSet<>();
+          Set<String> validApiKeys = new LinkedHashSet<>();
+          for (String apiKey : apiKeys) {
+            // repeated apiKeys are checked once
+            if (validApiKeys.contains(apiKey) || errors.containsKey(apiKey)) {
+              continue;
+            }
+            try {
+              apiKeyService().validFormatApiKey(apiKey);
+            } catch (BadRequestException e) {
+              errors.put(apiKey, e.getMessage());
+              continue;
+            }
+            if (!rateLimiter.tryKey(realm, apiKey)) {
+              rateLimited.add(apiKey);
+              errors.put(apiKey, "Too many checks of this apiKey");
+              continue;
+            }
+            validApiKeys.add(apiKey);
+          }
+
+          Map<String, ApiKeySnapshot> foundApiKeys =
+              metrics.timePhase(
+                  ENDPOINT_CHECK_BATCH,
+                  PHASE_LOOKUP,
+                  () -> apiKeyService().findSnapshotsByApiKeys(validApiKeys));
+
+          List<CheckApiKeyResponse> results = new ArrayList<>();
+          for (String apiKey : apiKeys) {
+            ApiKeySnapshot foundApiKey = foundApiKeys.get(apiKey);
+            if (foundApiKey == null) {
+              String error = errors.get(apiKey);
+              metrics.countCheckOutcome(
+                  error == null
+                      ? OUTCOME_NOT_FOUND
+                      : rateLimited.contains(apiKey) ? OUTCOME_RATE_LIMITED : OUTCOME_MALFORMED);
+              results.add(
+                  CheckApiKeyResponse.builder()
+                      .apiKey(apiKey)
+                      .message(error == null ? "ApiKey not found" : error)
+                      .build());
+              continue;
+            }
+
+            if (authObject instanceof AuthenticationManager.AuthResult) {
+              try {
+                authService()
+                    .validateIsSameUser(
+                        (AuthenticationManager.AuthResult) authObject, foundApiKey.getUserId());
+              } catch (ForbiddenException e) {
+                metrics.countCheckOutcome(OUTCOME_FORBIDDEN);
+                results.add(
+                    CheckApiKeyResponse.builder().apiKey(apiKey).message(e.getMessage()).build());
+                continue;
+              }
+            }
+
+            usageTracker.record(foundApiKey.getId());
+
+            CheckApiKeyResponse result = apiKeyService().checkApiKeyResponse(foundApiKey);
+            result.setApiKey(apiKey);
+            metrics.countCheckOutcome(result);
+            results.add(result);
+          }
+
+          return Response.status(207, "Multi-Status").entity(results).build();
+        });
+  }
+
+  @GET
+  @Path("check_api_key/cache")
+  @Produces(MediaType.APPLICATION_JSON)
+  public Response checkApiKeyCacheStats() {
+    logger.info("GET /check_api_key/cache");
+
+    return metrics.timeRequest(
+        ENDPOINT_CACHE_STATS,
+        () -> {
+          AuthenticationManager.AuthResult auth =
+              metrics.timePhase(ENDPOINT_CACHE_STATS, PHASE_AUTH, authService()::checkBearerAuth);
+
+          authService().validateIsAdmin(auth);
+
+          return Response.ok(
+                  CacheStatsResponse.builder()
+                      .size(apiKeyCache.size())
+                      .hits(apiKeyCache.getHits())
+                      .misses(apiKeyCache.getMisses())
+                      .build())
+              .build();
+        });
+  }
+
+  /**
+   * Whether this node is done warming up, for load balancers to only send it traffic afterwards. No
+   * authentication is needed, and it is neither logged nor timed as it is polled.
+   */
+  @GET
+  @Path("ready")
+  @Produces(MediaType.APPLICATION_JSON)
+  public Response ready() {
+    boolean ready = warmUp.isReady();
+    return Response.status(ready ? Response.Status.OK : Response.Status.SERVICE_UNAVAILABLE)
+        .entity(ReadinessResponse.builder().status(ready ? "ready" : "warming_up").build())
+        .build();
+  }
+
+  private static void validateType(String type) {
+    if (!API_KEY_TYPE_OPAQUE.equals(type) && !API_KEY_TYPE_SIGNED.equals(type)) {
+      throw new BadRequestException(
+          "type must be " + API_KEY_TYPE_OPAQUE + " or " + API_KEY_TYPE_SIGNED);
     }
+  }
 
-    Optional<UserAttributeEntity> foundApiKey = apiKeyService.findByApiKeyAttribute(apiKey);
-    if (foundApiKey.isEmpty()) {
-      throw new BadRequestException("ApiKey not found");
+  /** Identity the checks are rate limited by: the client of Basic auth or the Bearer user. */
+  private static String caller(Object authObject) {
+    if (authObject instanceof ClientModel) {
+      return "client:" + ((ClientModel) authObject).getClientId();
     }
+    return "user:" + ((AuthenticationManager.AuthResult) authObject).getUser().getId();
+  }
 
-    UserEntity ownerApiKey = foundApiKey.get().getUser();
+  private UserService userService() {
+    if (userService == null) {
+      userService = new UserService(session);
+    }
+    return userService;
+  }
 
-    if (authObject instanceof AuthenticationManager.AuthResult) {
-      authService.validateIsSameUser((AuthenticationManager.AuthResult) authObject, ownerApiKey);
+  private ApiKeyService apiKeyService() {
+    if (apiKeyService == null) {
+      apiKeyService = new ApiKeyService(session, components);
     }
+    return apiKeyService;
+  }
 
-    ApiKey parsedApiKey = apiKeyService.parseApiKey(foundApiKey.get());
-
-    return Response.status(207, "Multi-Status")
-        .entity(
-            CheckApiKeyResponse.builder()
-                .user_id(ownerApiKey.getId())
-                .exp(parsedApiKey.getExpiryDate().getTime())
-                .isValid(apiKeyService.isValidApiKey(parsedApiKey))
-                .message(apiKeyService.checkApiResponseMessage(parsedApiKey))
-                .isRevoked(parsedApiKey.getIsRevoked())
-                .scope(apiKeyService.isValidApiKey(parsedApiKey) ? parsedApiKey.getScope() : null)
-                .build())
-        .build();
+  private AuthService authService() {
+    if (authService == null) {
+      authService = new AuthService(session, components);
+    }
+    return authService;
   }
 }
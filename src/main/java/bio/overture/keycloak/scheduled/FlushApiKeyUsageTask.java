@@ -0,0 +1,50 @@
+package bio.overture.keycloak.scheduled;
+
+import bio.overture.keycloak.cache.ApiKeyUsageTracker;
+import bio.overture.keycloak.model.ApiKeyUsage;
+import bio.overture.keycloak.provider.ApiKeyComponents;
+import bio.overture.keycloak.services.ApiKeyService;
+import java.util.List;
+import lombok.RequiredArgsConstructor;
+import org.jboss.logging.Logger;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.timer.ScheduledTask;
+
+/**
+ * Writes the apiKey uses counted by this node since the previous run. Every node runs it, as each
+ * holds its own counts. Uses that could not be written are kept for the next run.
+ */
+@RequiredArgsConstructor
+public class FlushApiKeyUsageTask implements ScheduledTask {
+
+  public static final String TASK_NAME = "apikey-usage-flush";
+
+  private static final Logger logger = Logger.getLogger(FlushApiKeyUsageTask.class);
+
+  private final ApiKeyComponents components;
+
+  @Override
+  public void run(KeycloakSession session) {
+    flush(session.getKeycloakSessionFactory());
+  }
+
+  public void flush(KeycloakSessionFactory sessionFactory) {
+    ApiKeyUsageTracker usageTracker = components.getUsageTracker();
+    List<ApiKeyUsage> usages = usageTracker.drain();
+    if (usages.isEmpty()) {
+      return;
+    }
+
+    // in its own transaction, so a failed commit is noticed here
+    try {
+      KeycloakModelUtils.runJobInTransaction(
+          sessionFactory, session -> new ApiKeyService(session, components).addUsage(usages));
+      logger.debugf("FlushApiKeyUsageTask - Wrote the usage of %d apiKeys", usages.size());
+    } catch (RuntimeException e) {
+      usageTracker.restore(usages);
+      logger.warn("FlushApiKeyUsageTask - Could not write the apiKey usage, will retry", e);
+    }
+  }
+}
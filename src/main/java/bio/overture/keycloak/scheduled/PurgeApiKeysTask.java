@@ -0,0 +1,72 @@
+package bio.overture.keycloak.scheduled;
+
+import bio.overture.keycloak.provider.ApiKeyComponents;
+import bio.overture.keycloak.services.ApiKeyService;
+import java.util.concurrent.TimeUnit;
+import lombok.RequiredArgsConstructor;
+import org.jboss.logging.Logger;
+import org.keycloak.cluster.ClusterProvider;
+import org.keycloak.cluster.ExecutionResult;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.timer.ScheduledTask;
+
+/**
+ * Deletes the apiKeys that expired or were revoked more than {@code retentionDays} ago. Every node
+ * schedules it, but it never runs on two nodes at once: a node finding it in progress elsewhere
+ * skips its turn. Purging again right after another node is cheap, as nothing is left to delete.
+ * Deletes in batches of {@code batchSize}, each in its own transaction, so locks are only held for
+ * one batch.
+ */
+@RequiredArgsConstructor
+public class PurgeApiKeysTask implements ScheduledTask {
+
+  public static final String TASK_NAME = "apikey-purge";
+
+  private static final Logger logger = Logger.getLogger(PurgeApiKeysTask.class);
+
+  private final ApiKeyComponents components;
+  private final long retentionDays;
+  private final int batchSize;
+  private final int intervalSeconds;
+
+  @Override
+  public void run(KeycloakSession session) {
+    KeycloakSessionFactory sessionFactory = session.getKeycloakSessionFactory();
+    ClusterProvider cluster = session.getProvider(ClusterProvider.class);
+    if (cluster == null) {
+      purge(sessionFactory);
+      return;
+    }
+
+    // skipped while another node runs it, the interval only bounds how long a node that died
+    // while purging keeps the others out
+    ExecutionResult<Integer> result =
+        cluster.executeIfNotExecuted(TASK_NAME, intervalSeconds, () -> purge(sessionFactory));
+    if (!result.isExecuted()) {
+      logger.debug("PurgeApiKeysTask - Already run by another node");
+    }
+  }
+
+  private int purge(KeycloakSessionFactory sessionFactory) {
+    long before = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(retentionDays);
+
+    int purged = 0;
+    int deleted;
+    do {
+      deleted =
+          KeycloakModelUtils.runJobInTransactionWithResult(
+              sessionFactory,
+              session -> new ApiKeyService(session, components).purgeApiKeys(before, batchSize));
+      purged += deleted;
+    } while (deleted == batchSize);
+
+    if (purged > 0) {
+      logger.infof(
+          "PurgeApiKeysTask - Deleted %d apiKeys expired or revoked for more than %d days",
+          purged, retentionDays);
+    }
+    return purged;
+  }
+}
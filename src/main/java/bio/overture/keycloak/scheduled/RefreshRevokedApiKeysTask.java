@@ -0,0 +1,29 @@
+package bio.overture.keycloak.scheduled;
+
+import bio.overture.keycloak.model.RevokedApiKey;
+import bio.overture.keycloak.provider.ApiKeyComponents;
+import bio.overture.keycloak.services.ApiKeyService;
+import java.util.List;
+import lombok.RequiredArgsConstructor;
+import org.jboss.logging.Logger;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.timer.ScheduledTask;
+
+/** Reloads the revoked signed apiKeys. Every node runs it, as each holds its own copy. */
+@RequiredArgsConstructor
+public class RefreshRevokedApiKeysTask implements ScheduledTask {
+
+  public static final String TASK_NAME = "apikey-revocation-refresh";
+
+  private static final Logger logger = Logger.getLogger(RefreshRevokedApiKeysTask.class);
+
+  private final ApiKeyComponents components;
+
+  @Override
+  public void run(KeycloakSession session) {
+    long loadStartedAt = System.currentTimeMillis();
+    List<RevokedApiKey> revoked = new ApiKeyService(session, components).findRevokedSignedApiKeys();
+    components.getRevokedApiKeys().replace(revoked, loadStartedAt);
+    logger.debugf("RefreshRevokedApiKeysTask - Loaded %d revoked signed apiKeys", revoked.size());
+  }
+}
@@ -1,120 +1,451 @@
 package bio.overture.keycloak.services;
 
+import static bio.overture.keycloak.metrics.ApiKeyMetrics.LOOKUP_BY_HASH;
+import static bio.overture.keycloak.metrics.ApiKeyMetrics.LOOKUP_BY_HASHES;
+import static bio.overture.keycloak.metrics.ApiKeyMetrics.LOOKUP_BY_ID;
+import static bio.overture.keycloak.metrics.ApiKeyMetrics.LOOKUP_LIST;
+import static bio.overture.keycloak.metrics.ApiKeyMetrics.LOOKUP_SEARCH;
+import static bio.overture.keycloak.metrics.ApiKeyMetrics.LOOKUP_SIGNED;
+import static bio.overture.keycloak.utils.CollectionUtils.mapToList;
+import static bio.overture.keycloak.utils.Constants.API_KEY_TYPE_OPAQUE;
+import static bio.overture.keycloak.utils.Constants.API_KEY_TYPE_SIGNED;
 import static bio.overture.keycloak.utils.Constants.SORT_ORDER_ASC;
-import static bio.overture.keycloak.utils.Converters.jsonStringToClass;
+import static bio.overture.keycloak.utils.Constants.SORT_ORDER_DESC;
 import static bio.overture.keycloak.utils.Dates.isExpired;
 import static bio.overture.keycloak.utils.Dates.keyExpirationDate;
+import static java.util.stream.Collectors.groupingBy;
+import static java.util.stream.Collectors.mapping;
 import static java.util.stream.Collectors.toList;
+import static java.util.stream.Collectors.toSet;
+import static java.util.stream.Collectors.toUnmodifiableSet;
 import static org.keycloak.common.util.ObjectUtil.isBlank;
 
+import bio.overture.keycloak.cache.ApiKeyCache;
+import bio.overture.keycloak.cache.ApiKeyLookupCoalescer;
+import bio.overture.keycloak.cache.RevokedApiKeys;
+import bio.overture.keycloak.metrics.ApiKeyMetrics;
 import bio.overture.keycloak.model.ApiKey;
+import bio.overture.keycloak.model.ApiKeyExport;
+import bio.overture.keycloak.model.ApiKeyPage;
+import bio.overture.keycloak.model.ApiKeySearch;
+import bio.overture.keycloak.model.ApiKeySnapshot;
+import bio.overture.keycloak.model.ApiKeyToken;
+import bio.overture.keycloak.model.ApiKeyUsage;
+import bio.overture.keycloak.model.RevokedApiKey;
+import bio.overture.keycloak.model.dto.ApiKeySearchResponse;
+import bio.overture.keycloak.model.dto.CheckApiKeyResponse;
+import bio.overture.keycloak.model.dto.IssueApiKeyRequest;
+import bio.overture.keycloak.model.entity.ApiKeyEntity;
+import bio.overture.keycloak.model.enums.ApiKeySortField;
 import bio.overture.keycloak.params.ScopeName;
+import bio.overture.keycloak.provider.ApiKeyComponents;
+import bio.overture.keycloak.utils.ApiKeyFormat;
 import bio.overture.keycloak.utils.Hasher;
+import bio.overture.keycloak.utils.PageCursor;
 import jakarta.persistence.EntityManager;
+import jakarta.persistence.Tuple;
 import jakarta.persistence.TypedQuery;
+import jakarta.persistence.criteria.CommonAbstractCriteria;
 import jakarta.persistence.criteria.CriteriaBuilder;
+import jakarta.persistence.criteria.CriteriaDelete;
 import jakarta.persistence.criteria.CriteriaQuery;
+import jakarta.persistence.criteria.CriteriaUpdate;
+import jakarta.persistence.criteria.Expression;
+import jakarta.persistence.criteria.Join;
+import jakarta.persistence.criteria.JoinType;
+import jakarta.persistence.criteria.Path;
 import jakarta.persistence.criteria.Predicate;
 import jakarta.persistence.criteria.Root;
+import jakarta.persistence.criteria.Subquery;
 import jakarta.ws.rs.BadRequestException;
+import java.sql.PreparedStatement;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 import lombok.NonNull;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
+import org.hibernate.Session;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.metamodel.MappingMetamodel;
+import org.hibernate.persister.collection.AbstractCollectionPersister;
 import org.jboss.logging.Logger;
 import org.keycloak.connections.jpa.JpaConnectionProvider;
 import org.keycloak.models.KeycloakSession;
-import org.keycloak.models.jpa.entities.UserAttributeEntity;
-import org.keycloak.models.jpa.entities.UserEntity;
 
 public class ApiKeyService {
 
-  private KeycloakSession session;
+  private final KeycloakSession session;
   private EntityManager entityManager;
 
-  private Hasher hasher;
+  private final Hasher hasher;
+  private final ApiKeyCache apiKeyCache;
+  private final ApiKeyLookupCoalescer lookupCoalescer;
+  private final RevokedApiKeys revokedApiKeys;
+  private final ApiKeyMetrics metrics;
 
   private static final Logger logger = Logger.getLogger(ApiKeyService.class);
 
-  private static final String API_KEYS_ATTRIBUTE = "api-keys";
+  private static final int USAGE_BATCH_SIZE = 500;
+  private static final int INSERT_BATCH_SIZE = 500;
+  private static final int PRELOAD_BATCH_SIZE = 1000;
+  private static final int SEARCH_MAX_LIMIT = 1000;
 
-  public ApiKeyService(KeycloakSession session) {
+  public ApiKeyService(KeycloakSession session, ApiKeyComponents components) {
+    this(
+        session,
+        components.getHasher(),
+        components.getApiKeyCache(),
+        components.getLookupCoalescer(),
+        components.getRevokedApiKeys(),
+        components.getMetrics());
+  }
+
+  /** A service over caches and meters of its own, e.g. to run lookups that are not traffic. */
+  public ApiKeyService(
+      KeycloakSession session,
+      Hasher hasher,
+      ApiKeyCache apiKeyCache,
+      ApiKeyLookupCoalescer lookupCoalescer,
+      RevokedApiKeys revokedApiKeys,
+      ApiKeyMetrics metrics) {
     this.session = session;
-    this.entityManager = session.getProvider(JpaConnectionProvider.class).getEntityManager();
-    this.hasher = new Hasher();
+    this.hasher = hasher;
+    this.apiKeyCache = apiKeyCache;
+    this.lookupCoalescer = lookupCoalescer;
+    this.revokedApiKeys = revokedApiKeys;
+    this.metrics = metrics;
+  }
+
+  /** Resolved on first use, requests answered from the caches never need it. */
+  private EntityManager entityManager() {
+    if (entityManager == null) {
+      entityManager = session.getProvider(JpaConnectionProvider.class).getEntityManager();
+    }
+    return entityManager;
   }
 
-  public List<ApiKey> getApiKeys(
-      @NonNull UserEntity user,
+  /**
+   * One page of the apiKeys of a user, sorted, limited and counted by the database. The page starts
+   * after {@code cursor} when given, otherwise after {@code offset} apiKeys; ties are broken by id
+   * so every apiKey appears exactly once across pages.
+   */
+  public ApiKeyPage getApiKeys(
+      @NonNull String userId,
       String query,
       int limit,
       int offset,
+      String cursor,
       String sort,
       String sortOrder) {
 
-    if (user.getAttributes() == null
-        || user.getAttributes().stream()
-            .noneMatch(attribute -> attribute.getName().equals(API_KEYS_ATTRIBUTE))) {
-      return Collections.emptyList();
-    }
-
     if (!isBlank(query)) {
       validFormatApiKey(query);
     }
+    if (limit < 0 || offset < 0) {
+      throw new BadRequestException("limit and offset cannot be negative");
+    }
 
-    return user.getAttributes().stream()
-        .filter(attribute -> attribute.getName().equals(API_KEYS_ATTRIBUTE))
-        .map(this::parseApiKey)
-        .filter(filterByApiKeyName(query))
-        .sorted(findComparator(sort, sortOrder))
-        .map(this::hideApiKeyvalue)
-        .skip(offset)
-        .limit(limit)
-        .collect(toList());
-  }
-
-  private java.util.function.Predicate<ApiKey> filterByApiKeyName(String query) {
-    return value -> !query.isEmpty() ? value.getName().equals(hasher.generateHash(query)) : true;
-  }
-
-  private Comparator<ApiKey> findComparator(String sort, String sortOrder) {
-    Comparator<ApiKey> comparator;
-    switch (sort.toUpperCase()) {
-      case "EXPIRYDATE":
-        comparator =
-            sortOrder.equalsIgnoreCase(SORT_ORDER_ASC)
-                ? ApiKey.byExpiryDate
-                : ApiKey.byExpiryDate.reversed();
-        break;
-      case "ISSUEDATE":
-        comparator =
-            sortOrder.equalsIgnoreCase(SORT_ORDER_ASC)
-                ? ApiKey.byIssueDate
-                : ApiKey.byIssueDate.reversed();
-        break;
-      case "ISREVOKED":
-        comparator =
-            sortOrder.equalsIgnoreCase(SORT_ORDER_ASC)
-                ? ApiKey.byRevoked
-                : ApiKey.byRevoked.reversed();
-        break;
-      case "DESCRIPTION":
-        comparator =
-            sortOrder.equalsIgnoreCase(SORT_ORDER_ASC)
-                ? ApiKey.byDescription
-                : ApiKey.byDescription.reversed();
-        break;
+    ApiKeySortField sortField = ApiKeySortField.fromValue(sort);
+    boolean ascending = sortOrder.equalsIgnoreCase(SORT_ORDER_ASC);
+    String order = ascending ? SORT_ORDER_ASC : SORT_ORDER_DESC;
+
+    CriteriaBuilder cb = entityManager().getCriteriaBuilder();
+
+    CriteriaQuery<Long> countQuery = cb.createQuery(Long.class);
+    Root<ApiKeyEntity> countRoot = countQuery.from(ApiKeyEntity.class);
+    countQuery.select(cb.count(countRoot)).where(searchApiKeys(cb, countRoot, userId, query));
+    long total = entityManager().createQuery(countQuery).getSingleResult();
+
+    CriteriaQuery<ApiKeyEntity> cq = cb.createQuery(ApiKeyEntity.class);
+    Root<ApiKeyEntity> root = cq.from(ApiKeyEntity.class);
+
+    Predicate search = searchApiKeys(cb, root, userId, query);
+    if (!isBlank(cursor)) {
+      PageCursor pageCursor = PageCursor.decode(cursor);
+      if (!pageCursor.getSort().equals(sortField.name())
+          || !pageCursor.getSortOrder().equals(order)) {
+        throw new BadRequestException("cursor was issued for another sort");
+      }
+      search = cb.and(search, after(cb, root, sortField, pageCursor, ascending));
+    }
+
+    Expression<?> sortExpression = sortExpression(cb, root, sortField);
+    cq.where(search)
+        .orderBy(
+            ascending ? cb.asc(sortExpression) : cb.desc(sortExpression),
+            ascending ? cb.asc(root.get("id")) : cb.desc(root.get("id")));
+
+    // one extra row tells whether there is a next page
+    TypedQuery<ApiKeyEntity> typedQuery = entityManager().createQuery(cq).setMaxResults(limit + 1);
+    if (isBlank(cursor)) {
+      typedQuery.setFirstResult(offset);
+    }
+    List<ApiKeyEntity> apiKeyEntities = typedQuery.getResultList();
+    metrics.recordRowsScanned(LOOKUP_LIST, apiKeyEntities.size());
+
+    String nextCursor = null;
+    if (apiKeyEntities.size() > limit) {
+      apiKeyEntities = apiKeyEntities.subList(0, limit);
+      if (!apiKeyEntities.isEmpty()) {
+        ApiKeyEntity last = apiKeyEntities.get(apiKeyEntities.size() - 1);
+        nextCursor =
+            new PageCursor(sortField.name(), order, last.getId(), sortField.cursorValue(last))
+                .encode();
+      }
+    }
+
+    return ApiKeyPage.builder()
+        .apiKeys(
+            apiKeyEntities.stream()
+                .map(this::toApiKey)
+                .map(this::hideApiKeyvalue)
+                .collect(toList()))
+        .total(total)
+        .nextCursor(nextCursor)
+        .build();
+  }
+
+  private Predicate searchApiKeys(
+      CriteriaBuilder cb, Root<ApiKeyEntity> root, String userId, String query) {
+    Predicate searchUser = cb.equal(root.get("userId"), userId);
+    Predicate searchName =
+        isBlank(query) ? cb.conjunction() : cb.equal(root.get("hash"), hasher.generateHash(query));
+    return cb.and(searchUser, searchName);
+  }
+
+  private Expression<?> sortExpression(
+      CriteriaBuilder cb, Root<ApiKeyEntity> root, ApiKeySortField sortField) {
+    switch (sortField) {
+      case DESCRIPTION:
+        return cb.coalesce(root.<String>get("description"), "");
+      case LASTUSED:
+        return cb.coalesce(root.<Long>get("lastUsed"), 0L);
       default:
-        comparator =
-            sortOrder.equalsIgnoreCase(SORT_ORDER_ASC) ? ApiKey.byName : ApiKey.byName.reversed();
-        break;
+        return root.get(sortField.getAttribute());
+    }
+  }
+
+  private Predicate after(
+      CriteriaBuilder cb,
+      Root<ApiKeyEntity> root,
+      ApiKeySortField sortField,
+      PageCursor cursor,
+      boolean ascending) {
+    Path<String> id = root.get("id");
+    try {
+      switch (sortField) {
+        case EXPIRYDATE:
+        case ISSUEDATE:
+        case USAGECOUNT:
+          return after(
+              cb,
+              root.<Long>get(sortField.getAttribute()),
+              Long.valueOf(cursor.getValue()),
+              id,
+              cursor.getId(),
+              ascending);
+        case ISREVOKED:
+          return after(
+              cb,
+              root.<Boolean>get(sortField.getAttribute()),
+              Boolean.valueOf(cursor.getValue()),
+              id,
+              cursor.getId(),
+              ascending);
+        case DESCRIPTION:
+          return after(
+              cb,
+              cb.coalesce(root.<String>get("description"), ""),
+              cursor.getValue(),
+              id,
+              cursor.getId(),
+              ascending);
+        case LASTUSED:
+          return after(
+              cb,
+              cb.coalesce(root.<Long>get("lastUsed"), 0L),
+              Long.valueOf(cursor.getValue()),
+              id,
+              cursor.getId(),
+              ascending);
+        default:
+          return after(
+              cb,
+              root.<String>get(sortField.getAttribute()),
+              cursor.getValue(),
+              id,
+              cursor.getId(),
+              ascending);
+      }
+    } catch (NumberFormatException e) {
+      throw new BadRequestException("Invalid cursor");
     }
-    return comparator;
   }
 
+  private static <Y extends Comparable<? super Y>> Predicate after(
+      CriteriaBuilder cb,
+      Expression<? extends Y> expression,
+      Y value,
+      Path<String> id,
+      String lastId,
+      boolean ascending) {
+    Predicate beyond =
+        ascending ? cb.greaterThan(expression, value) : cb.lessThan(expression, value);
+    Predicate tie =
+        cb.and(
+            cb.equal(expression, value),
+            ascending ? cb.greaterThan(id, lastId) : cb.lessThan(id, lastId));
+    return cb.or(beyond, tie);
+  }
+
+  /**
+   * One page of the apiKeys of the realm matching every filter of {@code search}, for Admin users.
+   * Pages are sorted on the indexed expiry or issue date and only reached through {@code cursor},
+   * so the database neither counts the matches nor reads the rows of previous pages.
+   */
+  public ApiKeySearchResponse searchApiKeys(
+      @NonNull ApiKeySearch search, int limit, String cursor, String sort, String sortOrder) {
+    if (limit < 1 || limit > SEARCH_MAX_LIMIT) {
+      throw new BadRequestException("limit must be between 1 and " + SEARCH_MAX_LIMIT);
+    }
+    ApiKeySortField sortField = ApiKeySortField.fromValue(sort);
+    if (sortField != ApiKeySortField.EXPIRYDATE && sortField != ApiKeySortField.ISSUEDATE) {
+      throw new BadRequestException("sort must be expirydate or issuedate");
+    }
+    boolean ascending = sortOrder.equalsIgnoreCase(SORT_ORDER_ASC);
+    String order = ascending ? SORT_ORDER_ASC : SORT_ORDER_DESC;
+
+    CriteriaBuilder cb = entityManager().getCriteriaBuilder();
+    CriteriaQuery<ApiKeyEntity> cq = cb.createQuery(ApiKeyEntity.class);
+    Root<ApiKeyEntity> root = cq.from(ApiKeyEntity.class);
+
+    List<Predicate> criteria = new ArrayList<>();
+    criteria.add(cb.equal(root.get("realmId"), session.getContext().getRealm().getId()));
+    if (search.getUserId() != null) {
+      criteria.add(cb.equal(root.get("userId"), search.getUserId()));
+    }
+    if (search.getScope() != null) {
+      criteria.add(hasScope(cb, cq, root, search.getScope()));
+    }
+    if (search.getExpiresAfter() != null) {
+      criteria.add(cb.greaterThanOrEqualTo(root.get("expiryDate"), search.getExpiresAfter()));
+    }
+    if (search.getExpiresBefore() != null) {
+      criteria.add(cb.lessThan(root.get("expiryDate"), search.getExpiresBefore()));
+    }
+    if (search.getIssuedAfter() != null) {
+      criteria.add(cb.greaterThanOrEqualTo(root.get("issueDate"), search.getIssuedAfter()));
+    }
+    if (search.getIssuedBefore() != null) {
+      criteria.add(cb.lessThan(root.get("issueDate"), search.getIssuedBefore()));
+    }
+    if (search.getRevoked() != null) {
+      criteria.add(cb.equal(root.get("revoked"), search.getRevoked()));
+    }
+    if (!isBlank(cursor)) {
+      PageCursor pageCursor = PageCursor.decode(cursor);
+      if (!pageCursor.getSort().equals(sortField.name())
+          || !pageCursor.getSortOrder().equals(order)) {
+        throw new BadRequestException("cursor was issued for another sort");
+      }
+      criteria.add(after(cb, root, sortField, pageCursor, ascending));
+    }
+
+    Path<Long> sortPath = root.get(sortField.getAttribute());
+    cq.where(criteria.toArray(new Predicate[0]))
+        .orderBy(
+            ascending ? cb.asc(sortPath) : cb.desc(sortPath),
+            ascending ? cb.asc(root.get("id")) : cb.desc(root.get("id")));
+
+    // one extra row tells whether there is a next page
+    List<ApiKeyEntity> apiKeyEntities =
+        entityManager().createQuery(cq).setMaxResults(limit + 1).getResultList();
+    metrics.recordRowsScanned(LOOKUP_SEARCH, apiKeyEntities.size());
+
+    String nextCursor = null;
+    if (apiKeyEntities.size() > limit) {
+      apiKeyEntities = apiKeyEntities.subList(0, limit);
+      ApiKeyEntity last = apiKeyEntities.get(apiKeyEntities.size() - 1);
+      nextCursor =
+          new PageCursor(sortField.name(), order, last.getId(), sortField.cursorValue(last))
+              .encode();
+    }
+
+    return ApiKeySearchResponse.builder()
+        .limit(limit)
+        .count(apiKeyEntities.size())
+        .nextCursor(nextCursor)
+        .resultSet(mapToList(apiKeyEntities, this::toExport))
+        .build();
+  }
+
+  /** apiKeys having {@code scope}, found through the index on the scopes. */
+  private static Predicate hasScope(
+      CriteriaBuilder cb, CommonAbstractCriteria query, Root<ApiKeyEntity> root, String scope) {
+    Subquery<String> withScope = query.subquery(String.class);
+    Root<ApiKeyEntity> scoped = withScope.from(ApiKeyEntity.class);
+    withScope.select(scoped.get("id")).where(cb.equal(scoped.join("scopes"), scope));
+    return root.get("id").in(withScope);
+  }
+
+  /**
+   * Issues an apiKey. Signed apiKeys carry their owner, scopes and expiry, signed with a realm key,
+   * so they are checked without reading the database; they are stored all the same, to be listed
+   * and revoked.
+   */
   public ApiKey issueApiKey(
-      @NonNull String userId, @NonNull List<ScopeName> scopes, String description) {
+      @NonNull String userId, @NonNull List<ScopeName> scopes, String description, boolean signed) {
+
+    ApiKeyEntity apiKeyEntity = new ApiKeyEntity();
+    ApiKey apiKey = newApiKey(apiKeyEntity, userId, scopes, description, signed);
+    entityManager().persist(apiKeyEntity);
+    return apiKey;
+  }
+
+  /**
+   * Issues many apiKeys, stored with one batched statement per {@value #INSERT_BATCH_SIZE} apiKeys.
+   * The users and their scopes must have been checked. The apiKeys are returned in the order of the
+   * requests.
+   */
+  public List<ApiKey> issueApiKeys(@NonNull List<IssueApiKeyRequest> requests) {
+    List<ApiKeyEntity> apiKeyEntities = new ArrayList<>(requests.size());
+    List<ApiKey> apiKeys = new ArrayList<>(requests.size());
+    for (IssueApiKeyRequest request : requests) {
+      ApiKeyEntity apiKeyEntity = new ApiKeyEntity();
+      apiKeys.add(
+          newApiKey(
+              apiKeyEntity,
+              request.getUser_id(),
+              mapToList(request.getScopes(), ScopeName::new),
+              request.getDescription(),
+              API_KEY_TYPE_SIGNED.equals(request.getType())));
+      apiKeyEntities.add(apiKeyEntity);
+    }
+    insertApiKeys(apiKeyEntities);
+    return apiKeys;
+  }
+
+  /** Fills {@code apiKeyEntity} with a new apiKey, returned with its value, which is not stored. */
+  private ApiKey newApiKey(
+      ApiKeyEntity apiKeyEntity,
+      String userId,
+      List<ScopeName> scopes,
+      String description,
+      boolean signed) {
 
-    // generate the apiKey value
-    String apiKeyName = UUID.randomUUID().toString();
+    String id = UUID.randomUUID().toString();
+    Date expiryDate = keyExpirationDate();
+
+    // generate the apiKey value, carrying the id it is stored with
+    String apiKeyName;
+    if (signed) {
+      // the expiry of a token is in seconds
+      expiryDate = new Date(TimeUnit.SECONDS.toMillis(expiryDate.getTime() / 1000));
+      apiKeyName = signApiKey(id, userId, scopes, expiryDate);
+    } else {
+      apiKeyName = ApiKeyFormat.generate(id);
+    }
 
     // hash the apiKey value
     String hashedApiKeyName = hasher.generateHash(apiKeyName);
@@ -125,11 +456,11 @@ public class ApiKeyService {
             .scope(new HashSet<>(scopes))
             .description(description)
             .issueDate(new Date())
-            .expiryDate(keyExpirationDate())
+            .expiryDate(expiryDate)
             .isRevoked(false)
             .build();
 
-    setApiKey(userId, apiKey);
+    setApiKey(apiKeyEntity, id, userId, apiKey, signed);
 
     // return the non-hashed apiKey name
     apiKey.setName(apiKeyName);
@@ -137,107 +468,704 @@ public class ApiKeyService {
     return apiKey;
   }
 
-  public ApiKey revokeApiKey(@NonNull UserEntity user, String apiKeyName) {
+  public ApiKey revokeApiKey(@NonNull ApiKeyEntity apiKeyEntity) {
 
-    validFormatApiKey(apiKeyName);
+    apiKeyEntity.setRevoked(true);
+    apiKeyEntity.setRevokedDate(System.currentTimeMillis());
 
-    Optional<UserAttributeEntity> foundAttribute =
-        entityManager.find(UserEntity.class, user.getId()).getAttributes().stream()
-            .filter(
-                attribute ->
-                    parseApiKey(attribute).getName().equals(hasher.generateHash(apiKeyName)))
-            .findFirst();
+    entityManager().persist(apiKeyEntity);
+
+    apiKeyCache.invalidate(session, apiKeyEntity.getRealmId(), List.of(apiKeyEntity.getHash()));
+    if (apiKeyEntity.isSigned()) {
+      revokedApiKeys.revoke(
+          session, Set.of(new RevokedApiKey(apiKeyEntity.getRealmId(), apiKeyEntity.getId())));
+    }
+
+    // return null apiKey Name
+    return hideApiKeyvalue(toApiKey(apiKeyEntity));
+  }
+
+  /**
+   * Revokes, with a single update, the apiKeys of the realm matching every criterion given, and
+   * returns how many were revoked. The apiKey cache of the realm is dropped, rather than the
+   * revoked apiKeys one by one.
+   */
+  public int revokeApiKeys(String userId, String scope, Long issuedAfter, Long issuedBefore) {
+    String realmId = session.getContext().getRealm().getId();
+    long revokedDate = System.currentTimeMillis();
+
+    CriteriaBuilder cb = entityManager().getCriteriaBuilder();
+    CriteriaUpdate<ApiKeyEntity> cu = cb.createCriteriaUpdate(ApiKeyEntity.class);
+    Root<ApiKeyEntity> root = cu.from(ApiKeyEntity.class);
 
-    if (foundAttribute.isEmpty()) {
-      throw new BadRequestException("No ApiKey found");
+    List<Predicate> criteria = new ArrayList<>();
+    criteria.add(cb.equal(root.get("realmId"), realmId));
+    criteria.add(cb.isFalse(root.get("revoked")));
+    if (userId != null) {
+      criteria.add(cb.equal(root.get("userId"), userId));
+    }
+    if (scope != null) {
+      criteria.add(hasScope(cb, cu, root, scope));
+    }
+    if (issuedAfter != null) {
+      criteria.add(cb.greaterThanOrEqualTo(root.get("issueDate"), issuedAfter));
+    }
+    if (issuedBefore != null) {
+      criteria.add(cb.lessThan(root.get("issueDate"), issuedBefore));
     }
 
-    return revokeApiKeyAttribute(foundAttribute.get());
+    cu.set(root.<Boolean>get("revoked"), true)
+        .set(root.<Long>get("revokedDate"), revokedDate)
+        .where(criteria.toArray(new Predicate[0]));
+    int revoked = entityManager().createQuery(cu).executeUpdate();
+    if (revoked == 0) {
+      return 0;
+    }
+
+    apiKeyCache.invalidateRealm(session, realmId);
+
+    // the signed apiKeys just revoked are the ones of the realm revoked at this exact time
+    CriteriaQuery<RevokedApiKey> cq = cb.createQuery(RevokedApiKey.class);
+    Root<ApiKeyEntity> signedRoot = cq.from(ApiKeyEntity.class);
+    cq.select(cb.construct(RevokedApiKey.class, signedRoot.get("realmId"), signedRoot.get("id")))
+        .where(
+            cb.equal(signedRoot.get("realmId"), realmId),
+            cb.equal(signedRoot.get("revokedDate"), revokedDate),
+            cb.isTrue(signedRoot.get("signed")));
+    revokedApiKeys.revoke(session, new HashSet<>(entityManager().createQuery(cq).getResultList()));
+    return revoked;
+  }
+
+  public Optional<ApiKeyEntity> findByApiKey(String apiKeyName) {
+
+    validFormatApiKey(apiKeyName);
+
+    byte[] digest = hasher.digest(apiKeyName);
+    return findByApiKey(apiKeyName, digest);
   }
 
-  public Optional<UserAttributeEntity> findByApiKeyAttribute(String apiKeyName) {
+  /** Same as {@link #findByApiKey(String)}, answered from the apiKey cache when possible. */
+  public Optional<ApiKeySnapshot> findSnapshotByApiKey(String apiKeyName) {
 
     validFormatApiKey(apiKeyName);
 
-    CriteriaBuilder cb = entityManager.getCriteriaBuilder();
-    CriteriaQuery<UserAttributeEntity> cq = cb.createQuery(UserAttributeEntity.class);
-    Root<UserAttributeEntity> root = cq.from(UserAttributeEntity.class);
+    if (ApiKeyFormat.isSigned(apiKeyName)) {
+      return findSignedSnapshot(apiKeyName);
+    }
+
+    String realmId = session.getContext().getRealm().getId();
+    byte[] digest = hasher.digest(apiKeyName);
+
+    String hash = Hasher.toHex(digest);
+
+    // read first, so the result of a lookup started before an invalidation is not taken
+    long generation = apiKeyCache.generation(realmId);
+    Optional<ApiKeySnapshot> cached = apiKeyCache.get(realmId, hash);
+    if (cached.isPresent()) {
+      return cached;
+    }
+
+    // concurrent lookups share their queries, run by whichever request fetches first
+    return lookupCoalescer.find(
+        realmId, hash, generation, hashes -> findSnapshotsByHashes(realmId, hashes));
+  }
+
+  /**
+   * Finds many apiKeys with a single query for the ones not cached. The result is keyed by apiKey
+   * and has no entry for apiKeys not found; every apiKey must have a valid format. The query is on
+   * the hash, which covers apiKeys of both formats at once; signed apiKeys are checked without a
+   * query when possible.
+   */
+  public Map<String, ApiKeySnapshot> findSnapshotsByApiKeys(Collection<String> apiKeyNames) {
 
-    Predicate searchName = cb.equal(root.get("name"), API_KEYS_ATTRIBUTE);
+    String realmId = session.getContext().getRealm().getId();
 
-    cq.where(cb.and(searchName));
+    Map<String, ApiKeySnapshot> found = new HashMap<>();
+    Map<String, String> missingByHash = new HashMap<>();
 
-    TypedQuery<UserAttributeEntity> query = entityManager.createQuery(cq);
+    for (String apiKeyName : apiKeyNames) {
+      validFormatApiKey(apiKeyName);
+      if (ApiKeyFormat.isSigned(apiKeyName)) {
+        findSignedSnapshot(apiKeyName).ifPresent(apiKey -> found.put(apiKeyName, apiKey));
+        continue;
+      }
+      String hashedApiKeyName = hasher.generateHash(apiKeyName);
+      apiKeyCache
+          .get(realmId, hashedApiKeyName)
+          .ifPresentOrElse(
+              apiKey -> found.put(apiKeyName, apiKey),
+              () -> missingByHash.put(hashedApiKeyName, apiKeyName));
+    }
+
+    if (!missingByHash.isEmpty()) {
+      findSnapshotsByHashes(realmId, missingByHash.keySet())
+          .forEach((hash, apiKey) -> found.put(missingByHash.get(hash), apiKey));
+    }
 
-    return query.getResultList().stream()
-        .filter(
-            attribute -> parseApiKey(attribute).getName().equals(hasher.generateHash(apiKeyName)))
-        .findFirst();
+    return found;
   }
 
-  public ApiKey parseApiKey(UserAttributeEntity attributeApiKey) {
-    return jsonStringToClass(attributeApiKey.getValue(), ApiKey.class);
+  /**
+   * The apiKeys of the realm with these hashes, keyed by hash, fetched with their scopes in a
+   * single query and put in the apiKey cache, unless the realm was invalidated while they were
+   * read. The query is on the hash, which covers apiKeys of both formats at once.
+   */
+  private Map<String, ApiKeySnapshot> findSnapshotsByHashes(
+      String realmId, Collection<String> hashes) {
+    long generation = apiKeyCache.generation(realmId);
+    CriteriaBuilder cb = entityManager().getCriteriaBuilder();
+    CriteriaQuery<ApiKeyEntity> cq = cb.createQuery(ApiKeyEntity.class);
+    Root<ApiKeyEntity> root = cq.from(ApiKeyEntity.class);
+    root.fetch("scopes", JoinType.LEFT);
+    cq.select(root)
+        .distinct(true)
+        .where(root.get("hash").in(hashes), cb.equal(root.get("realmId"), realmId));
+
+    List<ApiKeyEntity> apiKeyEntities = entityManager().createQuery(cq).getResultList();
+    metrics.recordRowsScanned(LOOKUP_BY_HASHES, apiKeyEntities.size());
+
+    Map<String, ApiKeySnapshot> found = new HashMap<>();
+    for (ApiKeyEntity apiKeyEntity : apiKeyEntities) {
+      ApiKeySnapshot apiKey = toSnapshot(apiKeyEntity);
+      apiKeyCache.put(apiKey, generation);
+      found.put(apiKey.getHash(), apiKey);
+    }
+    return found;
   }
 
-  private ApiKey hideApiKeyvalue(ApiKey apiKey) {
-    apiKey.setName(null);
-    return apiKey;
+  /**
+   * A signed apiKey with a valid signature, answered from its claims and the revoked apiKeys. When
+   * the revoked apiKeys are not loaded, or too old, the stored apiKey is read instead.
+   */
+  private Optional<ApiKeySnapshot> findSignedSnapshot(String apiKeyName) {
+    Optional<ApiKeyToken> token = verifySignedApiKey(apiKeyName);
+    if (token.isEmpty()) {
+      return Optional.empty();
+    }
+
+    String realmId = session.getContext().getRealm().getId();
+    Optional<Boolean> revoked = revokedApiKeys.isRevoked(realmId, token.get().getId());
+    if (revoked.isEmpty()) {
+      return findById(token.get().getId(), hasher.digest(apiKeyName)).map(this::toSnapshot);
+    }
+
+    metrics.recordRowsScanned(LOOKUP_SIGNED, 0);
+    return Optional.of(toSnapshot(token.get(), realmId, revoked.get()));
   }
 
-  public String checkApiResponseMessage(ApiKey apiKey) {
-    String message = null;
+  /** Claims of a signed apiKey, if it was signed by a key of the realm. */
+  private Optional<ApiKeyToken> verifySignedApiKey(String apiKeyName) {
+    ApiKeyToken token = session.tokens().decode(ApiKeyFormat.jws(apiKeyName), ApiKeyToken.class);
+    // other tokens are signed with the same realm keys
+    if (token == null
+        || !ApiKeyToken.TYPE.equals(token.getType())
+        || token.getId() == null
+        || token.getSubject() == null
+        || token.getExp() == null) {
+      return Optional.empty();
+    }
+    return Optional.of(token);
+  }
 
-    if (isExpired(apiKey.getExpiryDate())) {
-      message = "ApiKey is expired";
-    } else if (apiKey.getIsRevoked()) {
-      message = "ApiKey is revoked";
+  private String signApiKey(String id, String userId, List<ScopeName> scopes, Date expiryDate) {
+    ApiKeyToken token = new ApiKeyToken();
+    token.id(id);
+    token.subject(userId);
+    token.type(ApiKeyToken.TYPE);
+    token.issuedNow();
+    token.exp(TimeUnit.MILLISECONDS.toSeconds(expiryDate.getTime()));
+    scopes.forEach(scope -> token.getScope().add(scope.toString()));
+    return ApiKeyFormat.signed(session.tokens().encode(token));
+  }
+
+  /**
+   * apiKeys carrying their id, in their value or their signed claims, are fetched by primary key
+   * together with their scopes, and their hash is compared in constant time; legacy apiKeys are
+   * searched by hash.
+   */
+  private Optional<ApiKeyEntity> findByApiKey(String apiKeyName, byte[] digest) {
+    if (ApiKeyFormat.isSigned(apiKeyName)) {
+      return verifySignedApiKey(apiKeyName).flatMap(token -> findById(token.getId(), digest));
     }
-    return message;
+
+    Optional<String> keyId = ApiKeyFormat.keyId(apiKeyName);
+    if (keyId.isEmpty()) {
+      Optional<ApiKeyEntity> found = findByHash(Hasher.toHex(digest));
+      metrics.recordRowsScanned(LOOKUP_BY_HASH, found.isPresent() ? 1 : 0);
+      return found;
+    }
+    return findById(keyId.get(), digest);
   }
 
-  public boolean isValidApiKey(ApiKey apiKey) {
-    return !isExpired(apiKey.getExpiryDate()) && !apiKey.getIsRevoked();
+  private Optional<ApiKeyEntity> findById(String id, byte[] digest) {
+    String realmId = session.getContext().getRealm().getId();
+    Optional<ApiKeyEntity> found =
+        entityManager()
+            .createNamedQuery("ApiKeyEntity.findByIdWithScopes", ApiKeyEntity.class)
+            .setParameter("id", id)
+            .getResultStream()
+            .findFirst();
+    metrics.recordRowsScanned(LOOKUP_BY_ID, found.isPresent() ? 1 : 0);
+    return found
+        .filter(apiKeyEntity -> apiKeyEntity.getRealmId().equals(realmId))
+        .filter(apiKeyEntity -> Hasher.equalsHex(digest, apiKeyEntity.getHash()));
+  }
+
+  private Optional<ApiKeyEntity> findByHash(String hashedApiKeyName) {
+    CriteriaBuilder cb = entityManager().getCriteriaBuilder();
+    CriteriaQuery<ApiKeyEntity> cq = cb.createQuery(ApiKeyEntity.class);
+    Root<ApiKeyEntity> root = cq.from(ApiKeyEntity.class);
+
+    Predicate searchHash = cb.equal(root.get("hash"), hashedApiKeyName);
+    Predicate searchRealm = cb.equal(root.get("realmId"), session.getContext().getRealm().getId());
+
+    cq.where(cb.and(searchHash, searchRealm));
+
+    TypedQuery<ApiKeyEntity> query = entityManager().createQuery(cq);
+
+    return query.getResultStream().findFirst();
+  }
+
+  /**
+   * Deletes the apiKeys of a user. Signed apiKeys are revoked instead, and deleted by the purge
+   * once expired, as their signature stays valid until then.
+   */
+  public int deleteApiKeys(@NonNull String realmId, @NonNull String userId) {
+    CriteriaBuilder cb = entityManager().getCriteriaBuilder();
+
+    CriteriaQuery<Tuple> cq = cb.createTupleQuery();
+    Root<ApiKeyEntity> hashRoot = cq.from(ApiKeyEntity.class);
+    cq.multiselect(hashRoot.get("id"), hashRoot.get("hash"), hashRoot.get("signed"))
+        .where(cb.equal(hashRoot.get("userId"), userId));
+    List<Tuple> apiKeys = entityManager().createQuery(cq).getResultList();
+
+    CriteriaUpdate<ApiKeyEntity> cu = cb.createCriteriaUpdate(ApiKeyEntity.class);
+    Root<ApiKeyEntity> signedRoot = cu.from(ApiKeyEntity.class);
+    cu.set(signedRoot.<Boolean>get("revoked"), true)
+        .set(signedRoot.<Long>get("revokedDate"), System.currentTimeMillis())
+        .where(
+            cb.equal(signedRoot.get("userId"), userId),
+            cb.isTrue(signedRoot.get("signed")),
+            cb.isFalse(signedRoot.get("revoked")));
+    int revoked = entityManager().createQuery(cu).executeUpdate();
+
+    CriteriaDelete<ApiKeyEntity> cd = cb.createCriteriaDelete(ApiKeyEntity.class);
+    Root<ApiKeyEntity> root = cd.from(ApiKeyEntity.class);
+
+    cd.where(cb.equal(root.get("userId"), userId), cb.isFalse(root.get("signed")));
+
+    // scopes are removed by the ON DELETE CASCADE foreign key
+    int deleted = entityManager().createQuery(cd).executeUpdate();
+
+    apiKeyCache.invalidate(
+        session,
+        realmId,
+        apiKeys.stream().map(apiKey -> apiKey.get(1, String.class)).collect(toList()));
+    revokedApiKeys.revoke(
+        session,
+        apiKeys.stream()
+            .filter(apiKey -> apiKey.get(2, Boolean.class))
+            .map(apiKey -> new RevokedApiKey(realmId, apiKey.get(0, String.class)))
+            .collect(toSet()));
+    return deleted + revoked;
   }
 
-  private ApiKey setApiKey(String userId, ApiKey apiKey) {
+  /**
+   * Deletes at most {@code batchSize} apiKeys, of any realm, that expired or were revoked before
+   * {@code before}, and drops them from the cache. Returns the number deleted, less than {@code
+   * batchSize} once there is nothing left to purge.
+   */
+  public int purgeApiKeys(long before, int batchSize) {
+    CriteriaBuilder cb = entityManager().getCriteriaBuilder();
 
-    UserEntity userEntity = entityManager.find(UserEntity.class, userId);
-    UserAttributeEntity attributeEntity = new UserAttributeEntity();
-    attributeEntity.setName(API_KEYS_ATTRIBUTE);
-    attributeEntity.setValue(apiKey.toJsonMinimal());
-    attributeEntity.setUser(userEntity);
-    attributeEntity.setId(UUID.randomUUID().toString());
-    entityManager.persist(attributeEntity);
+    List<Tuple> purgeable = new ArrayList<>(findPurgeable(cb, before, true, batchSize));
+    if (purgeable.size() < batchSize) {
+      purgeable.addAll(findPurgeable(cb, before, false, batchSize - purgeable.size()));
+    }
+    if (purgeable.isEmpty()) {
+      return 0;
+    }
 
+    CriteriaDelete<ApiKeyEntity> cd = cb.createCriteriaDelete(ApiKeyEntity.class);
+    Root<ApiKeyEntity> root = cd.from(ApiKeyEntity.class);
+    cd.where(root.get("id").in(purgeable.stream().map(apiKey -> apiKey.get(0)).collect(toList())));
+
+    // scopes are removed by the ON DELETE CASCADE foreign key
+    int deleted = entityManager().createQuery(cd).executeUpdate();
+
+    purgeable.stream()
+        .collect(
+            groupingBy(
+                apiKey -> apiKey.get(2, String.class),
+                mapping(apiKey -> apiKey.get(1, String.class), toList())))
+        .forEach((realmId, hashes) -> apiKeyCache.invalidate(session, realmId, hashes));
+    return deleted;
+  }
+
+  /**
+   * id, hash and realmId of the apiKeys expired before {@code before}, or of the ones revoked
+   * before it but not expired, so a batch never holds the same apiKey twice. Each uses the index on
+   * its date. Revoked signed apiKeys are kept until they expire, as their revocation is what makes
+   * them invalid.
+   */
+  private List<Tuple> findPurgeable(
+      CriteriaBuilder cb, long before, boolean expired, int maxResults) {
+    CriteriaQuery<Tuple> cq = cb.createTupleQuery();
+    Root<ApiKeyEntity> root = cq.from(ApiKeyEntity.class);
+    cq.multiselect(root.get("id"), root.get("hash"), root.get("realmId"))
+        .where(
+            expired
+                ? cb.lessThan(root.get("expiryDate"), before)
+                : cb.and(
+                    cb.lessThan(root.get("revokedDate"), before),
+                    cb.greaterThanOrEqualTo(root.get("expiryDate"), before),
+                    cb.isFalse(root.get("signed"))));
+    return entityManager().createQuery(cq).setMaxResults(maxResults).getResultList();
+  }
+
+  /**
+   * Passes every apiKey of the realm to {@code consumer}, ordered by id, and returns how many there
+   * were. Rows are read as values through a forward only cursor, {@code batchSize} at a time, and
+   * the persistence context is cleared after each batch, so memory stays flat whatever the size of
+   * the realm.
+   */
+  public long exportApiKeys(
+      @NonNull String realmId, int batchSize, @NonNull Consumer<ApiKeyExport> consumer) {
+    CriteriaBuilder cb = entityManager().getCriteriaBuilder();
+    CriteriaQuery<Tuple> cq = cb.createTupleQuery();
+    Root<ApiKeyEntity> root = cq.from(ApiKeyEntity.class);
+    // one row per scope, consecutive for an apiKey as rows are ordered by id
+    Join<ApiKeyEntity, String> scope = root.join("scopes", JoinType.LEFT);
+    cq.multiselect(
+            root.get("id"),
+            root.get("userId"),
+            root.get("issueDate"),
+            root.get("expiryDate"),
+            root.get("revoked"),
+            root.get("revokedDate"),
+            root.get("description"),
+            root.get("signed"),
+            root.get("lastUsed"),
+            root.get("usageCount"),
+            scope)
+        .where(cb.equal(root.get("realmId"), realmId))
+        .orderBy(cb.asc(root.get("id")));
+
+    long exported = 0;
+    int rows = 0;
+    ApiKeyExport current = null;
+    try (ScrollableResults<Tuple> results =
+        entityManager()
+            .unwrap(Session.class)
+            .createQuery(cq)
+            .setReadOnly(true)
+            .setFetchSize(batchSize)
+            .scroll(ScrollMode.FORWARD_ONLY)) {
+      while (results.next()) {
+        Tuple row = results.get();
+        String id = row.get(0, String.class);
+        if (current == null || !current.getId().equals(id)) {
+          if (current != null) {
+            consumer.accept(current);
+            exported++;
+          }
+          current =
+              ApiKeyExport.builder()
+                  .id(id)
+                  .userId(row.get(1, String.class))
+                  .scope(new TreeSet<>())
+                  .issueDate(row.get(2, Long.class))
+                  .expiryDate(row.get(3, Long.class))
+                  .isRevoked(row.get(4, Boolean.class))
+                  .revokedDate(row.get(5, Long.class))
+                  .description(row.get(6, String.class))
+                  .type(row.get(7, Boolean.class) ? API_KEY_TYPE_SIGNED : API_KEY_TYPE_OPAQUE)
+                  .lastUsed(row.get(8, Long.class))
+                  .usageCount(row.get(9, Long.class))
+                  .build();
+        }
+        if (row.get(10) != null) {
+          current.getScope().add(row.get(10, String.class));
+        }
+        if (++rows % Math.max(batchSize, 1) == 0) {
+          entityManager().clear();
+        }
+      }
+    }
+    if (current != null) {
+      consumer.accept(current);
+      exported++;
+    }
+    return exported;
+  }
+
+  /**
+   * Puts up to {@code maxKeys} valid apiKeys of the realm in the apiKey cache, the most recently
+   * used first, and returns how many were loaded. Signed apiKeys are not cached, so they are left
+   * out.
+   */
+  public int preloadApiKeys(String realmId, int maxKeys) {
+    long generation = apiKeyCache.generation(realmId);
+    CriteriaBuilder cb = entityManager().getCriteriaBuilder();
+    CriteriaQuery<String> idQuery = cb.createQuery(String.class);
+    Root<ApiKeyEntity> idRoot = idQuery.from(ApiKeyEntity.class);
+    idQuery
+        .select(idRoot.get("id"))
+        .where(
+            cb.equal(idRoot.get("realmId"), realmId),
+            cb.isFalse(idRoot.get("revoked")),
+            cb.isFalse(idRoot.get("signed")),
+            cb.greaterThan(idRoot.get("expiryDate"), System.currentTimeMillis()))
+        .orderBy(
+            cb.desc(cb.coalesce(idRoot.<Long>get("lastUsed"), 0L)),
+            cb.desc(idRoot.get("issueDate")));
+    List<String> ids = entityManager().createQuery(idQuery).setMaxResults(maxKeys).getResultList();
+
+    // by id, with their scopes, as a limit does not apply to a query fetching a collection
+    for (int from = 0; from < ids.size(); from += PRELOAD_BATCH_SIZE) {
+      CriteriaQuery<ApiKeyEntity> cq = cb.createQuery(ApiKeyEntity.class);
+      Root<ApiKeyEntity> root = cq.from(ApiKeyEntity.class);
+      root.fetch("scopes", JoinType.LEFT);
+      cq.select(root)
+          .distinct(true)
+          .where(
+              root.get("id")
+                  .in(ids.subList(from, Math.min(from + PRELOAD_BATCH_SIZE, ids.size()))));
+      entityManager().createQuery(cq).getResultList().stream()
+          .map(this::toSnapshot)
+          .forEach(apiKey -> apiKeyCache.put(apiKey, generation));
+      entityManager().clear();
+    }
+    return ids.size();
+  }
+
+  /** The signed apiKeys of every realm revoked and not expired yet. */
+  public List<RevokedApiKey> findRevokedSignedApiKeys() {
+    CriteriaBuilder cb = entityManager().getCriteriaBuilder();
+    CriteriaQuery<RevokedApiKey> cq = cb.createQuery(RevokedApiKey.class);
+    Root<ApiKeyEntity> root = cq.from(ApiKeyEntity.class);
+    cq.select(cb.construct(RevokedApiKey.class, root.get("realmId"), root.get("id")))
+        .where(
+            cb.isTrue(root.get("signed")),
+            cb.isTrue(root.get("revoked")),
+            cb.greaterThanOrEqualTo(root.get("expiryDate"), System.currentTimeMillis()));
+    return entityManager().createQuery(cq).getResultList();
+  }
+
+  /**
+   * Adds uses counted in memory to the stored ones, with one batched statement per {@value
+   * #USAGE_BATCH_SIZE} apiKeys. The last use only moves forward, whatever the order nodes flush in;
+   * apiKeys deleted meanwhile are skipped.
+   */
+  public void addUsage(Collection<ApiKeyUsage> usages) {
+    String sql =
+        "UPDATE "
+            + tableName(ApiKeyEntity.class)
+            + " SET USAGE_COUNT = USAGE_COUNT + ?,"
+            + " LAST_USED = CASE WHEN LAST_USED IS NULL OR LAST_USED < ? THEN ? ELSE LAST_USED END"
+            + " WHERE ID = ?";
+
+    entityManager()
+        .unwrap(Session.class)
+        .doWork(
+            connection -> {
+              try (PreparedStatement statement = connection.prepareStatement(sql)) {
+                int batched = 0;
+                for (ApiKeyUsage usage : usages) {
+                  statement.setLong(1, usage.getCount());
+                  statement.setLong(2, usage.getLastUsed());
+                  statement.setLong(3, usage.getLastUsed());
+                  statement.setString(4, usage.getId());
+                  statement.addBatch();
+                  if (++batched % USAGE_BATCH_SIZE == 0) {
+                    statement.executeBatch();
+                  }
+                }
+                if (batched % USAGE_BATCH_SIZE != 0) {
+                  statement.executeBatch();
+                }
+              }
+            });
+  }
+
+  private void insertApiKeys(List<ApiKeyEntity> apiKeyEntities) {
+    String insertApiKey =
+        "INSERT INTO "
+            + tableName(ApiKeyEntity.class)
+            + " (ID, HASH, USER_ID, REALM_ID, ISSUE_DATE, EXPIRY_DATE, REVOKED, DESCRIPTION,"
+            + " SIGNED, USAGE_COUNT) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, 0)";
+    String insertScope =
+        "INSERT INTO "
+            + collectionTableName(ApiKeyEntity.class, "scopes")
+            + " (API_KEY_ID, SCOPE) VALUES (?, ?)";
+
+    // pending changes of the session are written first, the statements bypass it
+    entityManager().flush();
+    entityManager()
+        .unwrap(Session.class)
+        .doWork(
+            connection -> {
+              try (PreparedStatement apiKeyStatement = connection.prepareStatement(insertApiKey);
+                  PreparedStatement scopeStatement = connection.prepareStatement(insertScope)) {
+                int batched = 0;
+                for (ApiKeyEntity apiKeyEntity : apiKeyEntities) {
+                  apiKeyStatement.setString(1, apiKeyEntity.getId());
+                  apiKeyStatement.setString(2, apiKeyEntity.getHash());
+                  apiKeyStatement.setString(3, apiKeyEntity.getUserId());
+                  apiKeyStatement.setString(4, apiKeyEntity.getRealmId());
+                  apiKeyStatement.setLong(5, apiKeyEntity.getIssueDate());
+                  apiKeyStatement.setLong(6, apiKeyEntity.getExpiryDate());
+                  apiKeyStatement.setBoolean(7, apiKeyEntity.isRevoked());
+                  apiKeyStatement.setString(8, apiKeyEntity.getDescription());
+                  apiKeyStatement.setBoolean(9, apiKeyEntity.isSigned());
+                  apiKeyStatement.addBatch();
+                  for (String scope : apiKeyEntity.getScopes()) {
+                    scopeStatement.setString(1, apiKeyEntity.getId());
+                    scopeStatement.setString(2, scope);
+                    scopeStatement.addBatch();
+                  }
+                  // the scopes reference their apiKey, which must be written first
+                  if (++batched % INSERT_BATCH_SIZE == 0) {
+                    apiKeyStatement.executeBatch();
+                    scopeStatement.executeBatch();
+                  }
+                }
+                if (batched % INSERT_BATCH_SIZE != 0) {
+                  apiKeyStatement.executeBatch();
+                  scopeStatement.executeBatch();
+                }
+              }
+            });
+  }
+
+  /** Table of an entity, qualified with the schema Keycloak is configured with. */
+  private String tableName(Class<?> entityClass) {
+    return mappingMetamodel()
+        .getEntityDescriptor(entityClass)
+        .getMappedTableDetails()
+        .getTableName();
+  }
+
+  private String collectionTableName(Class<?> entityClass, String attribute) {
+    return ((AbstractCollectionPersister)
+            mappingMetamodel().getCollectionDescriptor(entityClass.getName() + "." + attribute))
+        .getTableName();
+  }
+
+  private MappingMetamodel mappingMetamodel() {
+    return entityManager()
+        .getEntityManagerFactory()
+        .unwrap(SessionFactoryImplementor.class)
+        .getMappingMetamodel();
+  }
+
+  public ApiKey toApiKey(ApiKeyEntity apiKeyEntity) {
+    return ApiKey.builder()
+        .name(apiKeyEntity.getHash())
+        .scope(apiKeyEntity.getScopes().stream().map(ScopeName::new).collect(toSet()))
+        .description(apiKeyEntity.getDescription())
+        .issueDate(new Date(apiKeyEntity.getIssueDate()))
+        .expiryDate(new Date(apiKeyEntity.getExpiryDate()))
+        .isRevoked(apiKeyEntity.isRevoked())
+        .lastUsed(apiKeyEntity.getLastUsed() == null ? null : new Date(apiKeyEntity.getLastUsed()))
+        .usageCount(apiKeyEntity.getUsageCount())
+        .build();
+  }
+
+  public ApiKeyExport toExport(ApiKeyEntity apiKeyEntity) {
+    return ApiKeyExport.builder()
+        .id(apiKeyEntity.getId())
+        .userId(apiKeyEntity.getUserId())
+        .scope(new TreeSet<>(apiKeyEntity.getScopes()))
+        .issueDate(apiKeyEntity.getIssueDate())
+        .expiryDate(apiKeyEntity.getExpiryDate())
+        .isRevoked(apiKeyEntity.isRevoked())
+        .revokedDate(apiKeyEntity.getRevokedDate())
+        .description(apiKeyEntity.getDescription())
+        .type(apiKeyEntity.isSigned() ? API_KEY_TYPE_SIGNED : API_KEY_TYPE_OPAQUE)
+        .lastUsed(apiKeyEntity.getLastUsed())
+        .usageCount(apiKeyEntity.getUsageCount())
+        .build();
+  }
+
+  private ApiKey hideApiKeyvalue(ApiKey apiKey) {
+    apiKey.setName(null);
     return apiKey;
   }
 
-  private ApiKey revokeApiKeyAttribute(UserAttributeEntity attribute) {
+  public ApiKeySnapshot toSnapshot(ApiKeyEntity apiKeyEntity) {
+    return ApiKeySnapshot.builder()
+        .id(apiKeyEntity.getId())
+        .hash(apiKeyEntity.getHash())
+        .userId(apiKeyEntity.getUserId())
+        .realmId(apiKeyEntity.getRealmId())
+        .expiryDate(apiKeyEntity.getExpiryDate())
+        .revoked(apiKeyEntity.isRevoked())
+        .scope(apiKeyEntity.getScopes().stream().map(ScopeName::new).collect(toUnmodifiableSet()))
+        .build();
+  }
+
+  // never cached, so it needs no hash
+  private ApiKeySnapshot toSnapshot(ApiKeyToken token, String realmId, boolean revoked) {
+    return ApiKeySnapshot.builder()
+        .id(token.getId())
+        .userId(token.getSubject())
+        .realmId(realmId)
+        .expiryDate(TimeUnit.SECONDS.toMillis(token.getExp()))
+        .revoked(revoked)
+        .scope(token.getScope().stream().map(ScopeName::new).collect(toUnmodifiableSet()))
+        .build();
+  }
+
+  public CheckApiKeyResponse checkApiKeyResponse(ApiKeySnapshot apiKey) {
+    boolean isValid = isValidApiKey(apiKey);
+    return CheckApiKeyResponse.builder()
+        .user_id(apiKey.getUserId())
+        .exp(apiKey.getExpiryDate())
+        .isValid(isValid)
+        .message(checkApiResponseMessage(apiKey))
+        .isRevoked(apiKey.isRevoked())
+        .scope(isValid ? apiKey.getScope() : null)
+        .build();
+  }
 
-    ApiKey editApiKey = parseApiKey(attribute);
-    editApiKey.setIsRevoked(true);
+  public String checkApiResponseMessage(ApiKeySnapshot apiKey) {
+    String message = null;
 
-    attribute.setValue(editApiKey.toJsonMinimal());
+    if (isExpired(new Date(apiKey.getExpiryDate()))) {
+      message = "ApiKey is expired";
+    } else if (apiKey.isRevoked()) {
+      message = "ApiKey is revoked";
+    }
+    return message;
+  }
 
-    entityManager.persist(attribute);
+  public boolean isValidApiKey(ApiKeySnapshot apiKey) {
+    return !isExpired(new Date(apiKey.getExpiryDate())) && !apiKey.isRevoked();
+  }
 
-    // return null apiKey Name
-    editApiKey.setName(null);
+  private void setApiKey(
+      ApiKeyEntity apiKeyEntity, String id, String userId, ApiKey apiKey, boolean signed) {
 
-    return editApiKey;
+    apiKeyEntity.setId(id);
+    apiKeyEntity.setHash(apiKey.getName());
+    apiKeyEntity.setUserId(userId);
+    apiKeyEntity.setRealmId(session.getContext().getRealm().getId());
+    apiKeyEntity.setIssueDate(apiKey.getIssueDate().getTime());
+    apiKeyEntity.setExpiryDate(apiKey.getExpiryDate().getTime());
+    apiKeyEntity.setRevoked(apiKey.getIsRevoked());
+    apiKeyEntity.setDescription(apiKey.getDescription());
+    apiKeyEntity.setSigned(signed);
+    apiKey.getScope().forEach(scope -> apiKeyEntity.getScopes().add(scope.toString()));
   }
 
-  private void validFormatApiKey(String apiKey) {
+  public void validFormatApiKey(String apiKey) {
 
     if (apiKey == null || apiKey.isEmpty()) {
       throw new BadRequestException("ApiKey cannot be empty.");
     }
 
-    try {
-      UUID.fromString(apiKey);
-      // able to parse as UUID, so this is a valid UUID
-    } catch (IllegalArgumentException e) {
-      // unable to parse as UUID
+    if (!ApiKeyFormat.isValid(apiKey)) {
       throw new BadRequestException("Invalid apiKey format");
     }
   }
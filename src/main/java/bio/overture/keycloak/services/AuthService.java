@@ -1,6 +1,16 @@
 package bio.overture.keycloak.services;
 
+import static bio.overture.keycloak.metrics.ApiKeyMetrics.AUTH_BASIC;
+import static bio.overture.keycloak.metrics.ApiKeyMetrics.AUTH_BEARER;
+
+import bio.overture.keycloak.cache.AuthorizationCache;
+import bio.overture.keycloak.cache.AuthorizationIndex;
+import bio.overture.keycloak.cache.BearerTokenCache;
+import bio.overture.keycloak.cache.ClientCredentialsCache;
+import bio.overture.keycloak.config.ApiKeyConfig;
+import bio.overture.keycloak.metrics.ApiKeyMetrics;
 import bio.overture.keycloak.params.ScopeName;
+import bio.overture.keycloak.provider.ApiKeyComponents;
 import jakarta.ws.rs.ForbiddenException;
 import jakarta.ws.rs.NotAuthorizedException;
 import java.util.*;
@@ -17,9 +27,15 @@ import org.keycloak.authorization.model.Resource;
 import org.keycloak.authorization.model.ResourceServer;
 import org.keycloak.authorization.model.Scope;
 import org.keycloak.authorization.permission.ResourcePermission;
+import org.keycloak.authorization.policy.evaluation.Result;
+import org.keycloak.authorization.store.StoreFactory;
 import org.keycloak.models.ClientModel;
+import org.keycloak.models.GroupModel;
 import org.keycloak.models.KeycloakSession;
-import org.keycloak.models.jpa.entities.UserEntity;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.RoleModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
 import org.keycloak.representations.idm.authorization.AuthorizationRequest;
 import org.keycloak.services.managers.AppAuthManager;
 import org.keycloak.services.managers.AuthenticationManager;
@@ -27,29 +43,55 @@ import org.keycloak.services.managers.AuthenticationManager;
 public class AuthService {
 
   private final KeycloakSession session;
+  private final ApiKeyConfig config;
+  private final ClientCredentialsCache clientCredentialsCache;
+  private final AuthorizationCache authorizationCache;
+  private final BearerTokenCache bearerTokenCache;
+  private final ApiKeyMetrics metrics;
 
   private static final Logger logger = Logger.getLogger(AuthService.class);
 
-  private final String BEARER_PREFIX = "Bearer ";
-  private final String BASIC_PREFIX = "Basic ";
-  private final String AUTHORIZATION_HEADER_KEY = "Authorization";
-  private final String ROLE_ADMIN = "ADMIN";
+  private static final String BEARER_PREFIX = "Bearer ";
+  private static final String BASIC_PREFIX = "Basic ";
+  private static final String AUTHORIZATION_HEADER_KEY = "Authorization";
 
-  public AuthService(KeycloakSession session) {
+  public AuthService(KeycloakSession session, ApiKeyComponents components) {
     this.session = session;
+    this.config = components.getConfig();
+    this.clientCredentialsCache = components.getClientCredentialsCache();
+    this.authorizationCache = components.getAuthorizationCache();
+    this.bearerTokenCache = components.getBearerTokenCache();
+    this.metrics = components.getMetrics();
   }
 
+  /**
+   * Authenticates the bearer token of the request. Tokens verified before are taken from the {@link
+   * BearerTokenCache}, skipping their signature verification.
+   */
   public AuthenticationManager.AuthResult checkBearerAuth() {
+    RealmModel realm = session.getContext().getRealm();
+    String token =
+        AppAuthManager.extractAuthorizationHeaderTokenOrReturnNull(
+            session.getContext().getRequestHeaders());
+
+    Optional<AuthenticationManager.AuthResult> cached =
+        token == null ? Optional.empty() : bearerTokenCache.get(session, realm, token);
     AuthenticationManager.AuthResult auth =
-        new AppAuthManager.BearerTokenAuthenticator(session).authenticate();
+        cached.orElseGet(() -> new AppAuthManager.BearerTokenAuthenticator(session).authenticate());
 
     if (auth == null) {
+      metrics.countAuthentication(AUTH_BEARER, false);
       throw new NotAuthorizedException("Bearer token is not valid");
     } else if (auth.getToken().getIssuedFor() == null
         || !auth.getToken().isActive()
         || auth.getToken().isExpired()) {
+      metrics.countAuthentication(AUTH_BEARER, false);
       throw new ForbiddenException("Bearer Token is not valid");
     }
+    metrics.countAuthentication(AUTH_BEARER, true);
+    if (cached.isEmpty() && token != null) {
+      bearerTokenCache.put(realm, token, auth);
+    }
 
     logger.info("AuthService - Valid Auth using Bearer token userId: " + auth.getUser().getId());
     return auth;
@@ -61,11 +103,16 @@ public class AuthService {
 
     // Split credentials into username and password
     String[] parts = credentials.split(":", 2);
+    if (parts.length != 2) {
+      metrics.countAuthentication(AUTH_BASIC, false);
+      throw new NotAuthorizedException("Invalid credentials");
+    }
     String username = parts[0];
     String password = parts[1];
 
-    return validateClientCredentials(session, username, password)
-        .orElseThrow(() -> new NotAuthorizedException("Invalid credentials"));
+    Optional<ClientModel> client = validateClientCredentials(session, username, password);
+    metrics.countAuthentication(AUTH_BASIC, client.isPresent());
+    return client.orElseThrow(() -> new NotAuthorizedException("Invalid credentials"));
   }
 
   public Object checkBearerOrBasicAuth() {
@@ -83,78 +130,195 @@ public class AuthService {
     throw new NotAuthorizedException("No Authentication provided");
   }
 
-  public void validateIsSameUser(AuthenticationManager.AuthResult auth, UserEntity user) {
-    if (!auth.getUser().getId().equals(user.getId())) {
+  public void validateIsSameUser(AuthenticationManager.AuthResult auth, String userId) {
+    if (!auth.getUser().getId().equals(userId)) {
       throw new ForbiddenException("apiKeys are only visible for it's owner");
     }
   }
 
-  public void validateIsSameUserOrAdmin(AuthenticationManager.AuthResult auth, UserEntity user) {
-    if (auth.getUser().getGroupsCountByNameContaining(ROLE_ADMIN) == 0) {
+  public void validateIsSameUserOrAdmin(AuthenticationManager.AuthResult auth, String userId) {
+    if (!isAdmin(auth)) {
       // Authentication is not an Admin,
       // check if it is the same user making the request
       try {
-        validateIsSameUser(auth, user);
+        validateIsSameUser(auth, userId);
       } catch (Exception e) {
         throw new ForbiddenException("apiKeys are only visible for it's owner or an Admin");
       }
     }
   }
 
-  private Optional<ClientModel> validateClientCredentials(
-      KeycloakSession session, String username, String password) {
-    return session
-        .clients()
-        .getClientsStream(session.getContext().getRealm())
-        .filter(
-            clientModel -> clientModel.isEnabled() && clientModel.getClientId().equals(username))
-        .filter(clientModel -> clientModel.validateSecret(password))
-        .peek(
-            clientModel ->
-                logger.info(
-                    "AuthService - Valid auth using client credentials, clientId:"
-                        + clientModel.getClientId()))
-        .findFirst();
+  public void validateIsAdmin(AuthenticationManager.AuthResult auth) {
+    if (!isAdmin(auth)) {
+      throw new ForbiddenException("Only available for an Admin");
+    }
   }
 
-  public void validatePermissions(AuthenticationManager.AuthResult auth, List<ScopeName> scopes) {
+  /**
+   * Whether the user has the {@code adminRole} or is a member of the {@code adminGroup}, remembered
+   * with the policy decisions of the user.
+   */
+  private boolean isAdmin(AuthenticationManager.AuthResult auth) {
+    RealmModel realm = session.getContext().getRealm();
+    UserModel user = auth.getUser();
+
+    Optional<Boolean> cached = authorizationCache.getAdmin(realm.getId(), user.getId());
+    if (cached.isPresent()) {
+      return cached.get();
+    }
+    boolean admin = hasAdminRole(realm, user) || isInAdminGroup(realm, user);
+    authorizationCache.putAdmin(realm.getId(), user.getId(), admin);
+    return admin;
+  }
 
-    AuthorizationProvider authorizationProvider = session.getProvider(AuthorizationProvider.class);
+  private boolean hasAdminRole(RealmModel realm, UserModel user) {
+    if (config.getAdminRole() == null) {
+      return false;
+    }
+    RoleModel role = KeycloakModelUtils.getRoleFromString(realm, config.getAdminRole());
+    return role != null && user.hasRole(role);
+  }
 
-    UserModelIdentity identity = new UserModelIdentity(auth.getClient().getRealm(), auth.getUser());
+  private boolean isInAdminGroup(RealmModel realm, UserModel user) {
+    if (config.getAdminGroup() == null) {
+      return false;
+    }
+    GroupModel group = KeycloakModelUtils.findGroupByPath(realm, config.getAdminGroup());
+    return group != null && user.isMemberOf(group);
+  }
 
-    boolean scopesAreValid =
-        scopes.stream()
-            .allMatch(
-                scopeName ->
-                    getClientsStream()
-                        .anyMatch(
-                            client -> {
-                              ResourceServer resourceServer =
-                                  getResourceServer(authorizationProvider, client);
+  private Optional<ClientModel> validateClientCredentials(
+      KeycloakSession session, String username, String password) {
+    RealmModel realm = session.getContext().getRealm();
+
+    ClientModel client = session.clients().getClientByClientId(realm, username);
+    if (client == null || !client.isEnabled()) {
+      return Optional.empty();
+    }
+
+    Optional<ClientModel> verified = clientCredentialsCache.get(realm, client, password);
+    if (verified.isPresent()) {
+      return verified;
+    }
+
+    if (!client.validateSecret(password)) {
+      return Optional.empty();
+    }
 
-                              Resource resource =
-                                  getResource(authorizationProvider, resourceServer, scopeName);
+    clientCredentialsCache.put(realm, client, password);
+    logger.info(
+        "AuthService - Valid auth using client credentials, clientId:" + client.getClientId());
+    return Optional.of(client);
+  }
 
-                              if (resource == null) return false;
+  /**
+   * Checks that the user is granted every scope. Decisions are cached per user and scope, and the
+   * scopes that still need a decision are all evaluated in a single pass per resource server, using
+   * the realm {@link AuthorizationIndex} to find their resources.
+   */
+  public void validatePermissions(AuthenticationManager.AuthResult auth, List<ScopeName> scopes) {
+    if (scopes.isEmpty()) {
+      throw new ForbiddenException("Invalid Scope");
+    }
 
-                              Scope scopeResource = getScope(resource, scopeName);
+    RealmModel realm = session.getContext().getRealm();
+    String userId = auth.getUser().getId();
+
+    Set<ScopeName> pending = new LinkedHashSet<>();
+    for (ScopeName scopeName : scopes) {
+      Optional<Boolean> decision =
+          authorizationCache.getDecision(realm.getId(), userId, scopeName.toString());
+      if (decision.isEmpty()) {
+        pending.add(scopeName);
+      } else if (!decision.get()) {
+        throw new ForbiddenException("Invalid Scope");
+      }
+    }
+    if (pending.isEmpty()) {
+      return;
+    }
 
-                              if (scopeResource == null) return false;
+    AuthorizationProvider authorizationProvider = session.getProvider(AuthorizationProvider.class);
+    UserModelIdentity identity = new UserModelIdentity(auth.getClient().getRealm(), auth.getUser());
 
-                              List<ResourcePermission> permissions =
-                                  getPermissions(resource, scopeResource, resourceServer);
+    Set<ScopeName> granted =
+        evaluateScopes(
+            authorizationProvider,
+            realm,
+            identity,
+            getAuthorizationIndex(authorizationProvider, realm),
+            pending);
 
-                              return evaluatePermissions(
-                                  authorizationProvider, permissions, identity, resourceServer);
-                            }));
+    pending.forEach(
+        scopeName ->
+            authorizationCache.putDecision(
+                realm.getId(), userId, scopeName.toString(), granted.contains(scopeName)));
 
-    if (!scopesAreValid || scopes.size() == 0) {
+    if (!granted.containsAll(pending)) {
       throw new ForbiddenException("Invalid Scope");
     }
   }
 
-  private boolean evaluatePermissions(
+  /** Builds the authorization index of the realm ahead of the first scope check. */
+  public void preloadAuthorizationIndex() {
+    getAuthorizationIndex(
+        session.getProvider(AuthorizationProvider.class), session.getContext().getRealm());
+  }
+
+  private Set<ScopeName> evaluateScopes(
+      AuthorizationProvider authorizationProvider,
+      RealmModel realm,
+      Identity identity,
+      AuthorizationIndex index,
+      Collection<ScopeName> scopes) {
+    StoreFactory stores = authorizationProvider.getStoreFactory();
+
+    Map<String, ResourceServer> resourceServers = new HashMap<>();
+    Map<ResourceServer, List<ResourcePermission>> permissionsByServer = new LinkedHashMap<>();
+    // ResourcePermission has identity equality, each one stands for a single requested scope
+    Map<ResourcePermission, ScopeName> scopeByPermission = new IdentityHashMap<>();
+
+    for (ScopeName scopeName : scopes) {
+      String accessLevel = getAccessLevel(scopeName);
+      if (accessLevel == null) continue;
+
+      for (AuthorizationIndex.IndexedResource indexed : index.find(scopeName.getName())) {
+        String scopeId = indexed.getScopeIdsByName().get(accessLevel);
+        if (scopeId == null) continue;
+
+        ResourceServer resourceServer =
+            resourceServers.computeIfAbsent(
+                indexed.getResourceServerId(),
+                id -> stores.getResourceServerStore().findById(realm, id));
+        if (resourceServer == null) continue;
+
+        Resource resource =
+            stores.getResourceStore().findById(realm, resourceServer, indexed.getResourceId());
+        Scope scope = stores.getScopeStore().findById(realm, resourceServer, scopeId);
+        if (resource == null || scope == null) continue;
+
+        ResourcePermission permission =
+            new ResourcePermission(resource, new HashSet<>(List.of(scope)), resourceServer);
+        permissionsByServer
+            .computeIfAbsent(resourceServer, rs -> new ArrayList<>())
+            .add(permission);
+        scopeByPermission.put(permission, scopeName);
+      }
+    }
+
+    Set<ScopeName> granted = new HashSet<>();
+    permissionsByServer.forEach(
+        (resourceServer, permissions) ->
+            evaluatePermissions(authorizationProvider, permissions, identity, resourceServer)
+                .stream()
+                .filter(result -> result.getEffect().equals(Decision.Effect.PERMIT))
+                .map(result -> scopeByPermission.get(result.getPermission()))
+                .filter(Objects::nonNull)
+                .forEach(granted::add));
+    return granted;
+  }
+
+  private Collection<Result> evaluatePermissions(
       AuthorizationProvider authorizationProvider,
       List<ResourcePermission> permissions,
       Identity identity,
@@ -165,9 +329,47 @@ public class AuthService {
         .evaluate(
             new PolicyEvaluationService.EvaluationDecisionCollector(
                 authorizationProvider, resourceServer, new AuthorizationRequest()))
-        .getResults()
-        .stream()
-        .anyMatch(result -> result.getEffect().equals(Decision.Effect.PERMIT));
+        .getResults();
+  }
+
+  private AuthorizationIndex getAuthorizationIndex(
+      AuthorizationProvider authorizationProvider, RealmModel realm) {
+    Optional<AuthorizationIndex> cached = authorizationCache.getIndex(realm.getId());
+    if (cached.isPresent()) {
+      return cached.get();
+    }
+    long generation = authorizationCache.generation(realm.getId());
+    AuthorizationIndex index = buildAuthorizationIndex(authorizationProvider);
+    authorizationCache.putIndex(realm.getId(), index, generation);
+    return index;
+  }
+
+  private AuthorizationIndex buildAuthorizationIndex(AuthorizationProvider authorizationProvider) {
+    Map<String, List<AuthorizationIndex.IndexedResource>> resourcesByName = new HashMap<>();
+    getClientsStream()
+        .map(client -> getResourceServer(authorizationProvider, client))
+        .filter(Objects::nonNull)
+        .forEach(
+            resourceServer ->
+                authorizationProvider
+                    .getStoreFactory()
+                    .getResourceStore()
+                    .findByResourceServer(resourceServer)
+                    .forEach(
+                        resource ->
+                            resourcesByName
+                                .computeIfAbsent(resource.getName(), name -> new ArrayList<>())
+                                .add(
+                                    new AuthorizationIndex.IndexedResource(
+                                        resourceServer.getId(),
+                                        resource.getId(),
+                                        resource.getScopes().stream()
+                                            .collect(
+                                                Collectors.toMap(
+                                                    Scope::getName,
+                                                    Scope::getId,
+                                                    (first, second) -> first))))));
+    return new AuthorizationIndex(resourcesByName);
   }
 
   private Stream<ClientModel> getClientsStream() {
@@ -184,36 +386,12 @@ public class AuthService {
     return authorizationProvider.getStoreFactory().getResourceServerStore().findByClient(client);
   }
 
-  private Resource getResource(
-      AuthorizationProvider authorizationProvider,
-      ResourceServer resourceServer,
-      ScopeName scopeName) {
-    if (resourceServer == null) return null;
-    return authorizationProvider
-        .getStoreFactory()
-        .getResourceStore()
-        .findByName(resourceServer, scopeName.getName());
-  }
-
-  private Scope getScope(Resource resource, ScopeName scopeName) {
-    return resource.getScopes().stream()
-        .filter(
-            scope -> {
-              try {
-                return scope.getName().equals(scopeName.getAccessLevel().toString());
-              } catch (Exception e) {
-                e.printStackTrace();
-                return false;
-              }
-            })
-        .findFirst()
-        .orElse(null);
-  }
-
-  private List<ResourcePermission> getPermissions(
-      Resource resource, Scope scopeResource, ResourceServer resourceServer) {
-    return Arrays.asList(
-        new ResourcePermission(
-            resource, Stream.of(scopeResource).collect(Collectors.toSet()), resourceServer));
+  private String getAccessLevel(ScopeName scopeName) {
+    try {
+      return scopeName.getAccessLevel().toString();
+    } catch (IllegalArgumentException e) {
+      logger.debug("AuthService - Invalid access level in scope " + scopeName, e);
+      return null;
+    }
   }
 }
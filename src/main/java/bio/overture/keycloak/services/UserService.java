@@ -1,7 +1,13 @@
 package bio.overture.keycloak.services;
 
 import jakarta.persistence.EntityManager;
+import jakarta.persistence.criteria.CriteriaBuilder;
+import jakarta.persistence.criteria.CriteriaQuery;
+import jakarta.persistence.criteria.Root;
 import jakarta.ws.rs.BadRequestException;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
 import org.jboss.logging.Logger;
 import org.keycloak.connections.jpa.JpaConnectionProvider;
 import org.keycloak.models.*;
@@ -16,7 +22,13 @@ public class UserService {
 
   public UserService(KeycloakSession session) {
     this.session = session;
-    this.entityManager = session.getProvider(JpaConnectionProvider.class).getEntityManager();
+  }
+
+  private EntityManager entityManager() {
+    if (entityManager == null) {
+      entityManager = session.getProvider(JpaConnectionProvider.class).getEntityManager();
+    }
+    return entityManager;
   }
 
   public UserEntity getUserById(String user_id) {
@@ -25,11 +37,32 @@ public class UserService {
       throw new BadRequestException("user_id is required");
     }
 
-    UserEntity userEntity = entityManager.find(UserEntity.class, user_id);
+    UserEntity userEntity = entityManager().find(UserEntity.class, user_id);
 
     if (userEntity == null) {
       throw new BadRequestException("User not valid");
     }
     return userEntity;
   }
+
+  /** Checks, with a single query, that all the users exist in the current realm. */
+  public void validateUsersExist(Collection<String> userIds) {
+    if (userIds.contains(null)) {
+      throw new BadRequestException("user_id is required");
+    }
+
+    CriteriaBuilder cb = entityManager().getCriteriaBuilder();
+    CriteriaQuery<String> cq = cb.createQuery(String.class);
+    Root<UserEntity> root = cq.from(UserEntity.class);
+    cq.select(root.get("id"))
+        .where(
+            cb.equal(root.get("realmId"), session.getContext().getRealm().getId()),
+            root.get("id").in(userIds));
+
+    Set<String> missing = new HashSet<>(userIds);
+    entityManager().createQuery(cq).getResultList().forEach(missing::remove);
+    if (!missing.isEmpty()) {
+      throw new BadRequestException("User not valid: " + String.join(", ", missing));
+    }
+  }
 }
@@ -0,0 +1,142 @@
+package bio.overture.keycloak.utils;
+
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Optional;
+import java.util.UUID;
+
+/**
+ * Format of the apiKeys: {@code ovk_<keyId>_<secret>}, where keyId is the id of the stored apiKey
+ * (a UUID without dashes) and secret is 32 random bytes, base64url encoded. The keyId lets the
+ * apiKey be found by primary key, the hash of the whole apiKey is still what is stored and
+ * compared. apiKeys issued before this format are bare UUIDs, found by their hash.
+ *
+ * <p>Signed apiKeys are {@code ovs_<jws>}, a JWS of their {@link
+ * bio.overture.keycloak.model.ApiKeyToken} signed with a realm key.
+ */
+public class ApiKeyFormat {
+
+  public static final String PREFIX = "ovk_";
+  public static final String SIGNED_PREFIX = "ovs_";
+
+  private static final int SIGNED_MAX_LENGTH = 4096;
+
+  private static final int KEY_ID_LENGTH = 32;
+  private static final int SECRET_BYTES = 32;
+  private static final int SECRET_LENGTH = 43;
+  private static final int LENGTH = PREFIX.length() + KEY_ID_LENGTH + 1 + SECRET_LENGTH;
+
+  private static final int KEY_ID_START = PREFIX.length();
+  private static final int SECRET_START = KEY_ID_START + KEY_ID_LENGTH + 1;
+
+  private static final SecureRandom RANDOM = new SecureRandom();
+  private static final Base64.Encoder ENCODER = Base64.getUrlEncoder().withoutPadding();
+
+  /** New apiKey for the stored apiKey {@code id}, a UUID. */
+  public static String generate(String id) {
+    byte[] secret = new byte[SECRET_BYTES];
+    RANDOM.nextBytes(secret);
+    return PREFIX + id.replace("-", "") + "_" + ENCODER.encodeToString(secret);
+  }
+
+  public static String signed(String jws) {
+    return SIGNED_PREFIX + jws;
+  }
+
+  public static boolean isValid(String apiKey) {
+    return isKeyIdFormat(apiKey) || isSigned(apiKey) || isLegacyFormat(apiKey);
+  }
+
+  /** Whether the apiKey has the signed format: three base64url parts separated by dots. */
+  public static boolean isSigned(String apiKey) {
+    if (apiKey == null
+        || apiKey.length() > SIGNED_MAX_LENGTH
+        || !apiKey.startsWith(SIGNED_PREFIX)) {
+      return false;
+    }
+    int dots = 0;
+    boolean emptyPart = true;
+    for (int i = SIGNED_PREFIX.length(); i < apiKey.length(); i++) {
+      char c = apiKey.charAt(i);
+      if (c == '.') {
+        if (emptyPart) {
+          return false;
+        }
+        dots++;
+        emptyPart = true;
+      } else if (isBase64Url(c)) {
+        emptyPart = false;
+      } else {
+        return false;
+      }
+    }
+    return dots == 2 && !emptyPart;
+  }
+
+  /** JWS of a signed apiKey. */
+  public static String jws(String apiKey) {
+    return apiKey.substring(SIGNED_PREFIX.length());
+  }
+
+  /**
+   * Id of the stored apiKey, in its UUID form, if the apiKey has the keyId format. Checked by
+   * position and character class only, nothing is allocated for a malformed apiKey.
+   */
+  public static Optional<String> keyId(String apiKey) {
+    if (!isKeyIdFormat(apiKey)) {
+      return Optional.empty();
+    }
+    String keyId = apiKey.substring(KEY_ID_START, KEY_ID_START + KEY_ID_LENGTH);
+    return Optional.of(
+        keyId.substring(0, 8)
+            + "-"
+            + keyId.substring(8, 12)
+            + "-"
+            + keyId.substring(12, 16)
+            + "-"
+            + keyId.substring(16, 20)
+            + "-"
+            + keyId.substring(20));
+  }
+
+  private static boolean isKeyIdFormat(String apiKey) {
+    if (apiKey == null || apiKey.length() != LENGTH || !apiKey.startsWith(PREFIX)) {
+      return false;
+    }
+    for (int i = KEY_ID_START; i < KEY_ID_START + KEY_ID_LENGTH; i++) {
+      char c = apiKey.charAt(i);
+      if (!((c >= '0' && c <= '9') || (c >= 'a' && c <= 'f'))) {
+        return false;
+      }
+    }
+    if (apiKey.charAt(SECRET_START - 1) != '_') {
+      return false;
+    }
+    for (int i = SECRET_START; i < LENGTH; i++) {
+      if (!isBase64Url(apiKey.charAt(i))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static boolean isBase64Url(char c) {
+    return (c >= '0' && c <= '9')
+        || (c >= 'a' && c <= 'z')
+        || (c >= 'A' && c <= 'Z')
+        || c == '-'
+        || c == '_';
+  }
+
+  private static boolean isLegacyFormat(String apiKey) {
+    if (apiKey == null) {
+      return false;
+    }
+    try {
+      UUID.fromString(apiKey);
+      return true;
+    } catch (IllegalArgumentException e) {
+      return false;
+    }
+  }
+}
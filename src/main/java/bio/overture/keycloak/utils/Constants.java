@@ -4,4 +4,7 @@ public class Constants {
 
   public static final String SORT_ORDER_ASC = "ASC";
   public static final String SORT_ORDER_DESC = "DESC";
+
+  public static final String API_KEY_TYPE_OPAQUE = "opaque";
+  public static final String API_KEY_TYPE_SIGNED = "signed";
 }
@@ -1,19 +1,65 @@
 package bio.overture.keycloak.utils;
 
 import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.util.MinimalPrettyPrinter;
 import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import jakarta.ws.rs.core.StreamingOutput;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.UncheckedIOException;
+import java.text.SimpleDateFormat;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class Converters {
 
+  private static final String DATE_FORMAT = "yyyy-MM-dd'T'HH:mm:ss.SSSZ";
+
+  // built once, ObjectMapper/ObjectReader/ObjectWriter are thread safe after configuration
+  private static final ObjectMapper MAPPER =
+      new ObjectMapper()
+          .configure(JsonGenerator.Feature.IGNORE_UNKNOWN, true)
+          .configure(JsonGenerator.Feature.AUTO_CLOSE_TARGET, false)
+          .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+  // Jackson copies the DateFormat of the writer for every serialization, so sharing it is safe
+  public static final ObjectWriter JSON_WRITER = MAPPER.writer(new SimpleDateFormat(DATE_FORMAT));
+
+  public static final ObjectWriter PRETTY_JSON_WRITER = JSON_WRITER.withDefaultPrettyPrinter();
+
+  // no indentation and dates as timestamps
+  public static final ObjectWriter MINIMAL_JSON_WRITER = MAPPER.writer(new MinimalPrettyPrinter());
+
+  // no separator between documents, each line ends with the newline written after its document
+  private static final ObjectWriter NDJSON_WRITER = JSON_WRITER.withRootValueSeparator("");
+
+  private static final Map<Class<?>, ObjectReader> READERS = new ConcurrentHashMap<>();
+
   public static <T> T jsonStringToClass(String jsonString, Class<T> tClass) {
-    ObjectMapper mapper = new ObjectMapper();
-    mapper.configure(JsonGenerator.Feature.IGNORE_UNKNOWN, true);
-    mapper.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
     try {
-      return mapper.readValue(jsonString, tClass);
+      return READERS.computeIfAbsent(tClass, MAPPER::readerFor).readValue(jsonString);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /** Serializes {@code value} straight into the response body instead of an intermediate String. */
+  public static StreamingOutput toStreamingOutput(ObjectWriter writer, Object value) {
+    return output -> writer.writeValue(output, value);
+  }
+
+  /** Generator for NDJSON, one JSON document per line, written with {@link #writeNdjsonLine}. */
+  public static JsonGenerator createNdjsonGenerator(OutputStream output) throws IOException {
+    return NDJSON_WRITER.createGenerator(output);
+  }
+
+  public static void writeNdjsonLine(JsonGenerator generator, Object value) {
+    try {
+      NDJSON_WRITER.writeValue(generator, value);
+      generator.writeRaw('\n');
     } catch (IOException e) {
       throw new UncheckedIOException(e);
     }
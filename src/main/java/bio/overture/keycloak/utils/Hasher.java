@@ -2,25 +2,127 @@ package bio.overture.keycloak.utils;
 
 import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
-import lombok.SneakyThrows;
+import java.security.NoSuchAlgorithmException;
 
+/**
+ * Thread safe hashing of apiKeys. Each thread reuses its own digest, cloned from a single
+ * prototype, and ASCII input (e.g. UUID apiKeys) is encoded without allocating.
+ */
 public class Hasher {
 
   // hashing algorithm SHA3_256, SHA_256, KECCAK_256, ...
-  private final String ALGORITHM = "SHA-256";
+  private static final String ALGORITHM = "SHA-256";
 
-  @SneakyThrows
+  // fits UUIDs and the longer apiKey formats, longer input falls back to String.getBytes
+  private static final int ENCODE_BUFFER_LENGTH = 128;
+
+  private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+  private static final MessageDigest PROTOTYPE = newDigest();
+
+  private static final ThreadLocal<MessageDigest> DIGEST =
+      ThreadLocal.withInitial(Hasher::cloneDigest);
+
+  private static final ThreadLocal<byte[]> ENCODE_BUFFER =
+      ThreadLocal.withInitial(() -> new byte[ENCODE_BUFFER_LENGTH]);
+
+  /** Upper case hex encoded SHA-256 of the UTF-8 bytes of {@code inputText}. */
   public String generateHash(String inputText) {
-    MessageDigest md = MessageDigest.getInstance(ALGORITHM);
-    byte[] digest = md.digest(inputText.getBytes(StandardCharsets.UTF_8));
-    return bytesToHex(digest);
+    return toHex(digest(inputText));
+  }
+
+  /** SHA-256 of the UTF-8 bytes of {@code inputText}. */
+  public byte[] digest(String inputText) {
+    MessageDigest md = DIGEST.get();
+    int length = inputText.length();
+
+    if (length <= ENCODE_BUFFER_LENGTH) {
+      byte[] buffer = ENCODE_BUFFER.get();
+      int i = 0;
+      for (; i < length; i++) {
+        char c = inputText.charAt(i);
+        if (c >= 0x80) {
+          break;
+        }
+        buffer[i] = (byte) c;
+      }
+      if (i == length) {
+        // ASCII only, the buffer already holds the UTF-8 encoding
+        md.update(buffer, 0, length);
+        return md.digest();
+      }
+    }
+    return md.digest(inputText.getBytes(StandardCharsets.UTF_8));
+  }
+
+  /** Constant time check that {@code inputText} hashes to {@code expectedDigest}. */
+  public boolean matches(String inputText, byte[] expectedDigest) {
+    return MessageDigest.isEqual(digest(inputText), expectedDigest);
+  }
+
+  /** Constant time check that {@code inputText} hashes to the hex encoded {@code expectedHash}. */
+  public boolean matches(String inputText, String expectedHash) {
+    return equalsHex(digest(inputText), expectedHash);
+  }
+
+  /**
+   * Constant time comparison of a digest with a hex encoded hash (any case), without decoding the
+   * hash into a new array.
+   */
+  public static boolean equalsHex(byte[] digest, String hash) {
+    if (hash == null || hash.length() != digest.length * 2) {
+      return false;
+    }
+    int diff = 0;
+    for (int i = 0; i < digest.length; i++) {
+      int high = Character.digit(hash.charAt(2 * i), 16);
+      int low = Character.digit(hash.charAt(2 * i + 1), 16);
+      // an invalid digit (-1) always makes the result differ
+      diff |= ((high << 4) | low) ^ (digest[i] & 0xFF);
+      diff |= (high | low) & 0x80000000;
+    }
+    return diff == 0;
+  }
+
+  public static String toHex(byte[] bytes) {
+    char[] out = new char[bytes.length * 2];
+    for (int i = 0; i < bytes.length; i++) {
+      out[2 * i] = HEX[(bytes[i] >> 4) & 0x0F];
+      out[2 * i + 1] = HEX[bytes[i] & 0x0F];
+    }
+    return new String(out);
+  }
+
+  public static byte[] fromHex(String hash) {
+    if (hash.length() % 2 != 0) {
+      throw new IllegalArgumentException("Hex encoded hash must have an even length");
+    }
+    byte[] out = new byte[hash.length() / 2];
+    for (int i = 0; i < out.length; i++) {
+      int high = Character.digit(hash.charAt(2 * i), 16);
+      int low = Character.digit(hash.charAt(2 * i + 1), 16);
+      if (high < 0 || low < 0) {
+        throw new IllegalArgumentException("Invalid hex encoded hash");
+      }
+      out[i] = (byte) ((high << 4) | low);
+    }
+    return out;
+  }
+
+  private static MessageDigest newDigest() {
+    try {
+      return MessageDigest.getInstance(ALGORITHM);
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(ALGORITHM + " is not available", e);
+    }
   }
 
-  private String bytesToHex(byte[] bytes) {
-    StringBuilder out = new StringBuilder();
-    for (byte b : bytes) {
-      out.append(String.format("%02X", b));
+  private static MessageDigest cloneDigest() {
+    try {
+      return (MessageDigest) PROTOTYPE.clone();
+    } catch (CloneNotSupportedException e) {
+      // providers are not required to support clone
+      return newDigest();
     }
-    return out.toString();
   }
 }
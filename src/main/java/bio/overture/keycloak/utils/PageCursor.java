@@ -0,0 +1,42 @@
+package bio.overture.keycloak.utils;
+
+import jakarta.ws.rs.BadRequestException;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import lombok.Value;
+
+/**
+ * Opaque keyset pagination cursor: the sort the page was listed with, and the sort value and id of
+ * its last apiKey. The next page starts right after that apiKey, however many rows precede it.
+ */
+@Value
+public class PageCursor {
+
+  private static final String SEPARATOR = "\n";
+
+  String sort;
+  String sortOrder;
+  String id;
+  String value;
+
+  public String encode() {
+    String cursor = String.join(SEPARATOR, sort, sortOrder, id, value);
+    return Base64.getUrlEncoder()
+        .withoutPadding()
+        .encodeToString(cursor.getBytes(StandardCharsets.UTF_8));
+  }
+
+  public static PageCursor decode(String cursor) {
+    try {
+      String decoded = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+      // the value is last as it may hold anything, including the separator
+      String[] parts = decoded.split(SEPARATOR, 4);
+      if (parts.length != 4) {
+        throw new BadRequestException("Invalid cursor");
+      }
+      return new PageCursor(parts[0], parts[1], parts[2], parts[3]);
+    } catch (IllegalArgumentException e) {
+      throw new BadRequestException("Invalid cursor");
+    }
+  }
+}
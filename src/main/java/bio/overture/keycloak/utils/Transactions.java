@@ -0,0 +1,26 @@
+package bio.overture.keycloak.utils;
+
+import org.keycloak.models.AbstractKeycloakTransaction;
+import org.keycloak.models.KeycloakSession;
+
+public class Transactions {
+
+  /**
+   * Runs {@code action} once the transaction of the session is committed, and never when it is
+   * rolled back, e.g. to drop cached copies of the rows it changed.
+   */
+  public static void afterCommit(KeycloakSession session, Runnable action) {
+    session
+        .getTransactionManager()
+        .enlistAfterCompletion(
+            new AbstractKeycloakTransaction() {
+              @Override
+              protected void commitImpl() {
+                action.run();
+              }
+
+              @Override
+              protected void rollbackImpl() {}
+            });
+  }
+}
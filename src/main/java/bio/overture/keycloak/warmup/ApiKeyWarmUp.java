@@ -0,0 +1,149 @@
+package bio.overture.keycloak.warmup;
+
+import static bio.overture.keycloak.utils.Converters.JSON_WRITER;
+
+import bio.overture.keycloak.cache.ApiKeyCache;
+import bio.overture.keycloak.cache.ApiKeyLookupCoalescer;
+import bio.overture.keycloak.metrics.ApiKeyMetrics;
+import bio.overture.keycloak.model.ApiKeySnapshot;
+import bio.overture.keycloak.params.ScopeName;
+import bio.overture.keycloak.provider.ApiKeyComponents;
+import bio.overture.keycloak.services.ApiKeyService;
+import bio.overture.keycloak.services.AuthService;
+import bio.overture.keycloak.utils.ApiKeyFormat;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import lombok.RequiredArgsConstructor;
+import lombok.SneakyThrows;
+import org.jboss.logging.Logger;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+
+/**
+ * Warms a node up before it serves apiKey checks, in the background, once the database is migrated.
+ * For each of the {@code warmupRealms}, the most recently used apiKeys are loaded in the apiKey
+ * cache, the authorization index is built, and the lookup, hashing and serialization paths are run
+ * on apiKeys that do not exist. Those runs use caches and meters of their own, so they are not
+ * counted as traffic of the node, and only the first {@value #MAX_LOOKUPS} of them query the
+ * database. The node is ready once it is done, whether it succeeded or not, or right away when no
+ * realm is configured.
+ */
+@RequiredArgsConstructor
+public class ApiKeyWarmUp {
+
+  private static final Logger logger = Logger.getLogger(ApiKeyWarmUp.class);
+
+  // apiKeys per batch lookup
+  private static final int LOOKUP_BATCH_SIZE = 100;
+
+  // database lookups per realm, whatever warmupIterations is
+  private static final int MAX_LOOKUPS = 10;
+
+  private final ApiKeyComponents components;
+
+  private volatile boolean ready;
+
+  public boolean isReady() {
+    return ready;
+  }
+
+  public void start(KeycloakSessionFactory sessionFactory) {
+    if (components.getConfig().getWarmupRealms().isEmpty()) {
+      ready = true;
+      return;
+    }
+    Thread thread = new Thread(() -> run(sessionFactory), "apikey-warmup");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  private void run(KeycloakSessionFactory sessionFactory) {
+    long start = System.currentTimeMillis();
+    try {
+      for (String realmName : components.getConfig().getWarmupRealms()) {
+        try {
+          KeycloakModelUtils.runJobInTransaction(
+              sessionFactory, session -> warmUpRealm(session, realmName));
+        } catch (RuntimeException e) {
+          logger.warnf(e, "ApiKeyWarmUp - Could not warm up realm %s", realmName);
+        }
+      }
+    } finally {
+      ready = true;
+      logger.infof("ApiKeyWarmUp - Ready after %d ms", System.currentTimeMillis() - start);
+    }
+  }
+
+  private void warmUpRealm(KeycloakSession session, String realmName) {
+    RealmModel realm = session.realms().getRealmByName(realmName);
+    if (realm == null) {
+      logger.warnf("ApiKeyWarmUp - Realm %s not found", realmName);
+      return;
+    }
+    session.getContext().setRealm(realm);
+
+    ApiKeyService apiKeyService = new ApiKeyService(session, components);
+    int loaded =
+        apiKeyService.preloadApiKeys(realm.getId(), components.getConfig().getWarmupMaxKeys());
+
+    new AuthService(session, components).preloadAuthorizationIndex();
+
+    exercise(session, realm.getId());
+    logger.infof("ApiKeyWarmUp - Realm %s warmed up, %d apiKeys cached", realmName, loaded);
+  }
+
+  /** Runs the check paths, with apiKeys that are never found, so nothing is cached. */
+  @SneakyThrows
+  private void exercise(KeycloakSession session, String realmId) {
+    // caches and meters of the run only, the ones of the node never see it
+    ApiKeyCache apiKeyCache = new ApiKeyCache(LOOKUP_BATCH_SIZE, TimeUnit.MINUTES.toMillis(1));
+    SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    ApiKeyMetrics metrics = new ApiKeyMetrics(registry);
+    ApiKeyService apiKeyService =
+        new ApiKeyService(
+            session,
+            components.getHasher(),
+            apiKeyCache,
+            new ApiKeyLookupCoalescer(0, LOOKUP_BATCH_SIZE),
+            components.getRevokedApiKeys(),
+            metrics);
+
+    List<String> apiKeys = new ArrayList<>(LOOKUP_BATCH_SIZE);
+    for (int i = 0; i < LOOKUP_BATCH_SIZE; i++) {
+      apiKeys.add(ApiKeyFormat.generate(UUID.randomUUID().toString()));
+    }
+    ApiKeySnapshot sample =
+        ApiKeySnapshot.builder()
+            .id(UUID.randomUUID().toString())
+            .userId(UUID.randomUUID().toString())
+            .expiryDate(System.currentTimeMillis() + TimeUnit.HOURS.toMillis(1))
+            .scope(Set.of(new ScopeName("warmup.READ")))
+            .build();
+
+    try {
+      int iterations = components.getConfig().getWarmupIterations();
+      for (int i = 0; i < iterations; i++) {
+        String apiKey = apiKeys.get(i % LOOKUP_BATCH_SIZE);
+        if (i == 0) {
+          apiKeyService.findSnapshotsByApiKeys(apiKeys);
+        } else if (i < MAX_LOOKUPS) {
+          apiKeyService.findSnapshotByApiKey(apiKey);
+        } else {
+          // the part of a lookup run before the database, missing from the cache as well
+          apiKeyService.validFormatApiKey(apiKey);
+          apiKeyCache.get(realmId, components.getHasher().generateHash(apiKey));
+        }
+        JSON_WRITER.writeValueAsString(apiKeyService.checkApiKeyResponse(sample));
+      }
+    } finally {
+      metrics.close();
+      registry.close();
+    }
+  }
+}
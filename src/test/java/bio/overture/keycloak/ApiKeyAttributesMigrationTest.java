@@ -0,0 +1,126 @@
+package bio.overture.keycloak;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import liquibase.Liquibase;
+import liquibase.database.Database;
+import liquibase.database.DatabaseFactory;
+import liquibase.database.jvm.JdbcConnection;
+import liquibase.resource.ClassLoaderResourceAccessor;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class ApiKeyAttributesMigrationTest {
+
+  private static final String HASH_A = "a".repeat(64);
+  private static final String HASH_B = "b".repeat(64);
+
+  private Connection connection;
+
+  @BeforeEach
+  public void setUp() throws Exception {
+    connection = DriverManager.getConnection("jdbc:h2:mem:migration;NON_KEYWORDS=VALUE");
+    try (Statement statement = connection.createStatement()) {
+      statement.execute(
+          "CREATE TABLE USER_ENTITY (ID VARCHAR(36) PRIMARY KEY, REALM_ID VARCHAR(36))");
+      statement.execute(
+          "CREATE TABLE USER_ATTRIBUTE (ID VARCHAR(36) PRIMARY KEY, NAME VARCHAR(255),"
+              + " VALUE VARCHAR(4000), USER_ID VARCHAR(36))");
+      statement.execute("INSERT INTO USER_ENTITY VALUES ('user1', 'realm'), ('user2', 'realm')");
+    }
+  }
+
+  @AfterEach
+  public void tearDown() throws Exception {
+    connection.close();
+  }
+
+  @Test
+  public void only_the_attributes_moved_should_be_deleted() throws Exception {
+    attribute("moved", "api-keys", apiKey(HASH_A), "user1");
+    attribute("moved-hash", "api-key-hash", HASH_A, "user1");
+    attribute("unreadable", "api-keys", "{not json", "user1");
+    attribute("duplicate", "api-keys", apiKey(HASH_A), "user2");
+    attribute("duplicate-hash", "api-key-hash", HASH_A, "user2");
+    attribute("incomplete", "api-keys", "{\"name\":\"" + HASH_B + "\"}", "user2");
+    attribute("other", "locale", "en", "user1");
+
+    migrate();
+
+    assertEquals(
+        List.of(HASH_A + ":user1:realm"), query("SELECT HASH, USER_ID, REALM_ID FROM API_KEY"));
+    assertEquals(List.of("song.READ"), query("SELECT SCOPE FROM API_KEY_SCOPE"));
+    assertEquals(
+        List.of("duplicate", "duplicate-hash", "incomplete", "other", "unreadable"),
+        query("SELECT ID FROM USER_ATTRIBUTE ORDER BY ID"));
+  }
+
+  @Test
+  public void apiKeys_should_be_moved_in_batches() throws Exception {
+    // more than two batches, the last one partial
+    int count = 1234;
+    for (int i = 0; i < count; i++) {
+      String hash = String.format("%064x", i);
+      attribute("moved-" + i, "api-keys", apiKey(hash), "user" + (i % 2 + 1));
+      attribute("moved-hash-" + i, "api-key-hash", hash, "user" + (i % 2 + 1));
+    }
+
+    migrate();
+
+    assertEquals(List.of(String.valueOf(count)), query("SELECT COUNT(*) FROM API_KEY"));
+    assertEquals(
+        List.of(String.valueOf(count)),
+        query("SELECT COUNT(*) FROM API_KEY_SCOPE s JOIN API_KEY k ON s.API_KEY_ID = k.ID"));
+    assertEquals(List.of("0"), query("SELECT COUNT(*) FROM USER_ATTRIBUTE"));
+  }
+
+  private static String apiKey(String hash) {
+    return "{\"name\":\""
+        + hash
+        + "\",\"scope\":[\"song.READ\"],\"issueDate\":1000,\"expiryDate\":2000,"
+        + "\"isRevoked\":false,\"description\":\"moved\"}";
+  }
+
+  private void attribute(String id, String name, String value, String userId) throws Exception {
+    try (var insert =
+        connection.prepareStatement(
+            "INSERT INTO USER_ATTRIBUTE (ID, NAME, VALUE, USER_ID) VALUES (?, ?, ?, ?)")) {
+      insert.setString(1, id);
+      insert.setString(2, name);
+      insert.setString(3, value);
+      insert.setString(4, userId);
+      insert.executeUpdate();
+    }
+  }
+
+  private void migrate() throws Exception {
+    Database database =
+        DatabaseFactory.getInstance()
+            .findCorrectDatabaseImplementation(new JdbcConnection(connection));
+    new Liquibase("META-INF/apikeys-changelog.xml", new ClassLoaderResourceAccessor(), database)
+        .update("");
+  }
+
+  private List<String> query(String sql) throws Exception {
+    List<String> rows = new ArrayList<>();
+    try (Statement statement = connection.createStatement();
+        ResultSet rs = statement.executeQuery(sql)) {
+      int columns = rs.getMetaData().getColumnCount();
+      while (rs.next()) {
+        List<String> values = new ArrayList<>();
+        for (int column = 1; column <= columns; column++) {
+          values.add(rs.getString(column));
+        }
+        rows.add(String.join(":", values));
+      }
+    }
+    return rows;
+  }
+}
@@ -0,0 +1,89 @@
+package bio.overture.keycloak;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import bio.overture.keycloak.cache.ApiKeyCache;
+import bio.overture.keycloak.model.ApiKeySnapshot;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakTransaction;
+import org.keycloak.models.KeycloakTransactionManager;
+
+public class ApiKeyCacheTest {
+
+  private final KeycloakSession session = mock(KeycloakSession.class);
+  private final KeycloakTransactionManager transactionManager =
+      mock(KeycloakTransactionManager.class);
+  private final List<KeycloakTransaction> afterCompletion = new ArrayList<>();
+
+  private final ApiKeyCache cache = new ApiKeyCache(100, 60_000);
+
+  @BeforeEach
+  public void setUp() {
+    when(session.getTransactionManager()).thenReturn(transactionManager);
+    doAnswer(
+            invocation -> {
+              KeycloakTransaction transaction = invocation.getArgument(0);
+              transaction.begin();
+              afterCompletion.add(transaction);
+              return null;
+            })
+        .when(transactionManager)
+        .enlistAfterCompletion(any());
+    cache.put(apiKey("A"), cache.generation("realm"));
+    cache.put(apiKey("B"), cache.generation("realm"));
+  }
+
+  @Test
+  public void invalidate_should_wait_for_the_commit() {
+    cache.invalidate(session, "realm", List.of("A"));
+    assertTrue(cache.get("realm", "A").isPresent());
+
+    afterCompletion.forEach(KeycloakTransaction::commit);
+
+    assertTrue(cache.get("realm", "A").isEmpty());
+    assertTrue(cache.get("realm", "B").isPresent());
+  }
+
+  @Test
+  public void rolled_back_invalidation_should_drop_nothing() {
+    cache.invalidateRealm(session, "realm");
+
+    afterCompletion.forEach(KeycloakTransaction::rollback);
+
+    assertTrue(cache.get("realm", "A").isPresent());
+    assertTrue(cache.get("realm", "B").isPresent());
+  }
+
+  @Test
+  public void apiKey_read_before_an_invalidation_should_not_be_cached() {
+    long generation = cache.generation("realm");
+    cache.invalidate(session, "realm", List.of("C"));
+    afterCompletion.forEach(KeycloakTransaction::commit);
+
+    cache.put(apiKey("C"), generation);
+    assertTrue(cache.get("realm", "C").isEmpty());
+
+    cache.put(apiKey("C"), cache.generation("realm"));
+    assertTrue(cache.get("realm", "C").isPresent());
+  }
+
+  private static ApiKeySnapshot apiKey(String hash) {
+    return ApiKeySnapshot.builder()
+        .id(hash)
+        .hash(hash)
+        .realmId("realm")
+        .userId("user")
+        .expiryDate(System.currentTimeMillis() + 60_000)
+        .scope(Set.of())
+        .build();
+  }
+}
@@ -0,0 +1,506 @@
+package bio.overture.keycloak;
+
+import static bio.overture.keycloak.metrics.ApiKeyMetrics.ENDPOINT_CHECK;
+import static bio.overture.keycloak.metrics.ApiKeyMetrics.ENDPOINT_ISSUE;
+import static bio.overture.keycloak.metrics.ApiKeyMetrics.ENDPOINT_LIST;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import bio.overture.keycloak.provider.ResourceProviderFactory;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import dasniko.testcontainers.keycloak.KeycloakContainer;
+import jakarta.ws.rs.core.Response;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.keycloak.admin.client.CreatedResponseUtil;
+import org.keycloak.admin.client.resource.AuthorizationResource;
+import org.keycloak.admin.client.resource.RealmResource;
+import org.keycloak.representations.idm.ClientRepresentation;
+import org.keycloak.representations.idm.CredentialRepresentation;
+import org.keycloak.representations.idm.GroupRepresentation;
+import org.keycloak.representations.idm.RealmRepresentation;
+import org.keycloak.representations.idm.RoleRepresentation;
+import org.keycloak.representations.idm.UserRepresentation;
+import org.keycloak.representations.idm.authorization.ResourceRepresentation;
+import org.keycloak.representations.idm.authorization.RolePolicyRepresentation;
+import org.keycloak.representations.idm.authorization.ScopePermissionRepresentation;
+import org.testcontainers.containers.Network;
+import org.testcontainers.containers.PostgreSQLContainer;
+import org.testcontainers.junit.jupiter.Container;
+import org.testcontainers.junit.jupiter.Testcontainers;
+
+/**
+ * Load test of {@code check_api_key}, {@code GET /api_key} and {@code POST /api_key} against
+ * Keycloak and Postgres containers, run with {@code mvn -P load-test test}. It seeds {@code
+ * loadtest.users} users holding {@code loadtest.keysPerUser} apiKeys each, issued through the
+ * plugin, drives the three endpoints from {@code loadtest.threads} threads for {@code
+ * loadtest.durationSeconds}, reports the throughput and latency percentiles of each, and fails when
+ * a request fails or a {@code loadtest.budget.<endpoint>.<p50|p95|p99>} budget, in milliseconds, is
+ * exceeded.
+ */
+@Testcontainers
+public class ApiKeyLoadTest {
+
+  private static final String REALM = "loadtest";
+  private static final String ROLE = "loadtest";
+  private static final String SCOPE = "loadtest.READ";
+  private static final String PASSWORD = "loadtest";
+  private static final String CLI_CLIENT = "loadtest-cli";
+  private static final String CHECK_CLIENT = "loadtest-checker";
+  private static final String CHECK_SECRET = UUID.randomUUID().toString();
+  private static final String ADMIN_USER = "loadtest-admin";
+  private static final String BOUNDARY = "loadtest-boundary";
+
+  private static final int USERS = Integer.getInteger("loadtest.users", 50);
+  private static final int KEYS_PER_USER = Integer.getInteger("loadtest.keysPerUser", 20);
+  private static final int THREADS = Integer.getInteger("loadtest.threads", 64);
+  private static final int WARMUP_SECONDS = Integer.getInteger("loadtest.warmupSeconds", 10);
+  private static final int DURATION_SECONDS = Integer.getInteger("loadtest.durationSeconds", 60);
+
+  // share of the requests sent to each endpoint
+  private static final Map<String, Integer> WEIGHTS =
+      Map.of(
+          ENDPOINT_CHECK, Integer.getInteger("loadtest.weight.check", 90),
+          ENDPOINT_LIST, Integer.getInteger("loadtest.weight.list", 8),
+          ENDPOINT_ISSUE, Integer.getInteger("loadtest.weight.issue", 2));
+
+  // p99 budgets applied when none is configured
+  private static final Map<String, Long> DEFAULT_P99_MILLIS =
+      Map.of(ENDPOINT_CHECK, 100L, ENDPOINT_LIST, 500L, ENDPOINT_ISSUE, 1000L);
+
+  private static final ObjectMapper MAPPER = new ObjectMapper();
+
+  private static final Network network = Network.newNetwork();
+
+  @Container
+  private static final PostgreSQLContainer<?> postgres =
+      new PostgreSQLContainer<>("postgres:15-alpine")
+          .withNetwork(network)
+          .withNetworkAliases("postgres")
+          .withDatabaseName("keycloak");
+
+  @Container
+  private static final KeycloakContainer keycloak =
+      new KeycloakContainer()
+          .withProviderClassesFrom("target/classes")
+          .withNetwork(network)
+          .withEnv("KC_DB", "postgres")
+          .withEnv("KC_DB_URL", "jdbc:postgresql://postgres:5432/keycloak")
+          .withEnv("KC_DB_USERNAME", "test")
+          .withEnv("KC_DB_PASSWORD", "test")
+          .withEnv(rateLimitSettings())
+          .dependsOn(postgres);
+
+  /**
+   * Rate limits of the container, per second, from {@code loadtest.rateLimit.caller} and {@code
+   * loadtest.rateLimit.key}. The load-test profile turns them off; when run otherwise the plugin
+   * defaults apply.
+   */
+  private static Map<String, String> rateLimitSettings() {
+    Map<String, String> settings = new HashMap<>();
+    String caller = System.getProperty("loadtest.rateLimit.caller");
+    if (caller != null) {
+      settings.put("KC_SPI_REALM_RESTAPI_EXTENSION_APIKEY_CALLER_RATE_LIMIT_PER_SECOND", caller);
+    }
+    String key = System.getProperty("loadtest.rateLimit.key");
+    if (key != null) {
+      settings.put("KC_SPI_REALM_RESTAPI_EXTENSION_APIKEY_KEY_RATE_LIMIT_PER_SECOND", key);
+    }
+    return settings;
+  }
+
+  private static HttpClient http;
+  private static String baseUrl;
+  private static String checkAuthorization;
+  private static final List<LoadUser> users = new ArrayList<>();
+
+  @BeforeAll
+  public static void seed() throws Exception {
+    http = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+    baseUrl =
+        keycloak.getAuthServerUrl()
+            + "/realms/"
+            + REALM
+            + "/"
+            + ResourceProviderFactory.PROVIDER_ID;
+    checkAuthorization =
+        "Basic "
+            + Base64.getEncoder()
+                .encodeToString((CHECK_CLIENT + ":" + CHECK_SECRET).getBytes(UTF_8));
+
+    RealmResource realm = createRealm();
+    String adminId = createUser(realm, ADMIN_USER);
+    realm.users().get(adminId).joinGroup(realm.groups().groups("ADMIN", 0, 1).get(0).getId());
+    String adminToken = token(ADMIN_USER);
+
+    for (int i = 0; i < USERS; i++) {
+      String username = "loadtest-user-" + i;
+      users.add(new LoadUser(createUser(realm, username), token(username)));
+    }
+
+    // all the apiKeys are issued by the admin, in batches as large as the plugin accepts
+    List<Map<String, Object>> requests = new ArrayList<>();
+    List<LoadUser> owners = new ArrayList<>();
+    for (LoadUser user : users) {
+      for (int i = 0; i < KEYS_PER_USER; i++) {
+        requests.add(
+            Map.of("user_id", user.id, "scopes", List.of(SCOPE), "description", "seed " + i));
+        owners.add(user);
+      }
+    }
+    for (int from = 0; from < requests.size(); from += 1000) {
+      List<Map<String, Object>> batch =
+          requests.subList(from, Math.min(from + 1000, requests.size()));
+      HttpResponse<String> response =
+          send(
+              HttpRequest.newBuilder(URI.create(baseUrl + "/api_key/bulk"))
+                  .header("Authorization", "Bearer " + adminToken)
+                  .header("Content-Type", "application/json")
+                  .POST(HttpRequest.BodyPublishers.ofString(MAPPER.writeValueAsString(batch))));
+      assertTrue(response.statusCode() == 200, "Seeding failed: " + response.body());
+      // the apiKeys come back in the order of the requests
+      int owner = from;
+      for (JsonNode apiKey : MAPPER.readTree(response.body()).get("apiKeys")) {
+        owners.get(owner++).apiKeys.add(apiKey.get("name").asText());
+      }
+    }
+  }
+
+  @Test
+  public void endpoints_underLoad_shouldStayWithinLatencyBudgets() throws Exception {
+    run(WARMUP_SECONDS);
+    Map<String, Samples> samples = run(DURATION_SECONDS);
+
+    StringBuilder report =
+        new StringBuilder(
+            String.format(
+                "%d users x %d apiKeys, %d threads, %d s%n%-16s %10s %8s %10s %8s %8s %8s %8s%n",
+                USERS,
+                KEYS_PER_USER,
+                THREADS,
+                DURATION_SECONDS,
+                "endpoint",
+                "requests",
+                "errors",
+                "req/s",
+                "p50 ms",
+                "p95 ms",
+                "p99 ms",
+                "max ms"));
+    List<String> violations = new ArrayList<>();
+    samples.forEach(
+        (endpoint, endpointSamples) -> {
+          long[] nanos = endpointSamples.sorted();
+          report.append(
+              String.format(
+                  "%-16s %10d %8d %10.1f %8.1f %8.1f %8.1f %8.1f%n",
+                  endpoint,
+                  nanos.length,
+                  endpointSamples.errors,
+                  (double) nanos.length / DURATION_SECONDS,
+                  millis(percentile(nanos, 50)),
+                  millis(percentile(nanos, 95)),
+                  millis(percentile(nanos, 99)),
+                  millis(nanos.length == 0 ? 0 : nanos[nanos.length - 1])));
+
+          if (endpointSamples.errors > 0) {
+            violations.add(
+                endpoint + ": " + endpointSamples.errors + " failed, " + endpointSamples.lastError);
+          }
+          for (int p : new int[] {50, 95, 99}) {
+            Long budget = Long.getLong("loadtest.budget." + endpoint + ".p" + p);
+            if (budget == null && p == 99) {
+              budget = DEFAULT_P99_MILLIS.get(endpoint);
+            }
+            if (budget != null && millis(percentile(nanos, p)) > budget) {
+              violations.add(
+                  String.format(
+                      "%s: p%d of %.1f ms over the budget of %d ms",
+                      endpoint, p, millis(percentile(nanos, p)), budget));
+            }
+          }
+        });
+
+    System.out.print(report);
+    Files.writeString(Path.of("target", "load-test-report.txt"), report);
+    assertTrue(violations.isEmpty(), String.join("\n", violations));
+  }
+
+  /** Sends requests from every thread for {@code seconds}, and returns their latencies. */
+  private static Map<String, Samples> run(int seconds) throws Exception {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+    ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+    try {
+      List<Future<Map<String, Samples>>> workers = new ArrayList<>();
+      for (int i = 0; i < THREADS; i++) {
+        workers.add(executor.submit(() -> work(deadline)));
+      }
+
+      Map<String, Samples> samples = new LinkedHashMap<>();
+      for (Future<Map<String, Samples>> worker : workers) {
+        worker.get().forEach((endpoint, s) -> samples.merge(endpoint, s, Samples::merge));
+      }
+      return samples;
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private static Map<String, Samples> work(long deadline) {
+    Map<String, Samples> samples = new HashMap<>();
+    int totalWeight = WEIGHTS.values().stream().mapToInt(Integer::intValue).sum();
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+
+    while (System.nanoTime() < deadline) {
+      LoadUser user = users.get(random.nextInt(users.size()));
+      int pick = random.nextInt(totalWeight);
+      String endpoint =
+          pick < WEIGHTS.get(ENDPOINT_CHECK)
+              ? ENDPOINT_CHECK
+              : pick < WEIGHTS.get(ENDPOINT_CHECK) + WEIGHTS.get(ENDPOINT_LIST)
+                  ? ENDPOINT_LIST
+                  : ENDPOINT_ISSUE;
+      HttpRequest.Builder request = request(endpoint, user, random);
+
+      long start = System.nanoTime();
+      Samples endpointSamples = samples.computeIfAbsent(endpoint, e -> new Samples());
+      try {
+        HttpResponse<String> response = send(request);
+        endpointSamples.add(System.nanoTime() - start);
+        if (response.statusCode() != 200) {
+          endpointSamples.fail(response.statusCode() + " " + response.body());
+        }
+      } catch (IOException e) {
+        endpointSamples.fail(e.toString());
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        break;
+      }
+    }
+    return samples;
+  }
+
+  private static HttpRequest.Builder request(
+      String endpoint, LoadUser user, ThreadLocalRandom random) {
+    switch (endpoint) {
+      case ENDPOINT_CHECK:
+        String apiKey = user.apiKeys.get(random.nextInt(user.apiKeys.size()));
+        String form =
+            "--"
+                + BOUNDARY
+                + "\r\nContent-Disposition: form-data; name=\"apiKey\"\r\n\r\n"
+                + apiKey
+                + "\r\n--"
+                + BOUNDARY
+                + "--\r\n";
+        return HttpRequest.newBuilder(URI.create(baseUrl + "/check_api_key"))
+            .header("Authorization", checkAuthorization)
+            .header("Content-Type", "multipart/form-data; boundary=" + BOUNDARY)
+            .POST(HttpRequest.BodyPublishers.ofString(form));
+      case ENDPOINT_LIST:
+        return HttpRequest.newBuilder(URI.create(baseUrl + "/api_key?user_id=" + user.id))
+            .header("Authorization", "Bearer " + user.token)
+            .GET();
+      default:
+        return HttpRequest.newBuilder(
+                URI.create(
+                    baseUrl
+                        + "/api_key?user_id="
+                        + user.id
+                        + "&scopes="
+                        + SCOPE
+                        + "&description="
+                        + URLEncoder.encode("load test", UTF_8)))
+            .header("Authorization", "Bearer " + user.token)
+            .POST(HttpRequest.BodyPublishers.noBody());
+    }
+  }
+
+  /**
+   * A realm with a group {@code ADMIN}, a client to log users in, a client to check apiKeys, and a
+   * resource whose {@code READ} scope is granted to the users of the {@code loadtest} role.
+   */
+  private static RealmResource createRealm() {
+    RealmRepresentation realmRepresentation = new RealmRepresentation();
+    realmRepresentation.setRealm(REALM);
+    realmRepresentation.setEnabled(true);
+    // tokens outlive the test
+    realmRepresentation.setAccessTokenLifespan(3600);
+    keycloak.getKeycloakAdminClient().realms().create(realmRepresentation);
+    RealmResource realm = keycloak.getKeycloakAdminClient().realm(REALM);
+
+    realm.roles().create(new RoleRepresentation(ROLE, null, false));
+    GroupRepresentation admins = new GroupRepresentation();
+    admins.setName("ADMIN");
+    realm.groups().add(admins).close();
+
+    ClientRepresentation cli = new ClientRepresentation();
+    cli.setClientId(CLI_CLIENT);
+    cli.setPublicClient(true);
+    cli.setDirectAccessGrantsEnabled(true);
+    realm.clients().create(cli).close();
+
+    ClientRepresentation checker = new ClientRepresentation();
+    checker.setClientId(CHECK_CLIENT);
+    checker.setPublicClient(false);
+    checker.setSecret(CHECK_SECRET);
+    realm.clients().create(checker).close();
+
+    ClientRepresentation resources = new ClientRepresentation();
+    resources.setClientId("loadtest-resources");
+    resources.setPublicClient(false);
+    resources.setServiceAccountsEnabled(true);
+    resources.setAuthorizationServicesEnabled(true);
+    String resourcesId;
+    try (Response response = realm.clients().create(resources)) {
+      resourcesId = CreatedResponseUtil.getCreatedId(response);
+    }
+    AuthorizationResource authorization = realm.clients().get(resourcesId).authorization();
+    authorization.resources().create(new ResourceRepresentation("loadtest", "READ")).close();
+    RolePolicyRepresentation policy = new RolePolicyRepresentation();
+    policy.setName("loadtest-users");
+    policy.addRole(ROLE);
+    authorization.policies().role().create(policy).close();
+    ScopePermissionRepresentation permission = new ScopePermissionRepresentation();
+    permission.setName("loadtest-read");
+    permission.addResource("loadtest");
+    permission.addScope("READ");
+    permission.addPolicy("loadtest-users");
+    authorization.permissions().scope().create(permission).close();
+
+    return realm;
+  }
+
+  private static String createUser(RealmResource realm, String username) {
+    CredentialRepresentation credential = new CredentialRepresentation();
+    credential.setType(CredentialRepresentation.PASSWORD);
+    credential.setValue(PASSWORD);
+    credential.setTemporary(false);
+
+    UserRepresentation user = new UserRepresentation();
+    user.setUsername(username);
+    user.setEnabled(true);
+    user.setCredentials(List.of(credential));
+
+    String id;
+    try (Response response = realm.users().create(user)) {
+      id = CreatedResponseUtil.getCreatedId(response);
+    }
+    realm
+        .users()
+        .get(id)
+        .roles()
+        .realmLevel()
+        .add(List.of(realm.roles().get(ROLE).toRepresentation()));
+    return id;
+  }
+
+  private static String token(String username) throws Exception {
+    String form =
+        "grant_type=password&client_id="
+            + CLI_CLIENT
+            + "&username="
+            + URLEncoder.encode(username, UTF_8)
+            + "&password="
+            + PASSWORD;
+    HttpResponse<String> response =
+        send(
+            HttpRequest.newBuilder(
+                    URI.create(
+                        keycloak.getAuthServerUrl()
+                            + "/realms/"
+                            + REALM
+                            + "/protocol/openid-connect/token"))
+                .header("Content-Type", "application/x-www-form-urlencoded")
+                .POST(HttpRequest.BodyPublishers.ofString(form)));
+    return MAPPER.readTree(response.body()).get("access_token").asText();
+  }
+
+  private static HttpResponse<String> send(HttpRequest.Builder request)
+      throws IOException, InterruptedException {
+    return http.send(request.build(), HttpResponse.BodyHandlers.ofString());
+  }
+
+  /** Nearest-rank percentile of sorted latencies. */
+  private static long percentile(long[] sorted, int p) {
+    if (sorted.length == 0) {
+      return 0;
+    }
+    int rank = (int) Math.ceil(p / 100.0 * sorted.length);
+    return sorted[Math.max(rank, 1) - 1];
+  }
+
+  private static double millis(long nanos) {
+    return nanos / 1_000_000.0;
+  }
+
+  private static class LoadUser {
+    private final String id;
+    private final String token;
+    private final List<String> apiKeys = new ArrayList<>();
+
+    private LoadUser(String id, String token) {
+      this.id = id;
+      this.token = token;
+    }
+  }
+
+  /** Latencies of one endpoint, in nanoseconds, and its failures. */
+  private static class Samples {
+    private long[] nanos = new long[1024];
+    private int size;
+    private long errors;
+    private String lastError;
+
+    private void add(long latency) {
+      if (size == nanos.length) {
+        nanos = Arrays.copyOf(nanos, size * 2);
+      }
+      nanos[size++] = latency;
+    }
+
+    private void fail(String error) {
+      errors++;
+      lastError = error;
+    }
+
+    private Samples merge(Samples other) {
+      for (int i = 0; i < other.size; i++) {
+        add(other.nanos[i]);
+      }
+      errors += other.errors;
+      if (other.lastError != null) {
+        lastError = other.lastError;
+      }
+      return this;
+    }
+
+    private long[] sorted() {
+      long[] sorted = Arrays.copyOf(nanos, size);
+      Arrays.sort(sorted);
+      return sorted;
+    }
+  }
+}
@@ -0,0 +1,176 @@
+package bio.overture.keycloak;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import bio.overture.keycloak.cache.ApiKeyCache;
+import bio.overture.keycloak.cache.ApiKeyLookupCoalescer;
+import bio.overture.keycloak.model.ApiKeySnapshot;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakTransaction;
+import org.keycloak.models.KeycloakTransactionManager;
+
+public class ApiKeyLookupCoalescerTest {
+
+  private final ExecutorService executor = Executors.newCachedThreadPool();
+  private final List<Set<String>> fetched = new CopyOnWriteArrayList<>();
+  private final CountDownLatch fetching = new CountDownLatch(1);
+  private final CountDownLatch release = new CountDownLatch(1);
+
+  @AfterEach
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void concurrent_lookups_of_a_key_should_share_one_fetch() throws Exception {
+    ApiKeyLookupCoalescer coalescer = new ApiKeyLookupCoalescer(2, 100);
+
+    Future<Optional<ApiKeySnapshot>> first = find(coalescer, "A", this::blockingFetch);
+    assertTrue(fetching.await(5, TimeUnit.SECONDS));
+    List<Future<Optional<ApiKeySnapshot>>> others =
+        List.of(
+            find(coalescer, "A", this::blockingFetch),
+            find(coalescer, "A", this::blockingFetch),
+            find(coalescer, "A", this::blockingFetch));
+    waitUntil(() -> coalescer.getShared() == 3);
+    release.countDown();
+
+    assertEquals("A", first.get(5, TimeUnit.SECONDS).orElseThrow().getHash());
+    for (Future<Optional<ApiKeySnapshot>> other : others) {
+      assertEquals("A", other.get(5, TimeUnit.SECONDS).orElseThrow().getHash());
+    }
+    assertEquals(List.of(Set.of("A")), fetched);
+  }
+
+  @Test
+  public void lookups_made_during_a_fetch_should_be_fetched_together() throws Exception {
+    ApiKeyLookupCoalescer coalescer = new ApiKeyLookupCoalescer(5000, 3);
+
+    Future<Optional<ApiKeySnapshot>> first = find(coalescer, "A", this::blockingFetch);
+    assertTrue(fetching.await(5, TimeUnit.SECONDS));
+    // the batch is fetched once full, long before its window ends
+    List<Future<Optional<ApiKeySnapshot>>> others =
+        List.of(
+            find(coalescer, "B", this::fetch),
+            find(coalescer, "C", this::fetch),
+            find(coalescer, "unknown", this::fetch));
+    assertEquals("B", others.get(0).get(5, TimeUnit.SECONDS).orElseThrow().getHash());
+    assertEquals("C", others.get(1).get(5, TimeUnit.SECONDS).orElseThrow().getHash());
+    assertTrue(others.get(2).get(5, TimeUnit.SECONDS).isEmpty());
+    release.countDown();
+    first.get(5, TimeUnit.SECONDS);
+
+    assertEquals(List.of(Set.of("A"), Set.of("B", "C", "unknown")), fetched);
+    assertEquals(2, coalescer.getBatched());
+    assertEquals(2, coalescer.getFetches());
+  }
+
+  @Test
+  public void invalidation_during_a_fetch_should_neither_be_cached_nor_shared() throws Exception {
+    ApiKeyCache cache = new ApiKeyCache(100, 60_000);
+    ApiKeyLookupCoalescer coalescer = new ApiKeyLookupCoalescer(2, 100);
+    // as the service does: the generation is read before the query, the results put with it
+    Function<Set<String>, Map<String, ApiKeySnapshot>> cachingFetch =
+        hashes -> {
+          long generation = cache.generation("realm");
+          Map<String, ApiKeySnapshot> found = blockingFetch(hashes);
+          found.values().forEach(apiKey -> cache.put(apiKey, generation));
+          return found;
+        };
+
+    Future<Optional<ApiKeySnapshot>> first =
+        find(coalescer, "A", cache.generation("realm"), cachingFetch);
+    assertTrue(fetching.await(5, TimeUnit.SECONDS));
+
+    // committed while the query of the first lookup is pending
+    KeycloakSession session = mock(KeycloakSession.class);
+    KeycloakTransactionManager transactionManager = mock(KeycloakTransactionManager.class);
+    when(session.getTransactionManager()).thenReturn(transactionManager);
+    doAnswer(
+            invocation -> {
+              KeycloakTransaction transaction = invocation.getArgument(0);
+              transaction.begin();
+              transaction.commit();
+              return null;
+            })
+        .when(transactionManager)
+        .enlistAfterCompletion(any());
+    cache.invalidate(session, "realm", List.of("A"));
+
+    // a lookup after the invalidation runs its own query
+    Future<Optional<ApiKeySnapshot>> second =
+        find(coalescer, "A", cache.generation("realm"), this::fetch);
+    assertEquals("A", second.get(5, TimeUnit.SECONDS).orElseThrow().getHash());
+    release.countDown();
+    assertEquals("A", first.get(5, TimeUnit.SECONDS).orElseThrow().getHash());
+
+    assertEquals(List.of(Set.of("A"), Set.of("A")), fetched);
+    assertEquals(0, coalescer.getShared());
+    // the result read before the invalidation is not cached
+    assertTrue(cache.get("realm", "A").isEmpty());
+  }
+
+  private Future<Optional<ApiKeySnapshot>> find(
+      ApiKeyLookupCoalescer coalescer,
+      String hash,
+      Function<Set<String>, Map<String, ApiKeySnapshot>> fetch) {
+    return find(coalescer, hash, 0, fetch);
+  }
+
+  private Future<Optional<ApiKeySnapshot>> find(
+      ApiKeyLookupCoalescer coalescer,
+      String hash,
+      long generation,
+      Function<Set<String>, Map<String, ApiKeySnapshot>> fetch) {
+    return executor.submit(() -> coalescer.find("realm", hash, generation, fetch));
+  }
+
+  private Map<String, ApiKeySnapshot> blockingFetch(Set<String> hashes) {
+    Map<String, ApiKeySnapshot> found = fetch(hashes);
+    fetching.countDown();
+    try {
+      release.await(5, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    return found;
+  }
+
+  private Map<String, ApiKeySnapshot> fetch(Set<String> hashes) {
+    fetched.add(Set.copyOf(hashes));
+    return hashes.stream()
+        .filter(hash -> !hash.equals("unknown"))
+        .collect(
+            Collectors.toMap(
+                hash -> hash,
+                hash -> ApiKeySnapshot.builder().hash(hash).realmId("realm").build()));
+  }
+
+  private static void waitUntil(BooleanSupplier condition) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 5000;
+    while (!condition.getAsBoolean() && System.currentTimeMillis() < deadline) {
+      Thread.sleep(5);
+    }
+    assertTrue(condition.getAsBoolean());
+  }
+}
@@ -0,0 +1,76 @@
+package bio.overture.keycloak;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import bio.overture.keycloak.metrics.ApiKeyMetrics;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import jakarta.ws.rs.BadRequestException;
+import jakarta.ws.rs.core.Response;
+import org.junit.jupiter.api.Test;
+
+public class ApiKeyMetricsTest {
+
+  private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+  private final ApiKeyMetrics metrics = new ApiKeyMetrics(registry);
+
+  @Test
+  public void timeRequest_should_tag_the_response_status() {
+    metrics.timeRequest(ApiKeyMetrics.ENDPOINT_CHECK, () -> Response.status(207).build());
+
+    assertEquals(
+        1,
+        registry
+            .get("apikey.requests")
+            .tag("endpoint", ApiKeyMetrics.ENDPOINT_CHECK)
+            .tag("status", "207")
+            .timer()
+            .count());
+  }
+
+  @Test
+  public void timeRequest_should_tag_the_status_of_an_exception() {
+    assertThrows(
+        BadRequestException.class,
+        () ->
+            metrics.timeRequest(
+                ApiKeyMetrics.ENDPOINT_CHECK,
+                () -> {
+                  throw new BadRequestException("ApiKey not found");
+                }));
+
+    assertEquals(
+        1,
+        registry
+            .get("apikey.requests")
+            .tag("endpoint", ApiKeyMetrics.ENDPOINT_CHECK)
+            .tag("status", "400")
+            .timer()
+            .count());
+  }
+
+  @Test
+  public void meters_should_be_registered_once_and_removed_on_close() {
+    metrics.countAuthentication(ApiKeyMetrics.AUTH_BASIC, true);
+    metrics.countAuthentication(ApiKeyMetrics.AUTH_BASIC, true);
+    metrics.countAuthentication(ApiKeyMetrics.AUTH_BASIC, false);
+
+    assertSame(
+        metrics.phaseTimer(ApiKeyMetrics.ENDPOINT_CHECK, ApiKeyMetrics.PHASE_AUTH),
+        metrics.phaseTimer(ApiKeyMetrics.ENDPOINT_CHECK, ApiKeyMetrics.PHASE_AUTH));
+    assertEquals(
+        2,
+        registry
+            .get("apikey.authentications")
+            .tag("method", ApiKeyMetrics.AUTH_BASIC)
+            .tag("result", "success")
+            .counter()
+            .count());
+
+    metrics.close();
+
+    assertTrue(registry.getMeters().isEmpty());
+  }
+}
@@ -43,6 +43,30 @@ public class ApiKeyResourceTest {
     givenSpec().when().post("api_key").peek().then().statusCode(401);
   }
 
+  @Test
+  public void searchApiKeys_withNoBearerToken_shouldReturnUnauthorizedError() {
+    givenSpec()
+        .when()
+        .queryParams(Map.of("scope", "song.WRITE"))
+        .get("api_key/search")
+        .peek()
+        .then()
+        .statusCode(401);
+  }
+
+  @Test
+  public void checkApiKey_withNoApiKey_shouldReturnBadRequestError() {
+    givenSpec()
+        .auth()
+        .oauth2(keycloak.getKeycloakAdminClient().tokenManager().getAccessTokenString())
+        .when()
+        .multiPart("description", "no apiKey")
+        .post("check_api_key")
+        .peek()
+        .then()
+        .statusCode(400);
+  }
+
   private RequestSpecification givenSpec() {
     return given()
         .baseUri(keycloak.getAuthServerUrl())
@@ -0,0 +1,81 @@
+package bio.overture.keycloak;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import bio.overture.keycloak.cache.ApiKeyUsageTracker;
+import bio.overture.keycloak.model.ApiKeyUsage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+public class ApiKeyUsageTrackerTest {
+
+  @Test
+  public void drain_should_coalesce_the_uses_of_a_key() {
+    ApiKeyUsageTracker tracker = new ApiKeyUsageTracker(10);
+
+    tracker.record("a", 2000L);
+    tracker.record("a", 1000L);
+    tracker.record("a", 3000L);
+
+    assertEquals(List.of(new ApiKeyUsage("a", 3, 3000L)), tracker.drain());
+
+    // nothing new to flush, and the idle key is no longer tracked
+    assertTrue(tracker.drain().isEmpty());
+    assertEquals(0, tracker.size());
+  }
+
+  @Test
+  public void record_should_drop_uses_of_keys_beyond_max_size() {
+    ApiKeyUsageTracker tracker = new ApiKeyUsageTracker(1);
+
+    tracker.record("a", 1000L);
+    tracker.record("b", 1000L);
+    tracker.restore(List.of(new ApiKeyUsage("a", 2, 500L)));
+
+    assertEquals(1, tracker.getDropped());
+    assertEquals(List.of(new ApiKeyUsage("a", 3, 1000L)), tracker.drain());
+  }
+
+  @Test
+  public void drain_should_not_lose_uses_recorded_while_idle_keys_are_removed() throws Exception {
+    ApiKeyUsageTracker tracker = new ApiKeyUsageTracker(10_000);
+    int threads = 4;
+    int uses = 200_000;
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      // each key is used now and then, so most drains find it idle
+      List<Future<?>> recorders = new ArrayList<>();
+      for (int t = 0; t < threads; t++) {
+        recorders.add(
+            executor.submit(
+                () -> {
+                  for (int i = 0; i < uses; i++) {
+                    tracker.record("key-" + i % 1000, 1000L);
+                  }
+                }));
+      }
+      long drained = 0;
+      while (!recorders.stream().allMatch(Future::isDone)) {
+        drained += count(tracker.drain());
+      }
+      for (Future<?> recorder : recorders) {
+        recorder.get(30, TimeUnit.SECONDS);
+      }
+      drained += count(tracker.drain());
+
+      assertEquals((long) threads * uses, drained);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private static long count(List<ApiKeyUsage> usages) {
+    return usages.stream().mapToLong(ApiKeyUsage::getCount).sum();
+  }
+}
@@ -0,0 +1,78 @@
+package bio.overture.keycloak;
+
+import static bio.overture.keycloak.TestDatabase.DAY_MILLIS;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import bio.overture.keycloak.provider.ApiKeyComponents;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.util.Map;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.keycloak.models.ClientProvider;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.RealmProvider;
+
+public class ApiKeyWarmUpTest {
+
+  private TestDatabase database;
+
+  @BeforeEach
+  public void setUp() throws Exception {
+    database = new TestDatabase();
+  }
+
+  @AfterEach
+  public void tearDown() throws Exception {
+    database.close();
+  }
+
+  @Test
+  public void warm_up_should_be_bounded_and_not_counted_as_traffic() throws Exception {
+    long now = System.currentTimeMillis();
+    for (int i = 0; i < 3; i++) {
+      database.insertApiKey("realm", "user1", now + DAY_MILLIS, null, "song.READ");
+    }
+    database.insertApiKey("realm", "user1", now + DAY_MILLIS, now, "song.READ");
+
+    SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    ApiKeyComponents components =
+        TestDatabase.components(
+            Map.of("warmupRealms", new String[] {"realm"}, "warmupIterations", 5000), registry);
+
+    KeycloakSession session = database.session("realm");
+    RealmModel realm = session.getContext().getRealm();
+    RealmProvider realms = mock(RealmProvider.class);
+    when(realms.getRealmByName("realm")).thenReturn(realm);
+    when(session.realms()).thenReturn(realms);
+    when(session.clients()).thenReturn(mock(ClientProvider.class));
+    KeycloakSessionFactory sessionFactory = mock(KeycloakSessionFactory.class);
+    when(sessionFactory.create()).thenReturn(session);
+
+    long statements = database.statements();
+    components.getWarmUp().start(sessionFactory);
+    long deadline = System.currentTimeMillis() + 30_000;
+    while (!components.getWarmUp().isReady() && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    assertTrue(components.getWarmUp().isReady());
+
+    // the valid apiKeys are cached
+    assertEquals(3, components.getApiKeyCache().size());
+    // a few lookups, not one per iteration
+    long run = database.statements() - statements;
+    assertTrue(run > 0 && run <= 20, run + " statements");
+    // and none of it shows in the meters of the node
+    assertEquals(0, components.getApiKeyCache().getHits());
+    assertEquals(0, components.getApiKeyCache().getMisses());
+    assertEquals(0, components.getLookupCoalescer().getFetches());
+    assertTrue(registry.find("apikey.lookup.rows").summaries().isEmpty());
+    assertEquals(
+        0, registry.get("apikey.cache.requests").tag("result", "miss").functionCounter().count());
+  }
+}
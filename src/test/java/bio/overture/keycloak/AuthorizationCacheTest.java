@@ -0,0 +1,56 @@
+package bio.overture.keycloak;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+
+import bio.overture.keycloak.cache.AuthorizationCache;
+import bio.overture.keycloak.cache.AuthorizationIndex;
+import java.util.Map;
+import java.util.Optional;
+import org.junit.jupiter.api.Test;
+import org.keycloak.models.KeycloakSession;
+
+public class AuthorizationCacheTest {
+
+  private final KeycloakSession session = mock(KeycloakSession.class);
+
+  @Test
+  public void invalidateUser_should_only_drop_decisions_of_that_user() {
+    AuthorizationCache cache = new AuthorizationCache(60_000, 100, 60_000);
+    cache.putDecision("realm", "user1", "song.READ", true);
+    cache.putDecision("realm", "user2", "song.READ", false);
+
+    cache.invalidateUser(session, "realm", "user1");
+
+    assertEquals(Optional.empty(), cache.getDecision("realm", "user1", "song.READ"));
+    assertEquals(Optional.of(false), cache.getDecision("realm", "user2", "song.READ"));
+  }
+
+  @Test
+  public void admin_status_should_be_dropped_with_the_decisions_of_the_user() {
+    AuthorizationCache cache = new AuthorizationCache(60_000, 100, 60_000);
+    cache.putAdmin("realm", "user1", true);
+    cache.putDecision("realm", "user1", "song.READ", true);
+
+    assertEquals(Optional.of(true), cache.getAdmin("realm", "user1"));
+    assertEquals(Optional.empty(), cache.getAdmin("realm", "user2"));
+
+    cache.invalidateUser(session, "realm", "user1");
+    assertEquals(Optional.empty(), cache.getAdmin("realm", "user1"));
+  }
+
+  @Test
+  public void index_built_before_an_invalidation_should_not_be_stored() {
+    AuthorizationCache cache = new AuthorizationCache(60_000, 100, 60_000);
+    AuthorizationIndex index = new AuthorizationIndex(Map.of());
+
+    long generation = cache.generation("realm");
+    cache.invalidateRealm(session, "realm");
+    cache.putIndex("realm", index, generation);
+    assertTrue(cache.getIndex("realm").isEmpty());
+
+    cache.putIndex("realm", index, cache.generation("realm"));
+    assertEquals(Optional.of(index), cache.getIndex("realm"));
+  }
+}
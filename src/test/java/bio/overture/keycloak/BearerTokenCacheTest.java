@@ -0,0 +1,71 @@
+package bio.overture.keycloak;
+
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import bio.overture.keycloak.cache.BearerTokenCache;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.keycloak.models.ClientModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.UserSessionModel;
+import org.keycloak.models.UserSessionProvider;
+import org.keycloak.representations.AccessToken;
+import org.keycloak.services.managers.AuthenticationManager;
+
+public class BearerTokenCacheTest {
+
+  private final KeycloakSession session = mock(KeycloakSession.class);
+  private final UserSessionProvider sessions = mock(UserSessionProvider.class);
+  private final RealmModel realm = mock(RealmModel.class);
+  private final UserModel user = mock(UserModel.class);
+  private final UserSessionModel userSession = mock(UserSessionModel.class);
+  private final ClientModel client = mock(ClientModel.class);
+  private final AccessToken token = new AccessToken();
+
+  @BeforeEach
+  public void setUp() {
+    when(session.sessions()).thenReturn(sessions);
+    when(sessions.getUserSession(realm, "session1")).thenReturn(userSession);
+    when(realm.getId()).thenReturn("realm");
+    when(realm.getClientByClientId("ui")).thenReturn(client);
+    when(user.getId()).thenReturn("user1");
+    when(user.isEnabled()).thenReturn(true);
+    when(userSession.getId()).thenReturn("session1");
+    when(userSession.getUser()).thenReturn(user);
+    when(userSession.getState()).thenReturn(UserSessionModel.State.LOGGED_IN);
+    when(client.getClientId()).thenReturn("ui");
+    when(client.isEnabled()).thenReturn(true);
+    token.exp(System.currentTimeMillis() / 1000 + 60);
+  }
+
+  @Test
+  public void verified_token_should_be_rebuilt_until_its_session_ends() {
+    BearerTokenCache cache = new BearerTokenCache(100, 60_000);
+    cache.put(realm, "jwt", new AuthenticationManager.AuthResult(user, userSession, token, client));
+
+    AuthenticationManager.AuthResult auth = cache.get(session, realm, "jwt").orElseThrow();
+    assertSame(user, auth.getUser());
+    assertSame(token, auth.getToken());
+    assertTrue(cache.get(session, realm, "other").isEmpty());
+
+    when(userSession.getState()).thenReturn(UserSessionModel.State.LOGGED_OUT);
+    assertTrue(cache.get(session, realm, "jwt").isEmpty());
+  }
+
+  @Test
+  public void invalidateSession_should_drop_the_tokens_of_that_session() {
+    BearerTokenCache cache = new BearerTokenCache(100, 60_000);
+    cache.put(realm, "jwt", new AuthenticationManager.AuthResult(user, userSession, token, client));
+
+    cache.invalidateSession(session, "realm", "session2");
+    assertTrue(cache.get(session, realm, "jwt").isPresent());
+
+    cache.invalidateSession(session, "realm", "session1");
+    assertTrue(cache.get(session, realm, "jwt").isEmpty());
+  }
+}
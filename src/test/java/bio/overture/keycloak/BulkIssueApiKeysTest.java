@@ -0,0 +1,139 @@
+package bio.overture.keycloak;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import bio.overture.keycloak.cache.AuthorizationCache;
+import bio.overture.keycloak.model.dto.IssueApiKeyRequest;
+import bio.overture.keycloak.provider.ApiKeyComponents;
+import bio.overture.keycloak.resource.ApiKeyResource;
+import jakarta.ws.rs.BadRequestException;
+import jakarta.ws.rs.ForbiddenException;
+import jakarta.ws.rs.WebApplicationException;
+import jakarta.ws.rs.core.Response;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.function.Executable;
+import org.keycloak.models.KeycloakSession;
+
+public class BulkIssueApiKeysTest {
+
+  private static final int MAX_BULK = 3;
+
+  private TestDatabase database;
+  private AuthorizationCache authorizationCache;
+  private ApiKeyResource resource;
+
+  @BeforeEach
+  public void setUp() throws Exception {
+    database = new TestDatabase();
+    database.execute("INSERT INTO USER_ENTITY (ID, REALM_ID) VALUES ('user1', 'realm')");
+    database.execute("INSERT INTO USER_ENTITY (ID, REALM_ID) VALUES ('user2', 'realm')");
+    KeycloakSession session = database.session("realm");
+    ApiKeyComponents components = TestDatabase.components(Map.of("bulkMaxSize", MAX_BULK));
+    TestDatabase.authenticate(session, components, "user1");
+
+    authorizationCache = components.getAuthorizationCache();
+    authorizationCache.putAdmin("realm", "user1", false);
+    authorizationCache.putDecision("realm", "user1", "song.READ", true);
+    authorizationCache.putDecision("realm", "user1", "score.READ", true);
+    authorizationCache.putDecision("realm", "user1", "song.WRITE", false);
+
+    resource = new ApiKeyResource(session, components);
+  }
+
+  @AfterEach
+  public void tearDown() throws Exception {
+    database.close();
+  }
+
+  @Test
+  public void valid_batch_should_issue_every_apiKey() throws Exception {
+    Response response =
+        database.inTransaction(
+            () ->
+                resource.issueApiKeys(
+                    List.of(
+                        request("user1", "song.READ"),
+                        request("user1", "score.READ"),
+                        request("user1", "song.READ", "score.READ"))));
+
+    assertEquals(200, response.getStatus());
+    assertEquals(List.of("3"), database.query("SELECT COUNT(*) FROM API_KEY"));
+    assertEquals(List.of("4"), database.query("SELECT COUNT(*) FROM API_KEY_SCOPE"));
+  }
+
+  @Test
+  public void batch_over_the_maximum_size_should_issue_nothing() throws Exception {
+    List<IssueApiKeyRequest> requests = new ArrayList<>();
+    for (int i = 0; i <= MAX_BULK; i++) {
+      requests.add(request("user1", "song.READ"));
+    }
+
+    assertIssuesNothing(BadRequestException.class, requests);
+  }
+
+  @Test
+  public void invalid_last_request_should_issue_nothing() throws Exception {
+    IssueApiKeyRequest nullScopes = request("user1");
+    nullScopes.setScopes(null);
+    IssueApiKeyRequest nullScope = request("user1");
+    nullScope.setScopes(Arrays.asList("song.READ", null));
+    IssueApiKeyRequest badType = request("user1", "song.READ");
+    badType.setType("other");
+    IssueApiKeyRequest noUser = request(null, "song.READ");
+
+    for (IssueApiKeyRequest invalid : List.of(nullScopes, nullScope, badType, noUser)) {
+      assertIssuesNothing(
+          BadRequestException.class, List.of(request("user1", "song.READ"), invalid));
+    }
+    assertIssuesNothing(
+        BadRequestException.class, Arrays.asList(request("user1", "song.READ"), null));
+  }
+
+  @Test
+  public void scope_not_granted_in_the_last_request_should_issue_nothing() throws Exception {
+    assertIssuesNothing(
+        ForbiddenException.class,
+        List.of(request("user1", "song.READ"), request("user1", "song.WRITE")));
+  }
+
+  @Test
+  public void users_other_than_the_caller_should_need_an_admin() throws Exception {
+    assertIssuesNothing(
+        ForbiddenException.class,
+        List.of(request("user1", "song.READ"), request("user2", "song.READ")));
+    // refused before the users are checked, so no one learns whether a user exists
+    assertIssuesNothing(
+        ForbiddenException.class,
+        List.of(request("user1", "song.READ"), request("unknown", "song.READ")));
+
+    authorizationCache.putAdmin("realm", "user1", true);
+    assertIssuesNothing(
+        BadRequestException.class,
+        List.of(request("user1", "song.READ"), request("unknown", "song.READ")));
+    database.inTransaction(
+        () ->
+            resource.issueApiKeys(
+                List.of(request("user1", "song.READ"), request("user2", "song.READ"))));
+    assertEquals(
+        List.of("user1", "user2"), database.query("SELECT USER_ID FROM API_KEY ORDER BY USER_ID"));
+  }
+
+  private void assertIssuesNothing(
+      Class<? extends WebApplicationException> expected, List<IssueApiKeyRequest> requests)
+      throws Exception {
+    Executable issue = () -> database.inTransaction(() -> resource.issueApiKeys(requests));
+    assertThrows(expected, issue);
+    assertEquals(List.of("0"), database.query("SELECT COUNT(*) FROM API_KEY"));
+  }
+
+  private static IssueApiKeyRequest request(String userId, String... scopes) {
+    return IssueApiKeyRequest.builder().user_id(userId).scopes(List.of(scopes)).build();
+  }
+}
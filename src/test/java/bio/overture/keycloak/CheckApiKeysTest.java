@@ -0,0 +1,153 @@
+package bio.overture.keycloak;
+
+import static bio.overture.keycloak.TestDatabase.DAY_MILLIS;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import bio.overture.keycloak.model.dto.CheckApiKeyResponse;
+import bio.overture.keycloak.params.ScopeName;
+import bio.overture.keycloak.resource.ApiKeyResource;
+import bio.overture.keycloak.utils.ApiKeyFormat;
+import jakarta.ws.rs.BadRequestException;
+import jakarta.ws.rs.core.HttpHeaders;
+import jakarta.ws.rs.core.Response;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.keycloak.models.ClientModel;
+import org.keycloak.models.ClientProvider;
+import org.keycloak.models.KeycloakSession;
+
+public class CheckApiKeysTest {
+
+  private static final int MAX_BATCH = 10;
+
+  private TestDatabase database;
+  private ApiKeyResource resource;
+
+  @BeforeEach
+  public void setUp() throws Exception {
+    database = new TestDatabase();
+    KeycloakSession session = database.session("realm");
+
+    // Basic auth of an enabled client
+    HttpHeaders headers = mock(HttpHeaders.class);
+    when(headers.getHeaderString("Authorization"))
+        .thenReturn("Basic " + Base64.getEncoder().encodeToString("checker:secret".getBytes()));
+    when(session.getContext().getRequestHeaders()).thenReturn(headers);
+    ClientModel client = mock(ClientModel.class);
+    when(client.getId()).thenReturn("client-id");
+    when(client.getClientId()).thenReturn("checker");
+    when(client.getSecret()).thenReturn("secret");
+    when(client.isEnabled()).thenReturn(true);
+    when(client.validateSecret("secret")).thenReturn(true);
+    ClientProvider clients = mock(ClientProvider.class);
+    when(clients.getClientByClientId(session.getContext().getRealm(), "checker"))
+        .thenReturn(client);
+    when(session.clients()).thenReturn(clients);
+
+    resource =
+        new ApiKeyResource(
+            session, TestDatabase.components(Map.of("checkBatchMaxSize", MAX_BATCH)));
+  }
+
+  @AfterEach
+  public void tearDown() throws Exception {
+    database.close();
+  }
+
+  @Test
+  public void results_should_follow_the_order_of_the_apiKeys() throws Exception {
+    long now = System.currentTimeMillis();
+    String valid = database.insertApiKey("realm", "user1", now + DAY_MILLIS, null, "song.READ");
+    String revoked =
+        database.insertApiKey("realm", "user1", now + DAY_MILLIS, now - 1000, "song.READ");
+    String expired = database.insertApiKey("realm", "user2", now - 1000, null, "song.READ");
+    String otherRealm = database.insertApiKey("other", "user3", now + DAY_MILLIS, null);
+    String unknown = ApiKeyFormat.generate(UUID.randomUUID().toString());
+    String malformed = "not an apiKey";
+
+    List<CheckApiKeyResponse> results =
+        check(List.of(unknown, valid, revoked, malformed, expired, otherRealm, valid));
+
+    assertEquals(
+        List.of(unknown, valid, revoked, malformed, expired, otherRealm, valid),
+        results.stream().map(CheckApiKeyResponse::getApiKey).toList());
+
+    assertNotFound(results.get(0), "ApiKey not found");
+
+    CheckApiKeyResponse validResult = results.get(1);
+    assertTrue(validResult.isValid());
+    assertFalse(validResult.isRevoked());
+    assertEquals("user1", validResult.getUser_id());
+    assertEquals(Set.of(new ScopeName("song.READ")), validResult.getScope());
+    assertNull(validResult.getMessage());
+
+    CheckApiKeyResponse revokedResult = results.get(2);
+    assertFalse(revokedResult.isValid());
+    assertTrue(revokedResult.isRevoked());
+    assertEquals("ApiKey is revoked", revokedResult.getMessage());
+    assertNull(revokedResult.getScope());
+
+    assertNotFound(results.get(3), "Invalid apiKey format");
+
+    CheckApiKeyResponse expiredResult = results.get(4);
+    assertFalse(expiredResult.isValid());
+    assertEquals("user2", expiredResult.getUser_id());
+    assertEquals("ApiKey is expired", expiredResult.getMessage());
+
+    // apiKeys of other realms are unknown to this one
+    assertNotFound(results.get(5), "ApiKey not found");
+
+    // a repeated apiKey gets the same result again
+    assertTrue(results.get(6).isValid());
+  }
+
+  @Test
+  public void missing_or_malformed_apiKey_should_be_a_bad_request() {
+    assertThrows(BadRequestException.class, () -> resource.checkApiKey(null));
+    assertThrows(BadRequestException.class, () -> resource.checkApiKey(""));
+    assertThrows(BadRequestException.class, () -> resource.checkApiKey("not an apiKey"));
+  }
+
+  @Test
+  public void batch_should_hold_at_most_the_maximum_size() throws Exception {
+    String valid =
+        database.insertApiKey(
+            "realm", "user1", System.currentTimeMillis() + DAY_MILLIS, null, "song.READ");
+
+    List<CheckApiKeyResponse> results = check(Collections.nCopies(MAX_BATCH, valid));
+    assertEquals(MAX_BATCH, results.size());
+
+    List<String> tooMany = new ArrayList<>(Collections.nCopies(MAX_BATCH, valid));
+    tooMany.add(valid);
+    BadRequestException e = assertThrows(BadRequestException.class, () -> check(tooMany));
+    assertEquals("At most " + MAX_BATCH + " apiKeys can be checked at once", e.getMessage());
+    assertThrows(BadRequestException.class, () -> check(List.of()));
+  }
+
+  @SuppressWarnings("unchecked")
+  private List<CheckApiKeyResponse> check(List<String> apiKeys) {
+    Response response = database.inTransaction(() -> resource.checkApiKeys(apiKeys));
+    assertEquals(207, response.getStatus());
+    return (List<CheckApiKeyResponse>) response.getEntity();
+  }
+
+  private static void assertNotFound(CheckApiKeyResponse result, String message) {
+    assertFalse(result.isValid());
+    assertNull(result.getUser_id());
+    assertEquals(message, result.getMessage());
+  }
+}
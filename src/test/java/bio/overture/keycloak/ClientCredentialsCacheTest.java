@@ -0,0 +1,121 @@
+package bio.overture.keycloak;
+
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import bio.overture.keycloak.cache.ClientCredentialsCache;
+import bio.overture.keycloak.provider.ResourceProviderFactory;
+import bio.overture.keycloak.resource.ApiKeyResource;
+import jakarta.ws.rs.BadRequestException;
+import jakarta.ws.rs.core.HttpHeaders;
+import java.util.Base64;
+import java.util.List;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.keycloak.Config;
+import org.keycloak.models.ClientModel;
+import org.keycloak.models.ClientProvider;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.KeycloakTransactionManager;
+import org.keycloak.models.RealmModel;
+import org.keycloak.provider.ProviderEventListener;
+import org.mockito.ArgumentCaptor;
+
+public class ClientCredentialsCacheTest {
+
+  private final RealmModel realm = mock(RealmModel.class);
+  private final ClientModel client = mock(ClientModel.class);
+
+  @BeforeEach
+  public void setUp() {
+    when(realm.getId()).thenReturn("realm");
+    when(client.getId()).thenReturn("client-id");
+    when(client.getClientId()).thenReturn("checker");
+    when(client.getSecret()).thenReturn("secret");
+    when(client.isEnabled()).thenReturn(true);
+    when(client.getRealm()).thenReturn(realm);
+  }
+
+  @Test
+  public void verified_secret_should_stop_matching_once_it_changes() {
+    ClientCredentialsCache cache = new ClientCredentialsCache(100, 60_000);
+    cache.put(realm, client, "secret");
+
+    assertSame(client, cache.get(realm, client, "secret").orElseThrow());
+    assertTrue(cache.get(realm, client, "other").isEmpty());
+
+    // rotated on another node, the entry of the former secret is no longer honoured
+    when(client.getSecret()).thenReturn("rotated");
+    assertTrue(cache.get(realm, client, "secret").isEmpty());
+    assertTrue(cache.get(realm, client, "rotated").isEmpty());
+
+    when(client.getSecret()).thenReturn("secret");
+    when(client.isEnabled()).thenReturn(false);
+    assertTrue(cache.get(realm, client, "secret").isEmpty());
+  }
+
+  @Test
+  public void verified_secret_should_expire() throws Exception {
+    ClientCredentialsCache cache = new ClientCredentialsCache(100, 50);
+    cache.put(realm, client, "secret");
+    assertTrue(cache.get(realm, client, "secret").isPresent());
+
+    Thread.sleep(100);
+
+    assertTrue(cache.get(realm, client, "secret").isEmpty());
+  }
+
+  @Test
+  public void client_update_should_drop_its_verified_secrets() throws Exception {
+    ResourceProviderFactory factory = new ResourceProviderFactory();
+    factory.init(
+        mock(
+            Config.Scope.class,
+            invocation -> invocation.getArguments().length > 1 ? invocation.getArgument(1) : null));
+    KeycloakSessionFactory sessionFactory = mock(KeycloakSessionFactory.class);
+    // no cluster provider, invalidations stay local
+    KeycloakSession setupSession = mock(KeycloakSession.class);
+    when(setupSession.getTransactionManager()).thenReturn(mock(KeycloakTransactionManager.class));
+    when(sessionFactory.create()).thenReturn(setupSession);
+    factory.postInit(sessionFactory);
+    ArgumentCaptor<ProviderEventListener> listener =
+        ArgumentCaptor.forClass(ProviderEventListener.class);
+    verify(sessionFactory).register(listener.capture());
+
+    try (TestDatabase database = new TestDatabase()) {
+      KeycloakSession session = database.session("realm");
+      RealmModel sessionRealm = session.getContext().getRealm();
+      when(client.getRealm()).thenReturn(sessionRealm);
+      when(client.validateSecret("secret")).thenReturn(true);
+      HttpHeaders headers = mock(HttpHeaders.class);
+      when(headers.getHeaderString("Authorization"))
+          .thenReturn("Basic " + Base64.getEncoder().encodeToString("checker:secret".getBytes()));
+      when(session.getContext().getRequestHeaders()).thenReturn(headers);
+      ClientProvider clients = mock(ClientProvider.class);
+      when(clients.getClientByClientId(sessionRealm, "checker")).thenReturn(client);
+      when(session.clients()).thenReturn(clients);
+      ApiKeyResource resource = (ApiKeyResource) factory.create(session).getResource();
+
+      // authenticated, then refused for the empty batch
+      assertThrows(BadRequestException.class, () -> resource.checkApiKeys(List.of()));
+      assertThrows(BadRequestException.class, () -> resource.checkApiKeys(List.of()));
+      verify(client, times(1)).validateSecret("secret");
+
+      ClientModel.ClientUpdatedEvent updated = mock(ClientModel.ClientUpdatedEvent.class);
+      when(updated.getUpdatedClient()).thenReturn(client);
+      when(updated.getKeycloakSession()).thenReturn(session);
+      listener.getValue().onEvent(updated);
+
+      assertThrows(BadRequestException.class, () -> resource.checkApiKeys(List.of()));
+      verify(client, times(2)).validateSecret("secret");
+    } finally {
+      factory.close();
+    }
+  }
+}
@@ -0,0 +1,96 @@
+package bio.overture.keycloak;
+
+import static bio.overture.keycloak.utils.Converters.JSON_WRITER;
+import static bio.overture.keycloak.utils.Converters.jsonStringToClass;
+import static bio.overture.keycloak.utils.Converters.toStreamingOutput;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import bio.overture.keycloak.model.ApiKey;
+import bio.overture.keycloak.model.dto.ApiKeyResponse;
+import bio.overture.keycloak.params.ScopeName;
+import com.fasterxml.jackson.core.util.MinimalPrettyPrinter;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.IntStream;
+import org.junit.jupiter.api.Test;
+
+/** The shared writers must produce what the mappers built on every call used to. */
+public class ConvertersTest {
+
+  private static final String DATE_FORMAT = "yyyy-MM-dd'T'HH:mm:ss.SSSZ";
+
+  private final ApiKey apiKey =
+      ApiKey.builder()
+          .name("ovk_key")
+          .scope(Set.of(new ScopeName("song.READ")))
+          .issueDate(new Date(1_700_000_000_000L))
+          .expiryDate(new Date(1_731_536_000_000L))
+          .isRevoked(false)
+          .description("a \"quoted\" description")
+          .build();
+
+  @Test
+  public void toString_should_match_the_former_pretty_output() throws Exception {
+    String former =
+        new ObjectMapper()
+            .writer(new SimpleDateFormat(DATE_FORMAT))
+            .withDefaultPrettyPrinter()
+            .writeValueAsString(apiKey);
+
+    assertEquals(former, apiKey.toString());
+  }
+
+  @Test
+  public void toJsonMinimal_should_match_the_former_output() throws Exception {
+    assertEquals(
+        new ObjectMapper().writer(new MinimalPrettyPrinter()).writeValueAsString(apiKey),
+        apiKey.toJsonMinimal());
+    assertEquals(
+        "{\"name\":\"ovk_key\",\"scope\":[\"song.READ\"],\"expiryDate\":1731536000000,"
+            + "\"issueDate\":1700000000000,\"isRevoked\":false,"
+            + "\"description\":\"a \\\"quoted\\\" description\"}",
+        apiKey.toJsonMinimal());
+  }
+
+  @Test
+  public void response_should_match_the_former_output_as_string_and_stream() throws Exception {
+    ApiKeyResponse response =
+        ApiKeyResponse.builder()
+            .limit(20)
+            .offset(0)
+            .count(1)
+            .total(1)
+            .resultSet(List.of(apiKey))
+            .build();
+    String former =
+        new ObjectMapper().writer(new SimpleDateFormat(DATE_FORMAT)).writeValueAsString(response);
+
+    assertEquals(former, response.toString());
+
+    ByteArrayOutputStream streamed = new ByteArrayOutputStream();
+    toStreamingOutput(JSON_WRITER, response).write(streamed);
+    assertEquals(former, streamed.toString(StandardCharsets.UTF_8));
+  }
+
+  @Test
+  public void shared_writers_should_give_the_same_output_across_threads() {
+    String expected = apiKey.toString();
+
+    IntStream.range(0, 1000)
+        .parallel()
+        .mapToObj(i -> apiKey.toString())
+        .forEach(output -> assertEquals(expected, output));
+  }
+
+  @Test
+  public void reader_should_ignore_unknown_properties() {
+    String json = apiKey.toJsonMinimal().replace("{", "{\"unknown\":1,");
+
+    assertEquals(apiKey, jsonStringToClass(json, ApiKey.class));
+  }
+}
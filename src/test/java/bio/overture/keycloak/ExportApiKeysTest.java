@@ -0,0 +1,136 @@
+package bio.overture.keycloak;
+
+import static bio.overture.keycloak.TestDatabase.DAY_MILLIS;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import bio.overture.keycloak.model.ApiKeyExport;
+import bio.overture.keycloak.provider.ApiKeyComponents;
+import bio.overture.keycloak.resource.ApiKeyResource;
+import bio.overture.keycloak.services.ApiKeyService;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.ws.rs.core.Response;
+import jakarta.ws.rs.core.StreamingOutput;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.zip.GZIPInputStream;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+
+public class ExportApiKeysTest {
+
+  private TestDatabase database;
+  private KeycloakSession session;
+  private ApiKeyComponents components;
+
+  // scopes of the apiKeys of the realm by id, in the order they are exported
+  private final Map<String, Set<String>> scopesById = new TreeMap<>();
+
+  @BeforeEach
+  public void setUp() throws Exception {
+    database = new TestDatabase();
+    long now = System.currentTimeMillis();
+    List<String[]> scopes =
+        List.of(
+            new String[] {},
+            new String[] {"song.READ"},
+            new String[] {"song.READ", "song.WRITE", "score.READ"},
+            new String[] {"score.READ", "score.WRITE"},
+            new String[] {"song.READ"},
+            new String[] {"song.WRITE", "score.WRITE", "song.READ"},
+            new String[] {});
+    for (String[] keyScopes : scopes) {
+      database.insertApiKey("realm", "user1", now + DAY_MILLIS, null, keyScopes);
+    }
+    database.insertApiKey("other", "user2", now + DAY_MILLIS, null, "song.READ");
+    for (String row : database.query("SELECT ID FROM API_KEY WHERE REALM_ID = 'realm'")) {
+      scopesById.put(
+          row,
+          Set.copyOf(
+              database.query("SELECT SCOPE FROM API_KEY_SCOPE WHERE API_KEY_ID = '" + row + "'")));
+    }
+
+    session = database.session("realm");
+    components = TestDatabase.components(Map.of("exportBatchSize", 2));
+  }
+
+  @AfterEach
+  public void tearDown() throws Exception {
+    database.close();
+  }
+
+  @Test
+  public void export_should_group_the_scopes_of_each_apiKey_across_batches() {
+    List<ApiKeyExport> exported = new ArrayList<>();
+    // fewer rows per batch than the scopes of some apiKeys
+    long count = new ApiKeyService(session, components).exportApiKeys("realm", 2, exported::add);
+
+    assertEquals(7, count);
+    Map<String, Set<String>> found = new TreeMap<>();
+    exported.forEach(apiKey -> found.put(apiKey.getId(), apiKey.getScope()));
+    assertEquals(scopesById, found);
+    assertEquals(
+        List.copyOf(scopesById.keySet()), exported.stream().map(ApiKeyExport::getId).toList());
+  }
+
+  @Test
+  public void export_should_write_one_json_line_per_apiKey_plain_or_gzipped() throws Exception {
+    TestDatabase.authenticate(session, components, "admin");
+    components.getAuthorizationCache().putAdmin("realm", "admin", true);
+    KeycloakSessionFactory sessionFactory = mock(KeycloakSessionFactory.class);
+    when(sessionFactory.create()).thenReturn(session);
+    when(session.getKeycloakSessionFactory()).thenReturn(sessionFactory);
+    ApiKeyResource resource = new ApiKeyResource(session, components);
+
+    Response plain = resource.exportApiKeys(false);
+    assertEquals("application/x-ndjson", plain.getMediaType().toString());
+    assertEquals(
+        "attachment; filename=\"realm-api-keys.ndjson\"",
+        plain.getHeaderString("Content-Disposition"));
+    byte[] body = write(plain);
+
+    String[] lines = new String(body, StandardCharsets.UTF_8).split("\n");
+    assertEquals(7, lines.length);
+    List<String> ids = new ArrayList<>();
+    for (String line : lines) {
+      JsonNode apiKey = new ObjectMapper().readTree(line);
+      ids.add(apiKey.get("id").asText());
+      assertEquals("user1", apiKey.get("userId").asText());
+      assertEquals("opaque", apiKey.get("type").asText());
+      assertFalse(apiKey.has("hash"));
+      Set<String> scopes = new HashSet<>();
+      apiKey.get("scope").forEach(scope -> scopes.add(scope.asText()));
+      assertEquals(scopesById.get(apiKey.get("id").asText()), scopes);
+    }
+    assertEquals(List.copyOf(scopesById.keySet()), ids);
+
+    Response gzipped = resource.exportApiKeys(true);
+    assertEquals("application/gzip", gzipped.getMediaType().toString());
+    assertTrue(
+        gzipped.getHeaderString("Content-Disposition").endsWith("realm-api-keys.ndjson.gz\""));
+    try (GZIPInputStream unzipped = new GZIPInputStream(new ByteArrayInputStream(write(gzipped)))) {
+      assertArrayEquals(body, unzipped.readAllBytes());
+    }
+  }
+
+  private static byte[] write(Response response) throws Exception {
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    ((StreamingOutput) response.getEntity()).write(output);
+    return output.toByteArray();
+  }
+}
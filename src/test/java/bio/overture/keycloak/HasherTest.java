@@ -1,9 +1,14 @@
 package bio.overture.keycloak;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import bio.overture.keycloak.utils.Hasher;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
 import org.junit.jupiter.api.Test;
 
 public class HasherTest {
@@ -27,4 +32,37 @@ public class HasherTest {
     // same hash function should always produce the same hash
     assertNotEquals(hashedText, hasher.generateHash(inputText));
   }
+
+  @Test
+  public void hash_of_non_ascii_text_should_match_utf8_digest() throws Exception {
+    Hasher hasher = new Hasher();
+    String inputText = "clé-api-ключ";
+
+    byte[] expected =
+        MessageDigest.getInstance("SHA-256").digest(inputText.getBytes(StandardCharsets.UTF_8));
+
+    assertArrayEquals(expected, hasher.digest(inputText));
+  }
+
+  @Test
+  public void hex_should_round_trip() {
+    Hasher hasher = new Hasher();
+    byte[] digest = hasher.digest("someSampleText");
+
+    assertEquals(hasher.generateHash("someSampleText"), Hasher.toHex(digest));
+    assertArrayEquals(digest, Hasher.fromHex(Hasher.toHex(digest)));
+  }
+
+  @Test
+  public void matches_should_compare_without_hex_encoding() {
+    Hasher hasher = new Hasher();
+    String hashedText = "6B8AD6565FC5FA7C6D906AE3A78E12FDA9B2DA0CE101CDCE1A49417A2801E8D2";
+
+    assertTrue(hasher.matches("someSampleText", hashedText));
+    assertTrue(hasher.matches("someSampleText", hashedText.toLowerCase()));
+    assertTrue(hasher.matches("someSampleText", Hasher.fromHex(hashedText)));
+    assertFalse(hasher.matches("SOMESAMPLETEXT", hashedText));
+    assertFalse(hasher.matches("someSampleText", hashedText.substring(2)));
+    assertFalse(hasher.matches("someSampleText", "ZZ" + hashedText.substring(2)));
+  }
 }
@@ -0,0 +1,66 @@
+package bio.overture.keycloak;
+
+import static bio.overture.keycloak.TestDatabase.DAY_MILLIS;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import bio.overture.keycloak.model.ApiKeyPage;
+import bio.overture.keycloak.services.ApiKeyService;
+import bio.overture.keycloak.utils.Hasher;
+import bio.overture.keycloak.utils.PageCursor;
+import jakarta.ws.rs.BadRequestException;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+
+public class PageCursorTest {
+
+  @Test
+  public void decode_should_return_the_encoded_cursor() {
+    PageCursor cursor = new PageCursor("DESCRIPTION", "ASC", "some-id", "a\nmulti line: value");
+
+    assertEquals(cursor, PageCursor.decode(cursor.encode()));
+  }
+
+  @Test
+  public void decode_should_reject_invalid_cursors() {
+    assertThrows(BadRequestException.class, () -> PageCursor.decode("not base64!"));
+    assertThrows(BadRequestException.class, () -> PageCursor.decode("YWJj"));
+  }
+
+  @Test
+  public void cursors_of_the_default_sort_should_not_hold_apiKey_hashes() throws Exception {
+    try (TestDatabase database = new TestDatabase()) {
+      long now = System.currentTimeMillis();
+      Hasher hasher = new Hasher();
+      List<String> hashes =
+          List.of(
+                  database.insertApiKey("realm", "user1", now + DAY_MILLIS, null),
+                  database.insertApiKey("realm", "user1", now + DAY_MILLIS, null),
+                  database.insertApiKey("realm", "user1", now + DAY_MILLIS, null))
+              .stream()
+              .map(hasher::generateHash)
+              .toList();
+      ApiKeyService service =
+          new ApiKeyService(database.session("realm"), TestDatabase.components(Map.of()));
+
+      int listed = 0;
+      String cursor = null;
+      do {
+        ApiKeyPage page = service.getApiKeys("user1", null, 1, 0, cursor, "name", "DESC");
+        listed += page.getApiKeys().size();
+        cursor = page.getNextCursor();
+        if (cursor != null) {
+          String decoded =
+              new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+          hashes.forEach(hash -> assertFalse(decoded.contains(hash)));
+        }
+      } while (cursor != null && listed < 10);
+
+      assertEquals(3, listed);
+    }
+  }
+}
@@ -0,0 +1,83 @@
+package bio.overture.keycloak;
+
+import static bio.overture.keycloak.TestDatabase.DAY_MILLIS;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import bio.overture.keycloak.provider.ApiKeyComponents;
+import bio.overture.keycloak.services.ApiKeyService;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.keycloak.models.KeycloakSession;
+
+public class PurgeApiKeysTest {
+
+  private TestDatabase database;
+  private ApiKeyService service;
+
+  @BeforeEach
+  public void setUp() throws Exception {
+    database = new TestDatabase();
+    KeycloakSession session = database.session("realm");
+    ApiKeyComponents components = TestDatabase.components(Map.of());
+    service = new ApiKeyService(session, components);
+  }
+
+  @AfterEach
+  public void tearDown() throws Exception {
+    database.close();
+  }
+
+  @Test
+  public void purge_should_delete_in_batches_until_a_batch_is_short() throws Exception {
+    long now = System.currentTimeMillis();
+    for (int i = 0; i < 5; i++) {
+      database.insertApiKey("realm", "user1", now - 10 * DAY_MILLIS, null, "song.READ");
+    }
+    for (int i = 0; i < 2; i++) {
+      database.insertApiKey("realm", "user1", now + DAY_MILLIS, now - 10 * DAY_MILLIS, "song.READ");
+    }
+    database.insertApiKey("realm", "user1", now + DAY_MILLIS, null, "song.READ");
+
+    // the loop of the task, with a batch smaller than the apiKeys to delete
+    List<Integer> batches = new ArrayList<>();
+    int deleted;
+    do {
+      deleted = database.inTransaction(() -> service.purgeApiKeys(now - DAY_MILLIS, 3));
+      batches.add(deleted);
+    } while (deleted == 3);
+
+    assertEquals(List.of(3, 3, 1), batches);
+    assertEquals(List.of("1"), database.query("SELECT COUNT(*) FROM API_KEY"));
+    // scopes go with their apiKey
+    assertEquals(List.of("1"), database.query("SELECT COUNT(*) FROM API_KEY_SCOPE"));
+  }
+
+  @Test
+  public void purge_should_only_delete_apiKeys_expired_or_revoked_before_the_cutoff()
+      throws Exception {
+    long now = System.currentTimeMillis();
+    long cutoff = now - 7 * DAY_MILLIS;
+    database.insertApiKey("realm", "expiredBefore", cutoff - DAY_MILLIS, null);
+    database.insertApiKey("realm", "expiredAfter", cutoff + DAY_MILLIS, null);
+    database.insertApiKey("realm", "revokedBefore", now + DAY_MILLIS, cutoff - DAY_MILLIS);
+    database.insertApiKey("realm", "revokedAfter", now + DAY_MILLIS, cutoff + DAY_MILLIS);
+    database.insertApiKey("realm", "active", now + DAY_MILLIS, null);
+    database.insertApiKey("other", "otherRealm", cutoff - DAY_MILLIS, null);
+    database.insertApiKey("realm", "signedRevoked", now + DAY_MILLIS, cutoff - DAY_MILLIS);
+    database.insertApiKey("realm", "signedExpired", cutoff - DAY_MILLIS, cutoff - 2 * DAY_MILLIS);
+    database.execute("UPDATE API_KEY SET SIGNED = TRUE WHERE USER_ID LIKE 'signed%'");
+
+    assertEquals(4, (int) database.inTransaction(() -> service.purgeApiKeys(cutoff, 100)));
+
+    // revoked signed apiKeys stay until they expire, their revocation is what refuses them
+    assertEquals(
+        Set.of("expiredAfter", "revokedAfter", "active", "signedRevoked"),
+        new TreeSet<>(database.query("SELECT USER_ID FROM API_KEY")));
+  }
+}
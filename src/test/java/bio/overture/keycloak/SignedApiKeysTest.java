@@ -0,0 +1,164 @@
+package bio.overture.keycloak;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import bio.overture.keycloak.model.ApiKeySnapshot;
+import bio.overture.keycloak.model.RevokedApiKey;
+import bio.overture.keycloak.params.ScopeName;
+import bio.overture.keycloak.provider.ApiKeyComponents;
+import bio.overture.keycloak.services.ApiKeyService;
+import bio.overture.keycloak.utils.ApiKeyFormat;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.keycloak.jose.jws.JWSBuilder;
+import org.keycloak.jose.jws.JWSInput;
+import org.keycloak.jose.jws.JWSInputException;
+import org.keycloak.jose.jws.crypto.HMACProvider;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.TokenManager;
+
+public class SignedApiKeysTest {
+
+  private TestDatabase database;
+  private ApiKeyComponents components;
+  private ApiKeyService service;
+  private ApiKeyService otherRealmService;
+
+  @BeforeEach
+  public void setUp() throws Exception {
+    database = new TestDatabase();
+    components = TestDatabase.components(Map.of());
+    service = new ApiKeyService(signingSession("realm"), components);
+    otherRealmService = new ApiKeyService(signingSession("other"), components);
+  }
+
+  @AfterEach
+  public void tearDown() throws Exception {
+    database.close();
+  }
+
+  @Test
+  public void signed_apiKey_should_be_valid_with_its_claims() {
+    String apiKey = issue(service);
+    assertTrue(ApiKeyFormat.isSigned(apiKey));
+
+    // checked in the database until the revoked apiKeys are loaded, then from its claims
+    assertValid(service.findSnapshotByApiKey(apiKey));
+    components.getRevokedApiKeys().replace(List.of(), System.currentTimeMillis());
+    assertValid(service.findSnapshotByApiKey(apiKey));
+    assertValid(Optional.ofNullable(service.findSnapshotsByApiKeys(List.of(apiKey)).get(apiKey)));
+  }
+
+  @Test
+  public void tampered_signed_apiKey_should_not_be_found() {
+    String apiKey = issue(service);
+    String[] parts = apiKey.split("\\.");
+    // one character of the claims changed, the signature kept
+    String payload = parts[1];
+    char changed = payload.charAt(10) == 'A' ? 'B' : 'A';
+    String tampered =
+        parts[0]
+            + "."
+            + payload.substring(0, 10)
+            + changed
+            + payload.substring(11)
+            + "."
+            + parts[2];
+
+    components.getRevokedApiKeys().replace(List.of(), System.currentTimeMillis());
+    assertTrue(service.findSnapshotByApiKey(tampered).isEmpty());
+    assertTrue(service.findSnapshotsByApiKeys(List.of(tampered)).isEmpty());
+  }
+
+  @Test
+  public void signed_apiKey_of_another_realm_should_not_be_found() {
+    String apiKey = issue(otherRealmService);
+    assertValid(otherRealmService.findSnapshotByApiKey(apiKey));
+
+    assertTrue(service.findSnapshotByApiKey(apiKey).isEmpty());
+    components.getRevokedApiKeys().replace(List.of(), System.currentTimeMillis());
+    assertTrue(service.findSnapshotByApiKey(apiKey).isEmpty());
+  }
+
+  @Test
+  public void revoked_signed_apiKey_should_be_refused_without_the_database() {
+    String apiKey = issue(service);
+    String revokedApiKey = issue(service);
+    components.getRevokedApiKeys().replace(List.of(), System.currentTimeMillis());
+    assertValid(service.findSnapshotByApiKey(revokedApiKey));
+
+    database.inTransaction(
+        () -> service.revokeApiKey(service.findByApiKey(revokedApiKey).orElseThrow()));
+
+    ApiKeySnapshot revoked = service.findSnapshotByApiKey(revokedApiKey).orElseThrow();
+    assertTrue(revoked.isRevoked());
+    assertFalse(service.isValidApiKey(revoked));
+    assertValid(service.findSnapshotByApiKey(apiKey));
+
+    // a reload of the revocations reads the same from the database
+    components
+        .getRevokedApiKeys()
+        .replace(service.findRevokedSignedApiKeys(), System.currentTimeMillis());
+    assertEquals(
+        List.of(new RevokedApiKey("realm", revoked.getId())), service.findRevokedSignedApiKeys());
+    assertTrue(service.findSnapshotByApiKey(revokedApiKey).orElseThrow().isRevoked());
+  }
+
+  private String issue(ApiKeyService issuer) {
+    return database.inTransaction(
+        () ->
+            issuer
+                .issueApiKey("user1", List.of(new ScopeName("song.READ")), "signed", true)
+                .getName());
+  }
+
+  private void assertValid(Optional<ApiKeySnapshot> found) {
+    ApiKeySnapshot apiKey = found.orElseThrow();
+    assertEquals("user1", apiKey.getUserId());
+    assertEquals(Set.of(new ScopeName("song.READ")), apiKey.getScope());
+    assertTrue(service.isValidApiKey(apiKey));
+  }
+
+  /** A session of the realm signing tokens with its own HMAC key. */
+  private KeycloakSession signingSession(String realmId) {
+    SecretKey key =
+        new SecretKeySpec(
+            ("key of the realm " + realmId + " ..........").getBytes(StandardCharsets.UTF_8),
+            "HmacSHA256");
+    TokenManager tokens = mock(TokenManager.class);
+    when(tokens.encode(any()))
+        .thenAnswer(
+            invocation ->
+                new JWSBuilder().type("JWT").jsonContent(invocation.getArgument(0)).hmac256(key));
+    when(tokens.decode(anyString(), any()))
+        .thenAnswer(
+            invocation -> {
+              try {
+                JWSInput input = new JWSInput(invocation.getArgument(0));
+                if (!HMACProvider.verify(input, key)) {
+                  return null;
+                }
+                return input.readJsonContent(invocation.<Class<?>>getArgument(1));
+              } catch (JWSInputException e) {
+                return null;
+              }
+            });
+    KeycloakSession session = database.session(realmId);
+    when(session.tokens()).thenReturn(tokens);
+    return session;
+  }
+}
@@ -0,0 +1,276 @@
+package bio.overture.keycloak;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import bio.overture.keycloak.config.ApiKeyConfig;
+import bio.overture.keycloak.provider.ApiKeyComponents;
+import bio.overture.keycloak.utils.ApiKeyFormat;
+import bio.overture.keycloak.utils.Hasher;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.EntityManagerFactory;
+import jakarta.persistence.Persistence;
+import jakarta.ws.rs.core.HttpHeaders;
+import jakarta.ws.rs.core.MultivaluedHashMap;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import liquibase.Liquibase;
+import liquibase.database.Database;
+import liquibase.database.DatabaseFactory;
+import liquibase.database.jvm.JdbcConnection;
+import liquibase.resource.ClassLoaderResourceAccessor;
+import org.hibernate.SessionFactory;
+import org.keycloak.Config;
+import org.keycloak.connections.jpa.JpaConnectionProvider;
+import org.keycloak.models.ClientModel;
+import org.keycloak.models.KeycloakContext;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakTransaction;
+import org.keycloak.models.KeycloakTransactionManager;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.UserSessionModel;
+import org.keycloak.models.UserSessionProvider;
+import org.keycloak.representations.AccessToken;
+import org.keycloak.services.managers.AuthenticationManager;
+
+/**
+ * Embedded H2 database with the plugin schema, created from its Liquibase changelog, and mocked
+ * Keycloak sessions of realms using it, answering what the services need.
+ */
+public class TestDatabase implements AutoCloseable {
+
+  public static final long DAY_MILLIS = 24L * 60 * 60 * 1000;
+
+  private static final String CHANGELOG = "META-INF/apikeys-changelog.xml";
+
+  // keeps the in memory database open
+  private final Connection connection;
+  private final EntityManagerFactory entityManagerFactory;
+  private final EntityManager entityManager;
+  private final Hasher hasher = new Hasher();
+
+  // transactions enlisted by the sessions to run once the current one completes
+  private final List<KeycloakTransaction> afterCompletion = new ArrayList<>();
+
+  public TestDatabase() throws Exception {
+    String url = "jdbc:h2:mem:" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1;NON_KEYWORDS=VALUE";
+    connection = DriverManager.getConnection(url);
+
+    try (Statement statement = connection.createStatement()) {
+      // read by the user attribute migration of the changelog
+      statement.execute(
+          "CREATE TABLE USER_ENTITY (ID VARCHAR(36) PRIMARY KEY, REALM_ID VARCHAR(36))");
+      statement.execute(
+          "CREATE TABLE USER_ATTRIBUTE (ID VARCHAR(36) PRIMARY KEY, NAME VARCHAR(255),"
+              + " VALUE VARCHAR(255), USER_ID VARCHAR(36))");
+    }
+    Database database =
+        DatabaseFactory.getInstance()
+            .findCorrectDatabaseImplementation(new JdbcConnection(connection));
+    new Liquibase(CHANGELOG, new ClassLoaderResourceAccessor(), database).update("");
+    // left off by Liquibase, rows inserted by the tests must be seen by the services
+    connection.setAutoCommit(true);
+
+    entityManagerFactory =
+        Persistence.createEntityManagerFactory(
+            "apikeys-test", Map.of("jakarta.persistence.jdbc.url", url));
+    entityManager = entityManagerFactory.createEntityManager();
+  }
+
+  /** Components built from the default settings, overridden by {@code settings}. */
+  public static ApiKeyComponents components(Map<String, Object> settings) {
+    return components(settings, new SimpleMeterRegistry());
+  }
+
+  public static ApiKeyComponents components(Map<String, Object> settings, MeterRegistry registry) {
+    Config.Scope scope =
+        mock(
+            Config.Scope.class,
+            invocation ->
+                settings.getOrDefault(
+                    invocation.getArgument(0),
+                    invocation.getArguments().length > 1 ? invocation.getArgument(1) : null));
+    return new ApiKeyComponents(ApiKeyConfig.fromScope(scope), registry);
+  }
+
+  /** A session of the realm, using this database, where transactions enlisted are recorded. */
+  public KeycloakSession session(String realmId) {
+    RealmModel realm = mock(RealmModel.class);
+    when(realm.getId()).thenReturn(realmId);
+    when(realm.getName()).thenReturn(realmId);
+    KeycloakContext context = mock(KeycloakContext.class);
+    when(context.getRealm()).thenReturn(realm);
+    JpaConnectionProvider jpa = mock(JpaConnectionProvider.class);
+    when(jpa.getEntityManager()).thenReturn(entityManager);
+    KeycloakTransactionManager transactionManager = mock(KeycloakTransactionManager.class);
+    doAnswer(
+            invocation -> {
+              KeycloakTransaction transaction = invocation.getArgument(0);
+              transaction.begin();
+              afterCompletion.add(transaction);
+              return null;
+            })
+        .when(transactionManager)
+        .enlistAfterCompletion(any());
+
+    KeycloakSession session = mock(KeycloakSession.class);
+    when(session.getContext()).thenReturn(context);
+    when(session.getProvider(JpaConnectionProvider.class)).thenReturn(jpa);
+    when(session.getTransactionManager()).thenReturn(transactionManager);
+    return session;
+  }
+
+  /**
+   * Authenticates the requests of the session with the Bearer token of {@code userId}, as if it was
+   * already verified, through the bearer token cache of the components.
+   */
+  public static void authenticate(
+      KeycloakSession session, ApiKeyComponents components, String userId) {
+    RealmModel realm = session.getContext().getRealm();
+    HttpHeaders headers = mock(HttpHeaders.class);
+    when(headers.getRequestHeaders())
+        .thenReturn(new MultivaluedHashMap<>(Map.of(HttpHeaders.AUTHORIZATION, "Bearer jwt")));
+    when(session.getContext().getRequestHeaders()).thenReturn(headers);
+    UserModel user = mock(UserModel.class);
+    when(user.getId()).thenReturn(userId);
+    when(user.isEnabled()).thenReturn(true);
+    UserSessionModel userSession = mock(UserSessionModel.class);
+    when(userSession.getId()).thenReturn("session-" + userId);
+    when(userSession.getUser()).thenReturn(user);
+    when(userSession.getState()).thenReturn(UserSessionModel.State.LOGGED_IN);
+    UserSessionProvider sessions = mock(UserSessionProvider.class);
+    when(sessions.getUserSession(realm, "session-" + userId)).thenReturn(userSession);
+    when(session.sessions()).thenReturn(sessions);
+    ClientModel client = mock(ClientModel.class);
+    when(client.getClientId()).thenReturn("ui");
+    when(client.isEnabled()).thenReturn(true);
+    when(realm.getClientByClientId("ui")).thenReturn(client);
+    AccessToken token = new AccessToken();
+    token.issuedFor("ui");
+    token.exp(System.currentTimeMillis() / 1000 + 60);
+    components
+        .getBearerTokenCache()
+        .put(realm, "jwt", new AuthenticationManager.AuthResult(user, userSession, token, client));
+  }
+
+  /** Runs {@code work} in a transaction, committed when it returns and rolled back if it throws. */
+  public <T> T inTransaction(Supplier<T> work) {
+    entityManager.getTransaction().begin();
+    try {
+      T result = work.get();
+      entityManager.getTransaction().commit();
+      complete(KeycloakTransaction::commit);
+      return result;
+    } catch (RuntimeException e) {
+      if (entityManager.getTransaction().isActive()) {
+        entityManager.getTransaction().rollback();
+      }
+      complete(KeycloakTransaction::rollback);
+      throw e;
+    } finally {
+      entityManager.clear();
+    }
+  }
+
+  public void inTransaction(Runnable work) {
+    inTransaction(
+        () -> {
+          work.run();
+          return null;
+        });
+  }
+
+  /**
+   * Stores an opaque apiKey issued now, revoked when {@code revokedDate} is given, and returns its
+   * value.
+   */
+  public String insertApiKey(
+      String realmId, String userId, long expiryDate, Long revokedDate, String... scopes)
+      throws SQLException {
+    String id = UUID.randomUUID().toString();
+    String apiKey = ApiKeyFormat.generate(id);
+    try (PreparedStatement insertKey =
+            connection.prepareStatement(
+                "INSERT INTO API_KEY (ID, HASH, USER_ID, REALM_ID, ISSUE_DATE, EXPIRY_DATE,"
+                    + " REVOKED, REVOKED_DATE) VALUES (?, ?, ?, ?, ?, ?, ?, ?)");
+        PreparedStatement insertScope =
+            connection.prepareStatement(
+                "INSERT INTO API_KEY_SCOPE (API_KEY_ID, SCOPE) VALUES (?, ?)")) {
+      insertKey.setString(1, id);
+      insertKey.setString(2, hasher.generateHash(apiKey));
+      insertKey.setString(3, userId);
+      insertKey.setString(4, realmId);
+      insertKey.setLong(5, System.currentTimeMillis());
+      insertKey.setLong(6, expiryDate);
+      insertKey.setBoolean(7, revokedDate != null);
+      insertKey.setObject(8, revokedDate);
+      insertKey.executeUpdate();
+      for (String scope : scopes) {
+        insertScope.setString(1, id);
+        insertScope.setString(2, scope);
+        insertScope.executeUpdate();
+      }
+    }
+    return apiKey;
+  }
+
+  /** Runs a statement outside of any transaction of the services. */
+  public int execute(String sql) throws SQLException {
+    try (Statement statement = connection.createStatement()) {
+      return statement.executeUpdate(sql);
+    }
+  }
+
+  /** Statements prepared by the services so far. */
+  public long statements() {
+    return entityManagerFactory
+        .unwrap(SessionFactory.class)
+        .getStatistics()
+        .getPrepareStatementCount();
+  }
+
+  /** Rows of a query, each with its columns joined by {@code :}. */
+  public List<String> query(String sql) throws SQLException {
+    List<String> rows = new ArrayList<>();
+    try (Statement statement = connection.createStatement();
+        ResultSet rs = statement.executeQuery(sql)) {
+      int columns = rs.getMetaData().getColumnCount();
+      while (rs.next()) {
+        List<String> values = new ArrayList<>();
+        for (int column = 1; column <= columns; column++) {
+          values.add(rs.getString(column));
+        }
+        rows.add(String.join(":", values));
+      }
+    }
+    return rows;
+  }
+
+  @Override
+  public void close() throws SQLException {
+    entityManager.close();
+    entityManagerFactory.close();
+    connection.close();
+  }
+
+  private void complete(Consumer<KeycloakTransaction> completion) {
+    List<KeycloakTransaction> completing = new ArrayList<>(afterCompletion);
+    afterCompletion.clear();
+    completing.forEach(completion);
+  }
+}
@@ -0,0 +1,74 @@
+package bio.overture.keycloak;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.CALLS_REAL_METHODS;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+
+import bio.overture.keycloak.ratelimit.ApiKeyRateLimiter;
+import bio.overture.keycloak.ratelimit.RateLimit;
+import bio.overture.keycloak.ratelimit.TokenBuckets;
+import bio.overture.keycloak.utils.Hasher;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+import org.keycloak.models.RealmModel;
+
+public class TokenBucketsTest {
+
+  private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+  private final TokenBuckets buckets = new TokenBuckets(1024);
+
+  @Test
+  public void tryAcquire_should_allow_a_burst_then_the_sustained_rate() {
+    RateLimit limit = new RateLimit(10, 5);
+    long now = SECOND;
+
+    for (int i = 0; i < 5; i++) {
+      assertEquals(0, buckets.tryAcquire("key", limit, 1, now));
+    }
+    long wait = buckets.tryAcquire("key", limit, 1, now);
+    assertEquals(SECOND / 10, wait);
+
+    // one token is back after a tenth of a second
+    assertEquals(0, buckets.tryAcquire("key", limit, 1, now + wait));
+    assertTrue(buckets.tryAcquire("key", limit, 1, now + wait) > 0);
+
+    // other keys have their own bucket
+    assertEquals(0, buckets.tryAcquire("other-key", limit, 5, now));
+  }
+
+  @Test
+  public void tryAcquire_should_take_nothing_when_denied() {
+    RateLimit limit = new RateLimit(10, 5);
+
+    assertTrue(buckets.tryAcquire("key", limit, 6, SECOND) > 0);
+    assertEquals(0, buckets.tryAcquire("key", limit, 5, SECOND));
+
+    // disabled limits always allow
+    assertEquals(0, buckets.tryAcquire("key", new RateLimit(0, 0), 100, SECOND));
+  }
+
+  @Test
+  public void apiKey_buckets_should_be_kept_per_realm() {
+    ApiKeyRateLimiter limiter =
+        new ApiKeyRateLimiter(new Hasher(), 1024, new RateLimit(10, 5), new RateLimit(1, 1));
+    RealmModel realm = realm("realm");
+
+    assertTrue(limiter.tryKey(realm, "ovk_key"));
+    assertFalse(limiter.tryKey(realm, "ovk_key"));
+    assertTrue(limiter.tryKey(realm, "ovk_other"));
+    assertTrue(limiter.tryKey(realm("other"), "ovk_key"));
+  }
+
+  // the limits of the realm fall back to the defaults
+  private static RealmModel realm(String id) {
+    RealmModel realm = mock(RealmModel.class, CALLS_REAL_METHODS);
+    doReturn(id).when(realm).getId();
+    doReturn(null).when(realm).getAttribute(anyString());
+    return realm;
+  }
+}
@@ -0,0 +1,41 @@
+package bio.overture.keycloak;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import bio.overture.keycloak.cache.TtlCache;
+import java.util.Optional;
+import org.junit.jupiter.api.Test;
+
+public class TtlCacheTest {
+
+  @Test
+  public void get_should_count_hits_and_misses() {
+    TtlCache<String, String> cache = new TtlCache<>(10);
+    cache.put("key", "value", System.currentTimeMillis() + 60_000);
+
+    assertEquals(Optional.of("value"), cache.get("key"));
+    assertEquals(Optional.empty(), cache.get("other"));
+    assertEquals(1, cache.getHits());
+    assertEquals(1, cache.getMisses());
+  }
+
+  @Test
+  public void expired_entries_should_not_be_returned() {
+    TtlCache<String, String> cache = new TtlCache<>(10);
+    cache.put("expired", "value", System.currentTimeMillis() - 1);
+
+    assertEquals(Optional.empty(), cache.get("expired"));
+    assertEquals(0, cache.size());
+  }
+
+  @Test
+  public void size_should_stay_bounded() {
+    TtlCache<Integer, Integer> cache = new TtlCache<>(100);
+    for (int i = 0; i < 1000; i++) {
+      cache.put(i, i, System.currentTimeMillis() + 60_000);
+    }
+
+    assertTrue(cache.size() <= 100);
+  }
+}